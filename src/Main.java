@@ -96,9 +96,10 @@ public class Main {
         double[][] result = calculateActivation(neurons, weights, biases, numberOfInputNeurons, numberOfOutputNeurons, numberOfNeuronsPerHiddenLayer);
 
         // Apply softmax function to the output layer
+        double[] probabilities = softmax(result[numberOfLayers - 1]);
         double total = 0;
         for(int index = 0; index != 8; index++) {
-            total += softmax(result[numberOfLayers - 1][index], result[numberOfLayers - 1]);
+            total += probabilities[index];
         }
 
         // Define the intended output result
@@ -150,7 +151,9 @@ public class Main {
         return result;
     }
 
-    // Generate weights for the network
+    // Generate weights for the network. The tensor can connect any two layers
+    // but is padded to the widest layer; project.GraphNetwork stores only the
+    // connections that exist.
     public static double[][][][] generateWeights(int numberOfLayers, int maxNumberOfNeurons) {
         Random random = new Random();
         double[][][][] result = new double[numberOfLayers][maxNumberOfNeurons][numberOfLayers][maxNumberOfNeurons];
@@ -201,10 +204,21 @@ public class Main {
         return 1 / (1 + Math.exp(-input));
     }
 
-    // Activation function: Softmax
-    public static double softmax(double input, double[] neuronValues) {
-        double total = Arrays.stream(neuronValues).map(Math::exp).sum();
-        return Math.exp(input) / total;
+    // Activation function: Softmax over a whole layer. The exponent sum is
+    // computed once for all neurons, and the largest value is subtracted first
+    // so that exp() cannot overflow.
+    public static double[] softmax(double[] neuronValues) {
+        double max = Arrays.stream(neuronValues).max().orElse(0);
+        double[] result = new double[neuronValues.length];
+        double total = 0;
+        for (int i = 0; i < neuronValues.length; i++) {
+            result[i] = Math.exp(neuronValues[i] - max);
+            total += result[i];
+        }
+        for (int i = 0; i < result.length; i++) {
+            result[i] /= total;
+        }
+        return result;
     }
 }
 
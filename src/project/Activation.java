@@ -0,0 +1,16 @@
+package project;
+
+// Activation function of one layer. All of them are piecewise linear with slope
+// one for positive inputs, so the dense kernels only need the negative slope.
+// The declaration order is part of the ModelFile format.
+enum Activation {
+    RELU(0),
+    LEAKY_RELU(DenseKernels.LEAKY_SLOPE),
+    LINEAR(1);
+
+    final double slope; // Slope for inputs that are not positive
+
+    Activation(double slope) {
+        this.slope = slope;
+    }
+}
@@ -0,0 +1,84 @@
+package project;
+
+// Adam, or AdamW when weightDecay is positive. The decay is decoupled from the
+// gradient as in AdamW and only applies to weights, never to biases.
+class AdamOptimizer implements Optimizer {
+    private final double learningRate;
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon;
+    private final double weightDecay;
+    private double[][] m; // First moments, one buffer per slot laid out like the parameters
+    private double[][] v; // Second moments
+    private DenseKernels kernels;
+    private long step;
+    private double stepSize; // Learning rate with the first moment bias correction of the current step
+    private double vCorrection; // 1 / sqrt of the second moment bias correction
+
+    public AdamOptimizer(double learningRate, double beta1, double beta2, double epsilon, double weightDecay) {
+        this.learningRate = learningRate;
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+        this.weightDecay = weightDecay;
+        setStep(1);
+    }
+
+    // The usual defaults, betas 0.9 and 0.999 and epsilon 1e-8, without weight decay
+    public AdamOptimizer(double learningRate) {
+        this(learningRate, 0.9, 0.999, 1e-8, 0);
+    }
+
+    public static AdamOptimizer adamW(double learningRate, double weightDecay) {
+        return new AdamOptimizer(learningRate, 0.9, 0.999, 1e-8, weightDecay);
+    }
+
+    @Override
+    public void init(int[] slotSizes, DenseKernels kernels) {
+        this.kernels = kernels;
+        this.m = new double[slotSizes.length][];
+        this.v = new double[slotSizes.length][];
+        for (int slot = 0; slot < slotSizes.length; slot++) {
+            m[slot] = new double[slotSizes[slot]];
+            v[slot] = new double[slotSizes[slot]];
+        }
+        step = 0;
+    }
+
+    // Hogwild workers share the step of their batch, see NeuralNetwork.trainBatchParallel
+    @Override
+    public void beginStep() {
+        setStep(step + 1);
+    }
+
+    @Override
+    public void update(int slot, double[] params, double[] gradients, int from, int to, double scale) {
+        double decay = slot % 2 == 0 ? learningRate * weightDecay : 0;
+        kernels.adamStep(params, m[slot], v[slot], gradients, from, to, beta1, beta2, stepSize, vCorrection, epsilon, decay, scale);
+    }
+
+    // The first moments of every slot, then the second moments, then the step count
+    @Override
+    public double[][] saveState() {
+        double[][] state = new double[2 * m.length + 1][];
+        System.arraycopy(m, 0, state, 0, m.length);
+        System.arraycopy(v, 0, state, m.length, v.length);
+        state[2 * m.length] = new double[]{step};
+        return state;
+    }
+
+    @Override
+    public void restoreState(double[][] state) {
+        for (int slot = 0; slot < m.length; slot++) {
+            System.arraycopy(state[slot], 0, m[slot], 0, m[slot].length);
+            System.arraycopy(state[m.length + slot], 0, v[slot], 0, v[slot].length);
+        }
+        setStep((long) state[2 * m.length][0]);
+    }
+
+    private void setStep(long step) {
+        this.step = step;
+        this.stepSize = learningRate / (1 - Math.pow(beta1, step));
+        this.vCorrection = 1 / Math.sqrt(1 - Math.pow(beta2, step));
+    }
+}
@@ -0,0 +1,39 @@
+package project;
+
+// A reusable block of samples handed out by a BatchSource. inputs and targets
+// are Dataset views over the flat sample-major buffers.
+class Batch {
+    final int capacity;
+    final double[] inputData;
+    final double[] targetData;
+    final Dataset inputs;
+    final Dataset targets;
+    int count; // Number of valid samples
+
+    Batch(int capacity, int inputSize, int outputSize) {
+        this.capacity = capacity;
+        this.inputData = new double[capacity * inputSize];
+        this.targetData = new double[capacity * outputSize];
+        this.inputs = view(inputData, inputSize);
+        this.targets = view(targetData, outputSize);
+    }
+
+    private Dataset view(double[] data, int width) {
+        return new Dataset() {
+            @Override
+            public int size() {
+                return count;
+            }
+
+            @Override
+            public int width() {
+                return width;
+            }
+
+            @Override
+            public void read(int row, double[] dst, int offset) {
+                System.arraycopy(data, row * width, dst, offset, width);
+            }
+        };
+    }
+}
@@ -0,0 +1,18 @@
+package project;
+
+// Timings of one mini-batch. With several workers each phase is the time of the
+// slowest worker, which is what the batch waited for.
+class BatchMetrics {
+    int epoch; // Counted from 1 like the epoch log line
+    int index; // Batch number within the epoch
+    int samples;
+    long loadNanos; // Reading rows into the batch buffers, plus waiting on a BatchSource
+    long forwardNanos;
+    long backwardNanos;
+    long updateNanos;
+    long nanos; // Wall time of the whole batch
+
+    public double samplesPerSecond() {
+        return nanos == 0 ? 0 : samples * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,12 @@
+package project;
+
+// Anything that can answer batches of inference requests from several threads
+// at once: a single Predictor or an EnsemblePredictor over registry models.
+interface BatchPredictor {
+    int inputSize();
+
+    int outputSize();
+
+    // Writes the outputs of the first count inputs into outputs
+    void predictBatch(double[][] inputs, double[][] outputs, int count);
+}
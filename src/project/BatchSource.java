@@ -0,0 +1,20 @@
+package project;
+
+// Produces the mini-batches of one training pass at a time, see NeuralNetwork.train(BatchSource, int)
+interface BatchSource extends AutoCloseable {
+    int batchSize();
+
+    // Starts pass epoch over the data, abandoning any unfinished one. The same
+    // epoch yields the same batches, so a resumed run picks up where it stopped.
+    void startEpoch(int epoch);
+
+    // Next batch of the current pass, or null once the pass is complete.
+    // Blocks until the batch is ready.
+    Batch next();
+
+    // Returns a batch obtained from next so its buffers can be refilled
+    void recycle(Batch batch);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,61 @@
+package project;
+
+import java.util.Arrays;
+
+// Scratch buffers for one mini-batch. Every per-layer buffer is a single flat
+// array laid out sample-major (sample * width + neuron) so the batched kernels
+// in NeuralNetwork can run over contiguous rows.
+class BatchWorkspace {
+    final int capacity; // Maximum number of samples per batch
+    final double[][] preActivations; // Weighted sums before the activation function
+    final double[][] activations; // Post-activation outputs, layer 0 holds the inputs
+    final double[][] dropouts; // Dropout scaling for every sample and neuron
+    final double[][] deltas; // Error terms for every sample and neuron
+    final double[] targets; // Expected outputs of the batch
+    final double[][] weightGradients; // Gradients summed over the batch, laid out like the weights
+    final double[][] biasGradients;
+    final double[][] scratch; // Per-layer buffers of Layer.scratchSize, kept from forward to backward
+    long stream; // Random stream of the current epoch, see NeuralNetwork.applyDropout
+    int from; // First sample of the slice currently held
+    int count; // Number of samples currently held
+    long loadNanos; // Phase timings of the current batch, reported to TrainingListeners
+    long forwardNanos;
+    long backwardNanos;
+    long updateNanos;
+
+    BatchWorkspace(int[] neuronsPerLayer, Layer[] layers, int capacity) {
+        int numLayers = neuronsPerLayer.length;
+        this.capacity = capacity;
+        this.preActivations = new double[numLayers][];
+        this.activations = new double[numLayers][];
+        this.dropouts = new double[numLayers][];
+        this.deltas = new double[numLayers][];
+        this.weightGradients = new double[numLayers][];
+        this.biasGradients = new double[numLayers][];
+        this.scratch = new double[numLayers][];
+
+        activations[0] = new double[capacity * neuronsPerLayer[0]];
+        targets = new double[capacity * neuronsPerLayer[numLayers - 1]];
+
+        for (int i = 1; i < numLayers; i++) {
+            preActivations[i] = new double[capacity * neuronsPerLayer[i]];
+            activations[i] = new double[capacity * neuronsPerLayer[i]];
+
+            dropouts[i] = new double[capacity * neuronsPerLayer[i]];
+            if (layers[i].biasCount() == 0) {
+                Arrays.fill(dropouts[i], 1); // Never dropped, see NeuralNetwork.dropoutMask
+            }
+            deltas[i] = new double[capacity * neuronsPerLayer[i]];
+            weightGradients[i] = new double[layers[i].weightCount()];
+            biasGradients[i] = new double[layers[i].biasCount()];
+            scratch[i] = new double[layers[i].scratchSize(capacity)];
+        }
+    }
+
+    void clearGradients() {
+        for (int i = 1; i < weightGradients.length; i++) {
+            Arrays.fill(weightGradients[i], 0);
+            Arrays.fill(biasGradients[i], 0);
+        }
+    }
+}
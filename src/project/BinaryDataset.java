@@ -0,0 +1,202 @@
+package project;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Compact binary dataset read in place through a memory mapping.
+//
+// Layout, little-endian:
+//   int   magic   'NNDS'
+//   int   version
+//   int   dtype   1 = uint8, 2 = float32
+//   int   rows
+//   int   cols
+//   float scale   uint8 values are stored as round(value / scale)
+//   8 bytes reserved, then rows * cols values row by row
+class BinaryDataset implements Dataset {
+    static final int MAGIC = 0x53444E4E; // "NNDS" read as a little-endian int
+    static final int VERSION = 1;
+    static final int UINT8 = 1;
+    static final int FLOAT32 = 2;
+    static final int HEADER_SIZE = 32;
+
+    private final int rows;
+    private final int cols;
+    private final int dtype;
+    private final float scale;
+    private final int rowBytes;
+    private final int rowsPerChunk;
+    private final MappedByteBuffer[] chunks; // A single mapping is limited to 2 GB
+
+    private BinaryDataset(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            throw new IOException("Not a binary dataset file");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported dataset version " + version);
+        }
+        dtype = header.getInt();
+        rows = header.getInt();
+        cols = header.getInt();
+        scale = header.getFloat();
+        if (dtype != UINT8 && dtype != FLOAT32) {
+            throw new IOException("Unknown dataset dtype " + dtype);
+        }
+        if (rows <= 0 || cols <= 0) {
+            throw new IOException("Dataset of " + rows + " rows x " + cols + " values");
+        }
+        rowBytes = cols * (dtype == UINT8 ? 1 : 4);
+        if (channel.size() < HEADER_SIZE + (long) rows * rowBytes) {
+            throw new IOException("Dataset file is truncated");
+        }
+
+        rowsPerChunk = Math.max(1, Integer.MAX_VALUE / rowBytes);
+        chunks = new MappedByteBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+        for (int c = 0; c < chunks.length; c++) {
+            long start = HEADER_SIZE + (long) c * rowsPerChunk * rowBytes;
+            long length = (long) Math.min(rowsPerChunk, rows - c * rowsPerChunk) * rowBytes;
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // The mapping stays valid after the channel is closed
+    public static BinaryDataset open(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            return new BinaryDataset(channel);
+        }
+    }
+
+    // Opens the .bin file next to a "{a, b, c}," text file, converting the text
+    // file first if the binary one does not exist yet. Returns null on failure.
+    public static BinaryDataset openOrConvert(String textFile) {
+        String binaryFile = textFile.replaceFirst("\\.txt$", "") + ".bin";
+        try {
+            if (!new File(binaryFile).exists()) {
+                convert(textFile, binaryFile);
+            }
+            return open(binaryFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public int size() {
+        return rows;
+    }
+
+    @Override
+    public int width() {
+        return cols;
+    }
+
+    // Absolute reads only, so any number of threads can read concurrently
+    @Override
+    public void read(int row, double[] dst, int offset) {
+        MappedByteBuffer chunk = chunks[row / rowsPerChunk];
+        int base = (row % rowsPerChunk) * rowBytes;
+        if (dtype == UINT8) {
+            for (int k = 0; k < cols; k++) {
+                dst[offset + k] = (chunk.get(base + k) & 0xFF) * scale;
+            }
+        } else {
+            for (int k = 0; k < cols; k++) {
+                dst[offset + k] = chunk.getFloat(base + 4 * k);
+            }
+        }
+    }
+
+    // One-time conversion of a text dataset written by MNSITToList.py. The text
+    // is streamed twice: the first pass finds the shape and whether every value
+    // is a multiple of 1/255 in [0, 1] (stored as uint8), the second writes the rows.
+    public static void convert(String textFile, String binaryFile) throws IOException {
+        int rows = 0;
+        int cols = 0;
+        boolean fitsUint8 = true;
+        try (BufferedReader br = new BufferedReader(new FileReader(textFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                double[] row = parseRow(line);
+                if (row == null) {
+                    continue;
+                }
+                if (rows == 0) {
+                    cols = row.length;
+                } else if (row.length != cols) {
+                    throw new IOException("Row " + rows + " has " + row.length + " values, expected " + cols);
+                }
+                for (double v : row) {
+                    double scaled = v * 255;
+                    if (scaled < 0 || scaled > 255 || Math.abs(scaled - Math.rint(scaled)) > 1e-3) {
+                        fitsUint8 = false;
+                    }
+                }
+                rows++;
+            }
+        }
+
+        if (rows == 0) {
+            throw new IOException("No rows in " + textFile);
+        }
+        int dtype = fitsUint8 ? UINT8 : FLOAT32;
+        float scale = fitsUint8 ? 1f / 255 : 1f;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE, cols * 4)).order(ByteOrder.LITTLE_ENDIAN);
+        try (BufferedReader br = new BufferedReader(new FileReader(textFile));
+             FileChannel out = FileChannel.open(Path.of(binaryFile), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(dtype).putInt(rows).putInt(cols).putFloat(scale).putLong(0);
+            buffer.flip();
+            writeFully(out, buffer);
+
+            String line;
+            while ((line = br.readLine()) != null) {
+                double[] row = parseRow(line);
+                if (row == null) {
+                    continue;
+                }
+                buffer.clear();
+                for (double v : row) {
+                    if (fitsUint8) {
+                        buffer.put((byte) Math.rint(v * 255));
+                    } else {
+                        buffer.putFloat((float) v);
+                    }
+                }
+                buffer.flip();
+                writeFully(out, buffer);
+            }
+        }
+        System.out.printf("Converted %s: %d rows x %d %s values%n", textFile, rows, cols, fitsUint8 ? "uint8" : "float32");
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    // Parses one " {a, b, c}," line, or returns null for any other line
+    static double[] parseRow(String line) {
+        line = line.trim();
+        if (!line.startsWith("{") || !line.endsWith("},")) {
+            return null;
+        }
+        line = line.substring(1, line.length() - 2).trim();
+        String[] values = line.split(",");
+        double[] data = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = Double.parseDouble(values[i].trim());
+        }
+        return data;
+    }
+}
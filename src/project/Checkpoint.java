@@ -0,0 +1,50 @@
+package project;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Snapshot of a training run written by NeuralNetwork.setCheckpoints. Besides
+// the parameters it holds the optimizer state, the seed and the position in the
+// run, which together determine every later shuffle and dropout mask, so a
+// killed job resumed with resumeFromCheckpoint sees exactly the batches and
+// masks it would have seen. Checkpoints are only read back by the run that wrote
+// them, so Java serialization is good enough; finished models go to ModelFile.
+class Checkpoint implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    int[][] layers; // NeuralNetwork.describeLayers, to reject checkpoints of other networks
+    double[][] weights;
+    double[][] biases;
+    String optimizer; // Class name of the optimizer the state belongs to
+    double[][] optimizerState; // See Optimizer.saveState
+    long seed; // See RandomStreams
+    int epoch; // Epoch in progress, 0-based
+    int sample; // Samples of that epoch already trained on
+    double[] totals; // Totals of that epoch so far, see NeuralNetwork.trainOn
+    EarlyStopping earlyStopping; // Null without early stopping
+
+    // Writes to a temporary file first and moves it over path, so a crash while
+    // writing leaves the previous checkpoint intact
+    void write(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeObject(this);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static Checkpoint read(Path path) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return (Checkpoint) in.readObject();
+        }
+    }
+}
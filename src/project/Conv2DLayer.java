@@ -0,0 +1,154 @@
+package project;
+
+import java.util.Arrays;
+
+// 2D convolution lowered to a matrix product (im2col): the input patch under
+// every output position of every sample becomes one row of the scratch buffer,
+// so the whole batch is a single multiplyTransposed of count * positions rows by
+// the outChannels x patch weight matrix, run by the same kernels as the dense
+// layers. The product comes out channels-last, which is the layout the next
+// layer expects, and the backward pass reuses the same rows for the gradients.
+class Conv2DLayer implements Layer {
+    private final int inChannels;
+    private final int height;
+    private final int width;
+    private final int outChannels;
+    private final int kernelSize;
+    private final int stride;
+    private final int padding;
+    private final int outHeight;
+    private final int outWidth;
+    private final int patch; // kernelSize * kernelSize * inChannels, the fan-in of every output
+
+    public Conv2DLayer(int inChannels, int height, int width, int outChannels, int kernelSize, int stride, int padding) {
+        if (height + 2 * padding < kernelSize || width + 2 * padding < kernelSize) {
+            throw new IllegalArgumentException("Kernel " + kernelSize + " does not fit a " + height + "x" + width + " input");
+        }
+        this.inChannels = inChannels;
+        this.height = height;
+        this.width = width;
+        this.outChannels = outChannels;
+        this.kernelSize = kernelSize;
+        this.stride = stride;
+        this.padding = padding;
+        this.outHeight = (height + 2 * padding - kernelSize) / stride + 1;
+        this.outWidth = (width + 2 * padding - kernelSize) / stride + 1;
+        this.patch = kernelSize * kernelSize * inChannels;
+    }
+
+    // Stride one with padding that keeps the image size for odd kernels
+    public Conv2DLayer(int inChannels, int height, int width, int outChannels, int kernelSize) {
+        this(inChannels, height, width, outChannels, kernelSize, 1, kernelSize / 2);
+    }
+
+    public int outputChannels() {
+        return outChannels;
+    }
+
+    public int outputHeight() {
+        return outHeight;
+    }
+
+    public int outputWidth() {
+        return outWidth;
+    }
+
+    @Override
+    public int inputSize() {
+        return height * width * inChannels;
+    }
+
+    @Override
+    public int outputSize() {
+        return outHeight * outWidth * outChannels;
+    }
+
+    @Override
+    public int biasCount() {
+        return outChannels;
+    }
+
+    @Override
+    public int fanIn() {
+        return patch;
+    }
+
+    @Override
+    public int scratchSize(int capacity) {
+        return capacity * outHeight * outWidth * patch;
+    }
+
+    @Override
+    public void forward(DenseKernels kernels, double[] weights, double[] biases, double[] in, double[] out, int count, double[] scratch) {
+        int inputSize = inputSize();
+        int row = 0;
+        for (int s = 0; s < count; s++) {
+            int sample = s * inputSize;
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    // Copies the patch one kernel row segment at a time; channels
+                    // of a pixel are contiguous, so each pixel is one arraycopy
+                    int k = row;
+                    for (int ky = 0; ky < kernelSize; ky++) {
+                        int iy = oy * stride - padding + ky;
+                        for (int kx = 0; kx < kernelSize; kx++) {
+                            int ix = ox * stride - padding + kx;
+                            if (iy < 0 || iy >= height || ix < 0 || ix >= width) {
+                                Arrays.fill(scratch, k, k + inChannels, 0);
+                            } else {
+                                System.arraycopy(in, sample + (iy * width + ix) * inChannels, scratch, k, inChannels);
+                            }
+                            k += inChannels;
+                        }
+                    }
+                    row += patch;
+                }
+            }
+        }
+        kernels.multiplyTransposed(scratch, weights, biases, out, count * outHeight * outWidth, patch, outChannels);
+    }
+
+    @Override
+    public void backward(DenseKernels kernels, double[] weights, double[] in, double[] outDeltas, double[] inDeltas,
+                         double[] weightGradients, double[] biasGradients, int count, double[] scratch) {
+        int rows = count * outHeight * outWidth;
+        kernels.accumulateGradients(outDeltas, scratch, weightGradients, biasGradients, rows, outChannels, patch);
+        if (inDeltas == null) {
+            return;
+        }
+
+        // The patches are no longer needed, so their errors go to the same buffer
+        // and are then summed back onto the pixels they were copied from
+        kernels.multiply(outDeltas, weights, scratch, rows, outChannels, patch);
+        int inputSize = inputSize();
+        Arrays.fill(inDeltas, 0, count * inputSize, 0);
+        int row = 0;
+        for (int s = 0; s < count; s++) {
+            int sample = s * inputSize;
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int k = row;
+                    for (int ky = 0; ky < kernelSize; ky++) {
+                        int iy = oy * stride - padding + ky;
+                        for (int kx = 0; kx < kernelSize; kx++) {
+                            int ix = ox * stride - padding + kx;
+                            if (iy >= 0 && iy < height && ix >= 0 && ix < width) {
+                                int pixel = sample + (iy * width + ix) * inChannels;
+                                for (int c = 0; c < inChannels; c++) {
+                                    inDeltas[pixel + c] += scratch[k + c];
+                                }
+                            }
+                            k += inChannels;
+                        }
+                    }
+                    row += patch;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int[] describe() {
+        return new int[]{CONV_2D, inChannels, height, width, outChannels, kernelSize, stride, padding};
+    }
+}
@@ -0,0 +1,77 @@
+package project;
+
+// Read access to a table of samples, one fixed-width row per sample
+interface Dataset {
+    int size();
+
+    int width();
+
+    // Copies row into dst starting at offset. Must be safe to call from several threads.
+    void read(int row, double[] dst, int offset);
+
+    // Rows [from, to) as a view without copying, for example to hold out the
+    // tail of a training set for validation
+    default Dataset slice(int from, int to) {
+        if (from < 0 || to > size() || from > to) {
+            throw new IndexOutOfBoundsException("Rows [" + from + ", " + to + ") of " + size());
+        }
+        Dataset source = this;
+        return new Dataset() {
+            @Override
+            public int size() {
+                return to - from;
+            }
+
+            @Override
+            public int width() {
+                return source.width();
+            }
+
+            @Override
+            public void read(int row, double[] dst, int offset) {
+                source.read(from + row, dst, offset);
+            }
+        };
+    }
+
+    // A view that reads row order[i] as its row i, for example to visit the
+    // samples in a shuffled order without moving them
+    default Dataset reorder(int[] order) {
+        Dataset source = this;
+        return new Dataset() {
+            @Override
+            public int size() {
+                return order.length;
+            }
+
+            @Override
+            public int width() {
+                return source.width();
+            }
+
+            @Override
+            public void read(int row, double[] dst, int offset) {
+                source.read(order[row], dst, offset);
+            }
+        };
+    }
+
+    static Dataset of(double[][] rows) {
+        return new Dataset() {
+            @Override
+            public int size() {
+                return rows.length;
+            }
+
+            @Override
+            public int width() {
+                return rows.length == 0 ? 0 : rows[0].length;
+            }
+
+            @Override
+            public void read(int row, double[] dst, int offset) {
+                System.arraycopy(rows[row], 0, dst, offset, rows[row].length);
+            }
+        };
+    }
+}
@@ -0,0 +1,181 @@
+package project;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Inner loops of the dense layers. Matrices are flat row-major arrays and batch
+// buffers are sample-major, see NeuralNetwork and BatchWorkspace.
+interface DenseKernels {
+    double LEAKY_SLOPE = 0.01;
+    AtomicBoolean VECTOR_FALLBACK_REPORTED = new AtomicBoolean(); // See loadVectorKernels
+
+    // out[s][j] = bias[j] + sum_k in[s][k] * w[j][k]
+    void multiplyTransposed(double[] in, double[] w, double[] bias, double[] out, int count, int inSize, int outSize);
+
+    // Single-sample out[j] = activation(bias[j] + sum_k in[k] * w[j][k]) with the
+    // bias add and the activation of the given slope applied as each row's dot
+    // product finishes, so out is written once. Used by FrozenModel.
+    void multiplyActivate(double[] in, double[] w, double[] bias, double[] out, int inSize, int outSize, double slope);
+
+    // The same for a CSR matrix whose row j holds values[rowStarts[j] ..
+    // rowStarts[j + 1]) at the given columns. Every load of in is indirect,
+    // which the Vector API gathers do not speed up, so both kernel sets share
+    // this loop.
+    //
+    // Below sparseCrossover() nonzeros per weight, the CSR loop beats the dense
+    // one for this kernel set.
+    default void sparseMultiplyActivate(double[] in, double[] values, int[] columns, int[] rowStarts, double[] bias, double[] out, int outSize, double slope) {
+        for (int j = 0; j < outSize; j++) {
+            double a = bias[j];
+            for (int p = rowStarts[j]; p < rowStarts[j + 1]; p++) {
+                a += values[p] * in[columns[p]];
+            }
+            out[j] = a > 0 ? a : slope * a;
+        }
+    }
+
+    double sparseCrossover();
+
+    // Forms of multiplyTransposed, accumulateGradients and multiply that take
+    // one operand as the nonzero lists of a NonZeros and skip the zeros: inputs
+    // that are mostly background pixels, activations of ReLU neurons that did
+    // not fire, and the deltas of those neurons and of dropped ones. They cost
+    // an indirect load per nonzero, which the Vector API does not speed up, so
+    // both kernel sets share these loops. DenseLayer switches to them below
+    // sparseInputCrossover() nonzeros per value; see the sparse benchmark of
+    // NeuralNetworkBenchmark for how that is measured.
+
+    // out[s][j] = bias[j] + sum over the nonzero in[s][k] of in[s][k] * w[j][k],
+    // four rows at a time so they share the index loads
+    default void sparseMultiplyTransposed(NonZeros in, double[] w, double[] bias, double[] out, int count, int inSize, int outSize) {
+        int[] indices = in.indices;
+        double[] values = in.values;
+        for (int s = 0; s < count; s++) {
+            int o = s * outSize;
+            int first = in.starts[s];
+            int last = in.starts[s + 1];
+            int j = 0;
+            for (; j + 4 <= outSize; j += 4) {
+                int r0 = j * inSize, r1 = r0 + inSize, r2 = r1 + inSize, r3 = r2 + inSize;
+                double a0 = bias[j], a1 = bias[j + 1], a2 = bias[j + 2], a3 = bias[j + 3];
+                for (int p = first; p < last; p++) {
+                    int k = indices[p];
+                    double x = values[p];
+                    a0 += w[r0 + k] * x;
+                    a1 += w[r1 + k] * x;
+                    a2 += w[r2 + k] * x;
+                    a3 += w[r3 + k] * x;
+                }
+                out[o + j] = a0;
+                out[o + j + 1] = a1;
+                out[o + j + 2] = a2;
+                out[o + j + 3] = a3;
+            }
+            for (; j < outSize; j++) {
+                int row = j * inSize;
+                double a = bias[j];
+                for (int p = first; p < last; p++) {
+                    a += w[row + indices[p]] * values[p];
+                }
+                out[o + j] = a;
+            }
+        }
+    }
+
+    // gradients[j][k] += sum_s d[s][j] * a[s][k] over the nonzero a[s][k], with
+    // rows whose delta is zero for a sample skipped for that sample
+    default void sparseAccumulateGradients(double[] d, NonZeros a, double[] gradients, double[] biasGradients, int count, int dSize, int aSize) {
+        int[] indices = a.indices;
+        double[] values = a.values;
+        for (int j = 0; j < dSize; j++) {
+            int row = j * aSize;
+            for (int s = 0; s < count; s++) {
+                double dj = d[s * dSize + j];
+                if (dj == 0) {
+                    continue;
+                }
+                for (int p = a.starts[s]; p < a.starts[s + 1]; p++) {
+                    gradients[row + indices[p]] += dj * values[p];
+                }
+                biasGradients[j] += dj;
+            }
+        }
+    }
+
+    // out[s][k] = sum over the nonzero d[s][j] of d[s][j] * w[j][k]; every
+    // nonzero delta adds one contiguous weight row
+    default void sparseMultiply(NonZeros d, double[] w, double[] out, int count, int dSize, int outSize) {
+        Arrays.fill(out, 0, count * outSize, 0);
+        for (int s = 0; s < count; s++) {
+            int o = s * outSize;
+            for (int p = d.starts[s]; p < d.starts[s + 1]; p++) {
+                int row = d.indices[p] * outSize;
+                double dj = d.values[p];
+                for (int k = 0; k < outSize; k++) {
+                    out[o + k] += dj * w[row + k];
+                }
+            }
+        }
+    }
+
+    double sparseInputCrossover();
+
+    // out[s][k] = sum_j d[s][j] * w[j][k]
+    void multiply(double[] d, double[] w, double[] out, int count, int dSize, int outSize);
+
+    // gradients[j][k] += sum_s d[s][j] * a[s][k] and biasGradients[j] += sum_s d[s][j]
+    void accumulateGradients(double[] d, double[] a, double[] gradients, double[] biasGradients, int count, int dSize, int aSize);
+
+    // out[i] = in[i] for positive inputs and slope * in[i] otherwise, which is
+    // ReLU, LeakyReLU or the identity depending on the slope, see Activation
+    void activate(double[] in, double[] out, int length, double slope);
+
+    // deltas[i] *= activation'(activations[i]) * dropouts[i] for the same slope
+    void scaleByDerivative(double[] deltas, double[] activations, double[] dropouts, int length, double slope);
+
+    // target[k] += source[k] for k in [from, to)
+    void add(double[] target, double[] source, int from, int to);
+
+    // Momentum blend of the scaled gradient followed by the weight step, over [from, to)
+    void momentumStep(double[] weights, double[] updates, double[] gradients, int from, int to, double momentum, double learningRate, double scale);
+
+    // The optimizer steps below each read and write every array once over
+    // [from, to); gradients are multiplied by scale first, see Optimizer.
+
+    // weights -= learningRate * gradients
+    void sgdStep(double[] weights, double[] gradients, int from, int to, double learningRate, double scale);
+
+    // velocity = momentum * velocity - learningRate * gradients, followed by the
+    // Nesterov look-ahead step weights += (1 + momentum) * velocity - momentum * previous velocity
+    void nesterovStep(double[] weights, double[] velocity, double[] gradients, int from, int to, double momentum, double learningRate, double scale);
+
+    // meanSquares = decay * meanSquares + (1 - decay) * gradients^2, then
+    // weights -= learningRate * gradients / (sqrt(meanSquares) + epsilon)
+    void rmsPropStep(double[] weights, double[] meanSquares, double[] gradients, int from, int to, double decay, double learningRate, double epsilon, double scale);
+
+    // Adam moments followed by weights -= stepSize * m / (sqrt(v) * vCorrection + epsilon) + weightDecay * weights,
+    // where stepSize and vCorrection fold in the bias corrections of the current step
+    void adamStep(double[] weights, double[] m, double[] v, double[] gradients, int from, int to,
+                  double beta1, double beta2, double stepSize, double vCorrection, double epsilon, double weightDecay, double scale);
+
+    // The Vector API lives in an incubator module that must be added with
+    // --add-modules jdk.incubator.vector; without it the scalar kernels are used.
+    static DenseKernels create(boolean useVectorKernels) {
+        DenseKernels kernels = useVectorKernels ? loadVectorKernels(DenseKernels.class, "project.VectorKernels") : null;
+        return kernels != null ? kernels : new ScalarKernels();
+    }
+
+    // The SIMD kernels are loaded by name, so only their own files need the
+    // incubator module to compile. Returns null when the class or the module is
+    // missing, which is reported once per run rather than for every model.
+    static <T> T loadVectorKernels(Class<T> type, String className) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            if (VECTOR_FALLBACK_REPORTED.compareAndSet(false, true)) {
+                System.out.println("Vector API not available, using scalar kernels.");
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package project;
+
+// Fully connected layer, the only layer type of the original network
+class DenseLayer implements Layer {
+    private static final int MIN_SPARSE_WIDTH = 32;
+    // Layers are shared between threads and hold no state, so the lists live per thread
+    private static final ThreadLocal<NonZeros> NON_ZEROS = ThreadLocal.withInitial(NonZeros::new);
+
+    private final int inputSize;
+    private final int outputSize;
+
+    public DenseLayer(int inputSize, int outputSize) {
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+    }
+
+    @Override
+    public int inputSize() {
+        return inputSize;
+    }
+
+    @Override
+    public int outputSize() {
+        return outputSize;
+    }
+
+    @Override
+    public int biasCount() {
+        return outputSize;
+    }
+
+    @Override
+    public int fanIn() {
+        return inputSize;
+    }
+
+    // Every kernel call first counts the nonzeros of its sparse operand and
+    // takes the sparse loop below kernels.sparseInputCrossover(). Counting costs
+    // one pass over the operand, which only pays off when each value is
+    // multiplied by enough weights, so narrow products always stay dense.
+    @Override
+    public void forward(DenseKernels kernels, double[] weights, double[] biases, double[] in, double[] out, int count, double[] scratch) {
+        NonZeros nonZeros = sparse(kernels, in, count, inputSize, outputSize);
+        if (nonZeros != null) {
+            kernels.sparseMultiplyTransposed(nonZeros, weights, biases, out, count, inputSize, outputSize);
+        } else {
+            kernels.multiplyTransposed(in, weights, biases, out, count, inputSize, outputSize);
+        }
+    }
+
+    @Override
+    public void backward(DenseKernels kernels, double[] weights, double[] in, double[] outDeltas, double[] inDeltas,
+                         double[] weightGradients, double[] biasGradients, int count, double[] scratch) {
+        NonZeros nonZeros = sparse(kernels, in, count, inputSize, outputSize);
+        if (nonZeros != null) {
+            kernels.sparseAccumulateGradients(outDeltas, nonZeros, weightGradients, biasGradients, count, outputSize, inputSize);
+        } else {
+            kernels.accumulateGradients(outDeltas, in, weightGradients, biasGradients, count, outputSize, inputSize);
+        }
+        if (inDeltas != null) {
+            nonZeros = sparse(kernels, outDeltas, count, outputSize, inputSize);
+            if (nonZeros != null) {
+                kernels.sparseMultiply(nonZeros, weights, inDeltas, count, outputSize, inputSize);
+            } else {
+                kernels.multiply(outDeltas, weights, inDeltas, count, outputSize, inputSize);
+            }
+        }
+    }
+
+    // The nonzero lists of count rows of size values when they are sparse enough
+    // for the sparse kernels, null otherwise. other is the size of the dimension
+    // each value is multiplied across.
+    private static NonZeros sparse(DenseKernels kernels, double[] rows, int count, int size, int other) {
+        if (other < MIN_SPARSE_WIDTH || NonZeros.density(rows, count * size) >= kernels.sparseInputCrossover()) {
+            return null;
+        }
+        NonZeros nonZeros = NON_ZEROS.get();
+        nonZeros.build(rows, count, size);
+        return nonZeros;
+    }
+
+    @Override
+    public int[] describe() {
+        return new int[]{DENSE, inputSize, outputSize};
+    }
+}
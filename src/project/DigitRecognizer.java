@@ -7,23 +7,53 @@ import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.*;
 
 public class DigitRecognizer extends JPanel {
     private static final int IMAGE_SIZE = 28; // Size of the drawing canvas
     private static final int SCALE = 10; // Scale up the canvas size for easier drawing
     private static final int CANVAS_SIZE = IMAGE_SIZE * SCALE; // Actual canvas size
+    private static final long LIVE_PREDICTION_DELAY_MILLIS = 40; // Changes within this window share one prediction
 
     private BufferedImage image;
     private Graphics2D g2d;
     private NeuralNetwork neuralNetwork;
     private JLabel predictionLabel;
+    private JCheckBox liveBox;
+
+    // Predictions run on a background thread. The incremental predictor follows
+    // every pixel change; networks it does not support fall back to a full
+    // prediction on a copy of the pixels.
+    private final transient IncrementalPredictor incremental;
+    private final transient Predictor predictor;
+    private final double[] pixels = new double[IMAGE_SIZE * IMAGE_SIZE]; // 1 for black, as in the training data
+    private final transient ScheduledExecutorService predictions = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "digit-prediction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean predictionPending = new AtomicBoolean();
 
     public DigitRecognizer(NeuralNetwork neuralNetwork) {
         this.neuralNetwork = neuralNetwork;
+        IncrementalPredictor incremental = null;
+        try {
+            incremental = neuralNetwork.toIncrementalPredictor();
+        } catch (UnsupportedOperationException e) {
+            System.out.println(e.getMessage() + ", predicting from scratch.");
+        }
+        this.incremental = incremental;
+        this.predictor = incremental == null ? neuralNetwork.toPredictor() : null;
         this.image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
         this.g2d = image.createGraphics();
         this.g2d.setColor(Color.WHITE);
@@ -53,6 +83,8 @@ public class DigitRecognizer extends JPanel {
         JButton clearButton = new JButton("Vider");
         clearButton.addActionListener(e -> clearCanvas());
 
+        liveBox = new JCheckBox("En direct", true);
+
         predictionLabel = new JLabel("Dessine un nombre et appuis sur 'predire'");
 
         JFrame frame = new JFrame("Prédicteur de chiffre");
@@ -64,6 +96,7 @@ public class DigitRecognizer extends JPanel {
         bottomPanel.setLayout(new FlowLayout());
         bottomPanel.add(predictButton);
         bottomPanel.add(clearButton);
+        bottomPanel.add(liveBox);
 
         frame.add(bottomPanel, BorderLayout.SOUTH);
         frame.add(predictionLabel, BorderLayout.NORTH);
@@ -72,9 +105,24 @@ public class DigitRecognizer extends JPanel {
     }
 
     private void draw(int x, int y) {
+        int column = x / SCALE;
+        int row = y / SCALE;
+        if (x < 0 || y < 0 || column >= IMAGE_SIZE || row >= IMAGE_SIZE || pixels[row * IMAGE_SIZE + column] == 1) {
+            return;
+        }
         g2d.setColor(Color.BLACK);
-        g2d.fillRect(x / SCALE, y / SCALE, 1, 1);
+        g2d.fillRect(column, row, 1, 1);
         repaint();
+
+        synchronized (pixels) {
+            pixels[row * IMAGE_SIZE + column] = 1;
+        }
+        if (incremental != null) {
+            incremental.set(row * IMAGE_SIZE + column, 1);
+        }
+        if (liveBox.isSelected()) {
+            schedulePrediction(LIVE_PREDICTION_DELAY_MILLIS);
+        }
     }
 
     @Override
@@ -87,19 +135,42 @@ public class DigitRecognizer extends JPanel {
         g2d.setColor(Color.WHITE);
         g2d.fillRect(0, 0, IMAGE_SIZE, IMAGE_SIZE);
         repaint();
+        synchronized (pixels) {
+            Arrays.fill(pixels, 0);
+        }
+        if (incremental != null) {
+            incremental.reset(pixels);
+        }
         predictionLabel.setText("Dessine un nombre et appuis sur 'prédire'");
     }
 
     private void predictDigit() {
-        double[] input = new double[IMAGE_SIZE * IMAGE_SIZE];
-        for (int i = 0; i < IMAGE_SIZE; i++) {
-            for (int j = 0; j < IMAGE_SIZE; j++) {
-                input[i * IMAGE_SIZE + j] = (255 - image.getRGB(j, i) & 0xFF) / 255.0;
+        schedulePrediction(0);
+    }
+
+    // Runs a prediction on the background thread unless one is already waiting,
+    // which then picks up this change as well. The EDT only posts the result.
+    private void schedulePrediction(long delayMillis) {
+        if (predictionPending.compareAndSet(false, true)) {
+            predictions.schedule(this::runPrediction, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runPrediction() {
+        predictionPending.set(false);
+        double[] output;
+        if (incremental != null) {
+            output = new double[incremental.outputSize()];
+            incremental.predict(output);
+        } else {
+            double[] input;
+            synchronized (pixels) {
+                input = pixels.clone();
             }
+            output = predictor.predict(input);
         }
-        double[] output = neuralNetwork.forward(input, false);
         int predictedDigit = getMaxIndexValue(output);
-        predictionLabel.setText("Chiffre prédit: " + predictedDigit);
+        SwingUtilities.invokeLater(() -> predictionLabel.setText("Chiffre prédit: " + predictedDigit));
     }
 
     public static double[][] readDataFromFile(String filename) {
@@ -107,14 +178,8 @@ public class DigitRecognizer extends JPanel {
         try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
             String line;
             while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.startsWith("{") && line.endsWith("},")) {
-                    line = line.substring(1, line.length() - 2).trim();
-                    String[] values = line.split(",");
-                    double[] data = new double[values.length];
-                    for (int i = 0; i < values.length; i++) {
-                        data[i] = Double.parseDouble(values[i].trim());
-                    }
+                double[] data = BinaryDataset.parseRow(line);
+                if (data != null) {
                     dataList.add(data);
                 }
             }
@@ -153,20 +218,44 @@ public class DigitRecognizer extends JPanel {
 
             // Create a new neural network
             neuralNetwork = new NeuralNetwork(numLayers, neuronsPerLayer, learningRate, momentum, useLeakyReLU, 0.3);
+            neuralNetwork.setOutputHead(OutputHead.SOFTMAX_CROSS_ENTROPY);
         }
 
-        // Read training data from file
-        double[][] inputs = readDataFromFile("datasets/digit_recognition/trainingData.txt");
-        double[][] targets = readDataFromFile("datasets/digit_recognition/trainingLabels.txt");
+        // Map the training data, converting the text files to the binary format on first use
+        BinaryDataset inputs = BinaryDataset.openOrConvert("datasets/digit_recognition/trainingData.txt");
+        BinaryDataset targets = BinaryDataset.openOrConvert("datasets/digit_recognition/trainingLabels.txt");
 
-        // Read testing data from file
-        double[][] tests = readDataFromFile("datasets/digit_recognition/testingData.txt");
+        // Map the testing data
+        BinaryDataset tests = BinaryDataset.openOrConvert("datasets/digit_recognition/testingData.txt");
+        if (inputs == null || targets == null || tests == null) {
+            System.out.println("Failed to load the datasets. Exiting.");
+            return;
+        }
+
+        // The testing data has no labels, so the last tenth of the training data
+        // is held out to measure the model on samples it never trains on
+        int validationStart = inputs.size() * 9 / 10;
+        neuralNetwork.setValidation(inputs.slice(validationStart, inputs.size()), targets.slice(validationStart, targets.size()));
+        neuralNetwork.setEarlyStopping(3, 0);
+        neuralNetwork.setCheckpoints("checkpoint", 1000);
+
+        if (Files.exists(Path.of("trainedModels", "checkpoint"))) {
+            System.out.println("An earlier training run left a checkpoint. Do you want to resume it? (yes/no)");
+            if (scanner.nextLine().equalsIgnoreCase("yes")) {
+                try {
+                    neuralNetwork.resumeFromCheckpoint("checkpoint");
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage() + ", starting over.");
+                }
+            }
+        }
 
         // Train the neural network
         System.out.print("Enter the number of epochs: ");
         int epochs = scanner.nextInt();
         int batchSize = 16;
-        neuralNetwork.train(inputs, targets, batchSize, epochs);
+        neuralNetwork.setParallelism(NeuralNetwork.workersFor(batchSize), false);
+        neuralNetwork.train(inputs.slice(0, validationStart), targets.slice(0, validationStart), batchSize, epochs);
 
         // Save the model after training
         System.out.print("Enter the file name to save the model: ");
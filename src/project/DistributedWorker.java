@@ -0,0 +1,145 @@
+package project;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+
+// One process of distributed training, see ParameterServer. The worker gets
+// its rank, the training settings and the initial parameters from the server,
+// trains an ordinary NeuralNetwork on its shard of the dataset, and every
+// syncEvery batches, and at the end of every epoch, sends the change of its
+// parameters since the last round and replaces them with the server's average.
+// With a top-k fraction only that share of the change is sent; the rest is
+// kept and added to the next round's change, so no update is lost, only late.
+// The optimizer's momentum stays local to each worker, and each rank shuffles
+// and drops out with its own split of the seed.
+//
+// java project.DistributedWorker [--host localhost] [--port 5005] [--quiet]
+class DistributedWorker implements TrainingListener {
+    private final NeuralNetwork network;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int syncEvery;
+    private final int batchesPerEpoch;
+    private final int keep; // Values sent per round
+    private final double[] global; // Parameters after the last round, as the server has them
+    private final double[] change;
+    private final double[] residual; // Change not sent yet
+    private final float[] update;
+    private final float[] average;
+    private final float[] scratch;
+    private long bytesSent;
+    private int rounds;
+
+    DistributedWorker(NeuralNetwork network, double[] global, DataInputStream in, DataOutputStream out,
+                      int syncEvery, int batchesPerEpoch, double topK) {
+        int n = global.length;
+        this.network = network;
+        this.in = in;
+        this.out = out;
+        this.syncEvery = syncEvery;
+        this.batchesPerEpoch = batchesPerEpoch;
+        this.keep = topK > 0 ? Math.max(1, (int) Math.ceil(topK * n)) : n;
+        this.global = global;
+        this.change = new double[n];
+        this.residual = new double[n];
+        this.update = new float[n];
+        this.average = new float[n];
+        this.scratch = keep < n ? new float[n] : null;
+    }
+
+    @Override
+    public void batchFinished(BatchMetrics batch) {
+        if (batch.index % syncEvery == 0 || batch.index == batchesPerEpoch) {
+            try {
+                synchronize();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Lost the parameter server", e);
+            }
+        }
+    }
+
+    private void synchronize() throws IOException {
+        ParameterUpdates.gather(network, change);
+        for (int j = 0; j < change.length; j++) {
+            change[j] -= global[j];
+        }
+        int kept = ParameterUpdates.compress(change, residual, update, keep, scratch);
+        bytesSent += ParameterUpdates.write(out, update, kept);
+        out.flush();
+        if (ParameterUpdates.read(in, average) < 0) {
+            throw new IOException("The parameter server ended training early");
+        }
+        // The same float additions as on the server, so both sides stay identical
+        for (int j = 0; j < global.length; j++) {
+            global[j] += average[j];
+        }
+        ParameterUpdates.scatter(global, network);
+        rounds++;
+    }
+
+    public static void main(String[] args) {
+        String host = "localhost";
+        int port = ParameterServer.DEFAULT_PORT;
+        boolean quiet = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host" -> host = args[++i];
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--quiet" -> quiet = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            out.writeInt(ParameterUpdates.MAGIC);
+            out.flush();
+            int rank = in.readInt();
+            int workers = in.readInt();
+            ParameterServer.Settings settings = ParameterServer.Settings.parse(in.readUTF().split(" "));
+            double[] global = new double[in.readInt()];
+            for (int j = 0; j < global.length; j++) {
+                global[j] = in.readDouble();
+            }
+
+            BinaryDataset inputs = BinaryDataset.openOrConvert(settings.inputs);
+            BinaryDataset targets = BinaryDataset.openOrConvert(settings.targets);
+            if (inputs == null || targets == null) {
+                System.out.println("Failed to load the datasets. Exiting.");
+                return;
+            }
+            NeuralNetwork network = settings.network(inputs.width(), targets.width());
+            // Its own shuffle and dropout streams; the weights it draws are replaced by scatter
+            network.setSeed(RandomStreams.split(settings.seed, rank));
+            if (ParameterUpdates.count(network) != global.length) {
+                throw new IOException("The server has " + global.length + " parameters, this network " + ParameterUpdates.count(network));
+            }
+            ParameterUpdates.scatter(global, network);
+            network.setLogging(!quiet);
+
+            int shard = settings.trainingSize(inputs.size()) / workers;
+            int batchesPerEpoch = (shard + settings.batchSize - 1) / settings.batchSize;
+            DistributedWorker worker = new DistributedWorker(network, global, in, out, settings.syncEvery, batchesPerEpoch, settings.topK);
+            network.addTrainingListener(worker);
+            if (!quiet) {
+                System.out.printf("Worker %d of %d training on rows %d to %d%n", rank + 1, workers, rank * shard, (rank + 1) * shard);
+            }
+            network.train(inputs.slice(rank * shard, (rank + 1) * shard), targets.slice(rank * shard, (rank + 1) * shard),
+                    settings.batchSize, settings.epochs);
+            out.writeByte(ParameterUpdates.DONE);
+            out.flush();
+            if (!quiet) {
+                System.out.printf("Worker %d sent %.1f MB in %d rounds%n", rank + 1, worker.bytesSent / 1e6, worker.rounds);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package project;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+// Tracks the validation loss across epochs for NeuralNetwork.setEarlyStopping.
+// The parameters of the best epoch are copied in memory, so the network can go
+// back to them once the loss has not improved for patience epochs. Serializable
+// so that a checkpoint resumes with the same best model and patience count.
+class EarlyStopping implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final int patience;
+    private final double minDelta; // Smallest decrease of the loss that counts as an improvement
+    private double bestLoss = Double.POSITIVE_INFINITY;
+    private int bestEpoch; // 1-based, 0 until the first epoch was recorded
+    private int staleEpochs;
+    private double[][] bestWeights;
+    private double[][] bestBiases;
+
+    EarlyStopping(int patience, double minDelta) {
+        this.patience = patience;
+        this.minDelta = minDelta;
+    }
+
+    // Records the validation loss of an epoch and returns true when training
+    // should stop
+    boolean record(int epoch, double loss, double[][] weights, double[][] biases) {
+        if (loss < bestLoss - minDelta) {
+            bestLoss = loss;
+            bestEpoch = epoch;
+            staleEpochs = 0;
+            bestWeights = copy(weights, bestWeights);
+            bestBiases = copy(biases, bestBiases);
+        } else {
+            staleEpochs++;
+        }
+        return shouldStop();
+    }
+
+    boolean shouldStop() {
+        return staleEpochs >= patience;
+    }
+
+    // Copies the best parameters back; returns false when there are none yet or
+    // the last epoch was the best
+    boolean restoreBest(double[][] weights, double[][] biases) {
+        if (bestWeights == null || staleEpochs == 0) {
+            return false;
+        }
+        copy(bestWeights, weights);
+        copy(bestBiases, biases);
+        return true;
+    }
+
+    double getBestLoss() {
+        return bestLoss;
+    }
+
+    int getBestEpoch() {
+        return bestEpoch;
+    }
+
+    // Reuses dst when it has the right shape; entry 0 (the input layer) stays null
+    private static double[][] copy(double[][] src, double[][] dst) {
+        if (dst == null) {
+            dst = new double[src.length][];
+        }
+        for (int i = 1; i < src.length; i++) {
+            if (dst[i] == null) {
+                dst[i] = src[i].clone();
+            } else {
+                System.arraycopy(src[i], 0, dst[i], 0, src[i].length);
+            }
+        }
+        return dst;
+    }
+}
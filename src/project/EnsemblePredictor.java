@@ -0,0 +1,95 @@
+package project;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Averages the outputs of several registry models. Every member runs the whole
+// batch in one predictBatch call and the results are summed into the caller's
+// output rows, so the cost is one batched forward pass per member plus a single
+// sweep over the outputs. Members are looked up in the ModelRegistry on every
+// batch, which lets a hot-reloaded or evicted model take part without rebuilding
+// the ensemble; the registry's budget should cover all members at once, or they
+// evict each other on every batch.
+class EnsemblePredictor implements BatchPredictor {
+    private final ModelRegistry registry;
+    private final String[] names;
+    private final int inputSize;
+    private final int outputSize;
+    private final ThreadLocal<double[][]> memberOutputs = ThreadLocal.withInitial(() -> new double[0][]);
+
+    public EnsemblePredictor(ModelRegistry registry, String... names) throws IOException {
+        if (names.length == 0) {
+            throw new IllegalArgumentException("An ensemble needs at least one model");
+        }
+        this.registry = registry;
+        this.names = names.clone();
+        Predictor first = registry.get(names[0]);
+        this.inputSize = first.inputSize();
+        this.outputSize = first.outputSize();
+        for (String name : names) {
+            member(name);
+        }
+    }
+
+    @Override
+    public int inputSize() {
+        return inputSize;
+    }
+
+    @Override
+    public int outputSize() {
+        return outputSize;
+    }
+
+    // Returns a new array, see predictBatch for the batched form
+    public double[] predict(double[] input) {
+        double[][] outputs = {new double[outputSize]};
+        predictBatch(new double[][]{input}, outputs, 1);
+        return outputs[0];
+    }
+
+    @Override
+    public void predictBatch(double[][] inputs, double[][] outputs, int count) {
+        double[][] scratch = memberOutputs(count);
+        try {
+            member(names[0]).predictBatch(inputs, outputs, count);
+            for (int m = 1; m < names.length; m++) {
+                member(names[m]).predictBatch(inputs, scratch, count);
+                for (int s = 0; s < count; s++) {
+                    double[] sum = outputs[s];
+                    double[] row = scratch[s];
+                    for (int j = 0; j < outputSize; j++) {
+                        sum[j] += row[j];
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        double scale = 1.0 / names.length;
+        for (int s = 0; s < count; s++) {
+            double[] sum = outputs[s];
+            for (int j = 0; j < outputSize; j++) {
+                sum[j] *= scale;
+            }
+        }
+    }
+
+    private Predictor member(String name) throws IOException {
+        Predictor predictor = registry.get(name);
+        if (predictor.inputSize() != inputSize || predictor.outputSize() != outputSize) {
+            throw new IllegalStateException("Model " + name + " maps " + predictor.inputSize() + " inputs to "
+                    + predictor.outputSize() + " outputs, the ensemble expects " + inputSize + " to " + outputSize);
+        }
+        return predictor;
+    }
+
+    private double[][] memberOutputs(int count) {
+        double[][] scratch = memberOutputs.get();
+        if (scratch.length < count) {
+            scratch = new double[count][outputSize];
+            memberOutputs.set(scratch);
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,50 @@
+package project;
+
+// Summary of one training epoch. The per-layer arrays are indexed by layer like
+// the weights, so entry 0 (the input layer) is unused. Gradient norms and dead
+// neurons are measured on the last batch of the epoch.
+class EpochMetrics {
+    final int epoch;
+    final int samples;
+    final long nanos;
+    final double loss;
+    final double accuracy; // Percentage
+    final double validationLoss; // NaN without a validation set
+    final double validationAccuracy;
+    final long loadNanos; // Phase times summed over the batches
+    final long forwardNanos;
+    final long backwardNanos;
+    final long updateNanos;
+    final long allocatedBytes; // Allocated by the training thread, -1 if the JVM cannot tell
+    final double[] weightNorms;
+    final double[] gradientNorms; // Of the mean gradient
+    final double[] deadFractions; // Neurons whose input was never positive for any sample
+
+    EpochMetrics(int epoch, int samples, long nanos, double loss, double accuracy, double validationLoss, double validationAccuracy,
+                 long loadNanos, long forwardNanos, long backwardNanos, long updateNanos, long allocatedBytes,
+                 double[] weightNorms, double[] gradientNorms, double[] deadFractions) {
+        this.epoch = epoch;
+        this.samples = samples;
+        this.nanos = nanos;
+        this.loss = loss;
+        this.accuracy = accuracy;
+        this.validationLoss = validationLoss;
+        this.validationAccuracy = validationAccuracy;
+        this.loadNanos = loadNanos;
+        this.forwardNanos = forwardNanos;
+        this.backwardNanos = backwardNanos;
+        this.updateNanos = updateNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.weightNorms = weightNorms;
+        this.gradientNorms = gradientNorms;
+        this.deadFractions = deadFractions;
+    }
+
+    public double samplesPerSecond() {
+        return nanos == 0 ? 0 : samples * 1e9 / nanos;
+    }
+
+    public double allocatedBytesPerSecond() {
+        return nanos == 0 || allocatedBytes < 0 ? 0 : allocatedBytes * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,48 @@
+package project;
+
+// Marks the switch from image layers to dense ones. Images are already stored
+// as one flat row per sample, so the values are copied through unchanged.
+class FlattenLayer implements Layer {
+    private final int size;
+
+    public FlattenLayer(int size) {
+        this.size = size;
+    }
+
+    // Flattens the output of an image layer
+    public FlattenLayer(Conv2DLayer input) {
+        this(input.outputSize());
+    }
+
+    public FlattenLayer(Pool2DLayer input) {
+        this(input.outputSize());
+    }
+
+    @Override
+    public int inputSize() {
+        return size;
+    }
+
+    @Override
+    public int outputSize() {
+        return size;
+    }
+
+    @Override
+    public void forward(DenseKernels kernels, double[] weights, double[] biases, double[] in, double[] out, int count, double[] scratch) {
+        System.arraycopy(in, 0, out, 0, count * size);
+    }
+
+    @Override
+    public void backward(DenseKernels kernels, double[] weights, double[] in, double[] outDeltas, double[] inDeltas,
+                         double[] weightGradients, double[] biasGradients, int count, double[] scratch) {
+        if (inDeltas != null) {
+            System.arraycopy(outDeltas, 0, inDeltas, 0, count * size);
+        }
+    }
+
+    @Override
+    public int[] describe() {
+        return new int[]{FLATTEN, size};
+    }
+}
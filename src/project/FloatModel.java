@@ -0,0 +1,105 @@
+package project;
+
+// Inference-only copy of a trained NeuralNetwork with float32 parameters, which
+// halves the memory read per prediction. Created by NeuralNetwork.toFloatModel.
+class FloatModel {
+    private final int numLayers;
+    private final int[] neuronsPerLayer;
+    private final float[] slopes; // Negative slope of every layer's Activation
+    private final OutputHead outputHead;
+    private final float[][] weights; // Same flat row-major layout as NeuralNetwork
+    private final float[][] biases;
+    private final ThreadLocal<float[][]> activations; // Per-thread scratch, one buffer per layer
+
+    FloatModel(int[] neuronsPerLayer, double[][] weights, double[][] biases, Activation[] layerActivations, OutputHead outputHead) {
+        this.numLayers = neuronsPerLayer.length;
+        this.neuronsPerLayer = neuronsPerLayer.clone();
+        this.slopes = slopes(layerActivations, outputHead);
+        this.outputHead = outputHead;
+        this.weights = new float[numLayers][];
+        this.biases = new float[numLayers][];
+        for (int i = 1; i < numLayers; i++) {
+            this.weights[i] = toFloat(weights[i]);
+            this.biases[i] = toFloat(biases[i]);
+        }
+        this.activations = ThreadLocal.withInitial(() -> {
+            float[][] buffers = new float[numLayers][];
+            for (int i = 0; i < numLayers; i++) {
+                buffers[i] = new float[this.neuronsPerLayer[i]];
+            }
+            return buffers;
+        });
+    }
+
+    // The returned array belongs to the calling thread and is reused by its next call
+    public float[] forward(double[] input) {
+        float[][] a = activations.get();
+        for (int k = 0; k < neuronsPerLayer[0]; k++) {
+            a[0][k] = (float) input[k];
+        }
+
+        for (int i = 1; i < numLayers; i++) {
+            int stride = neuronsPerLayer[i - 1];
+            float[] w = weights[i];
+            float[] in = a[i - 1];
+            float[] out = a[i];
+            for (int j = 0; j < neuronsPerLayer[i]; j++) {
+                int row = j * stride;
+                // Four partial sums keep the loop free of a single serial dependency
+                float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                int k = 0;
+                for (; k + 4 <= stride; k += 4) {
+                    s0 += w[row + k] * in[k];
+                    s1 += w[row + k + 1] * in[k + 1];
+                    s2 += w[row + k + 2] * in[k + 2];
+                    s3 += w[row + k + 3] * in[k + 3];
+                }
+                for (; k < stride; k++) {
+                    s0 += w[row + k] * in[k];
+                }
+                float v = biases[i][j] + (s0 + s1) + (s2 + s3);
+                out[j] = v > 0 ? v : slopes[i] * v;
+            }
+        }
+        outputHead.apply(a[numLayers - 1], neuronsPerLayer[numLayers - 1]);
+        return a[numLayers - 1];
+    }
+
+    // A head takes the raw sums of the last layer, which a slope of one passes through
+    static float[] slopes(Activation[] layerActivations, OutputHead outputHead) {
+        float[] slopes = new float[layerActivations.length];
+        for (int i = 1; i < slopes.length; i++) {
+            slopes[i] = (float) layerActivations[i].slope;
+        }
+        if (outputHead.replacesActivation()) {
+            slopes[slopes.length - 1] = 1;
+        }
+        return slopes;
+    }
+
+    public long parameterBytes() {
+        long bytes = 0;
+        for (int i = 1; i < numLayers; i++) {
+            bytes += 4L * (weights[i].length + biases[i].length);
+        }
+        return bytes;
+    }
+
+    static float[] toFloat(double[] values) {
+        float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (float) values[i];
+        }
+        return result;
+    }
+
+    static int argMax(float[] values) {
+        int maxIndex = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[maxIndex]) {
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+}
@@ -0,0 +1,199 @@
+package project;
+
+import java.util.Arrays;
+
+// Inference-only form of a dense NeuralNetwork, built by NeuralNetwork.freeze.
+// There is no training path left: dropout is gone, and each layer is a single
+// kernel call with the bias add and activation fused into the end of every
+// row's dot product. Neurons that were found dead on a calibration set are cut
+// out together with their weight row and the matching column of the next
+// layer, and layers that are sparse enough after magnitude pruning are stored
+// as CSR, so both the work per request and the resident size shrink.
+class FrozenModel {
+    private final int numLayers;
+    private final int[] sizes; // Neurons per layer after dead ones were removed
+    private final double[] slopes; // Negative slope of every layer's Activation
+    private final OutputHead outputHead;
+    private final double[][] weights; // Dense row-major, null for CSR layers
+    private final double[][] values; // CSR nonzeros row by row, null for dense layers
+    private final int[][] columns;
+    private final int[][] rowStarts; // Row j is values[rowStarts[j] .. rowStarts[j + 1])
+    private final double[][] biases;
+    private final DenseKernels kernels;
+    private final ThreadLocal<double[][]> activations; // Per-thread buffers, entry 0 unused
+
+    // alive[i][j] is false for neurons of layer i to remove, a null entry keeps
+    // the whole layer. pruneFraction of every layer's smallest weights are zeroed.
+    FrozenModel(int[] neuronsPerLayer, double[][] weights, double[][] biases, Activation[] layerActivations, OutputHead outputHead,
+                boolean[][] alive, double pruneFraction, boolean useVectorKernels) {
+        this.numLayers = neuronsPerLayer.length;
+        this.outputHead = outputHead;
+        this.kernels = DenseKernels.create(useVectorKernels);
+        this.sizes = new int[numLayers];
+        this.slopes = new double[numLayers];
+        this.weights = new double[numLayers][];
+        this.values = new double[numLayers][];
+        this.columns = new int[numLayers][];
+        this.rowStarts = new int[numLayers][];
+        this.biases = new double[numLayers][];
+
+        int[][] kept = new int[numLayers][];
+        for (int i = 0; i < numLayers; i++) {
+            kept[i] = keptNeurons(neuronsPerLayer[i], alive[i]);
+            sizes[i] = kept[i].length;
+        }
+        for (int i = 1; i < numLayers; i++) {
+            // A head takes the raw sums of the last layer, which a slope of one passes through
+            slopes[i] = i == numLayers - 1 && outputHead.replacesActivation() ? 1 : layerActivations[i].slope;
+            int stride = neuronsPerLayer[i - 1];
+            int rows = sizes[i];
+            int cols = sizes[i - 1];
+            double[] w = new double[rows * cols];
+            double[] b = new double[rows];
+            for (int r = 0; r < rows; r++) {
+                int j = kept[i][r];
+                b[r] = biases[i][j];
+                for (int c = 0; c < cols; c++) {
+                    w[r * cols + c] = weights[i][j * stride + kept[i - 1][c]];
+                }
+            }
+            prune(w, pruneFraction);
+            this.biases[i] = b;
+            // Below the crossover CSR is faster and, at 12 bytes per nonzero
+            // against 8 per weight, also smaller
+            if (nonZeros(w) < kernels.sparseCrossover() * w.length) {
+                toCsr(i, w, rows, cols);
+            } else {
+                this.weights[i] = w;
+            }
+        }
+        this.activations = ThreadLocal.withInitial(() -> {
+            double[][] buffers = new double[numLayers][];
+            for (int i = 1; i < numLayers; i++) {
+                buffers[i] = new double[sizes[i]];
+            }
+            return buffers;
+        });
+    }
+
+    public int inputSize() {
+        return sizes[0];
+    }
+
+    public int outputSize() {
+        return sizes[numLayers - 1];
+    }
+
+    // Neurons per layer after dead ones were removed
+    public int[] getSizes() {
+        return sizes.clone();
+    }
+
+    // Returns a new array, use the two-argument form to avoid the allocation
+    public double[] predict(double[] input) {
+        double[] output = new double[outputSize()];
+        predict(input, output);
+        return output;
+    }
+
+    public void predict(double[] input, double[] output) {
+        double[][] a = activations.get();
+        double[] in = input;
+        for (int i = 1; i < numLayers; i++) {
+            if (rowStarts[i] != null) {
+                kernels.sparseMultiplyActivate(in, values[i], columns[i], rowStarts[i], biases[i], a[i], sizes[i], slopes[i]);
+            } else {
+                kernels.multiplyActivate(in, weights[i], biases[i], a[i], sizes[i - 1], sizes[i], slopes[i]);
+            }
+            in = a[i];
+        }
+        outputHead.apply(in, in, 1, outputSize());
+        System.arraycopy(in, 0, output, 0, outputSize());
+    }
+
+    // Nonzero weights left after pruning
+    public long weightCount() {
+        long count = 0;
+        for (int i = 1; i < numLayers; i++) {
+            count += weights[i] != null ? nonZeros(weights[i]) : values[i].length;
+        }
+        return count;
+    }
+
+    public long parameterBytes() {
+        long bytes = 0;
+        for (int i = 1; i < numLayers; i++) {
+            bytes += 8L * biases[i].length;
+            bytes += weights[i] != null ? 8L * weights[i].length : 12L * values[i].length + 4L * rowStarts[i].length;
+        }
+        return bytes;
+    }
+
+    // Number of layers stored as CSR
+    public int sparseLayers() {
+        int count = 0;
+        for (int i = 1; i < numLayers; i++) {
+            count += rowStarts[i] != null ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static int[] keptNeurons(int size, boolean[] alive) {
+        int[] kept = new int[size];
+        int count = 0;
+        for (int j = 0; j < size; j++) {
+            if (alive == null || alive[j]) {
+                kept[count++] = j;
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    // Zeroes the fraction of weights with the smallest magnitude
+    private static void prune(double[] w, double fraction) {
+        int count = (int) (w.length * fraction);
+        if (count == 0) {
+            return;
+        }
+        double[] magnitudes = new double[w.length];
+        for (int k = 0; k < w.length; k++) {
+            magnitudes[k] = Math.abs(w[k]);
+        }
+        Arrays.sort(magnitudes);
+        double threshold = magnitudes[count - 1];
+        for (int k = 0; k < w.length && count > 0; k++) {
+            if (Math.abs(w[k]) <= threshold) {
+                w[k] = 0;
+                count--;
+            }
+        }
+    }
+
+    private static int nonZeros(double[] w) {
+        int count = 0;
+        for (double v : w) {
+            count += v != 0 ? 1 : 0;
+        }
+        return count;
+    }
+
+    private void toCsr(int i, double[] w, int rows, int cols) {
+        int nonZeros = nonZeros(w);
+        values[i] = new double[nonZeros];
+        columns[i] = new int[nonZeros];
+        rowStarts[i] = new int[rows + 1];
+        int p = 0;
+        for (int r = 0; r < rows; r++) {
+            rowStarts[i][r] = p;
+            for (int c = 0; c < cols; c++) {
+                double v = w[r * cols + c];
+                if (v != 0) {
+                    values[i][p] = v;
+                    columns[i][p] = c;
+                    p++;
+                }
+            }
+        }
+        rowStarts[i][rows] = p;
+    }
+}
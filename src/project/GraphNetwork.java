@@ -0,0 +1,651 @@
+package project;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// A network whose layers form a directed acyclic graph instead of a chain, for
+// skip and residual connections that NeuralNetwork cannot express. Node 0 is
+// the input; every other node is a layer of any width whose weighted sums add
+// up all of its incoming edges. A dense edge is a weight block of to-size rows
+// of from-size values, laid out like a DenseLayer's, and an identity edge adds
+// the source's activations as they are (a residual connection, same widths).
+// The last node added is the output.
+//
+// This is what Main's double[layers][maxN][layers][maxN] weight tensor was
+// reaching for: any layer may feed any later one. Here only the edges that
+// exist hold parameters, so memory grows with the sum of from-size * to-size
+// over the edges rather than layers^2 * maxN^2, and the widths may all differ.
+//
+// The first forward pass fixes the graph: nodes are sorted into levels by
+// their longest path from the input, parameters are initialized, and nothing
+// can be added afterwards. The nodes of a level only read lower levels, so
+// parallel branches are evaluated concurrently on a ForkJoinPool when there is
+// enough work per node; backward runs the levels in reverse and each node pulls
+// its error from its consumers, so the nodes of a level never write to the same
+// buffers either. No dropout.
+class GraphNetwork implements BatchPredictor {
+    // Multiply-adds per node below which a level runs on the calling thread,
+    // since submitting to the pool costs more than a small product
+    private static final int PARALLEL_WORK = 1 << 16;
+    private static final long INIT_STREAM = 0;
+    private static final long EPOCH_STREAM = 1;
+
+    private static final class Node {
+        final int size;
+        final Activation activation;
+        final List<Edge> inputs = new ArrayList<>();
+        final List<Edge> outputs = new ArrayList<>();
+        double[] bias; // Carried by the first dense input edge
+        int level;
+
+        Node(int size, Activation activation) {
+            this.size = size;
+            this.activation = activation;
+        }
+    }
+
+    private static final class Edge {
+        final int from;
+        final int to;
+        final boolean dense;
+        double[] weights; // to-size rows of from-size values, null for identity edges
+        int slot; // Index among the dense edges
+        boolean carriesBias;
+
+        Edge(int from, int to, boolean dense) {
+            this.from = from;
+            this.to = to;
+            this.dense = dense;
+        }
+    }
+
+    // Per-node buffers of count sample-major rows; the input node's activations
+    // hold the batch itself
+    private final class Workspace {
+        final int capacity;
+        final double[][] sums;
+        final double[][] activations;
+        final double[][] deltas; // Error with respect to the sums
+        final double[][] scratch; // One row block per node, for the second and later edges
+        final double[] ones; // Dropout mask of scaleByDerivative
+        final double[] targets;
+
+        Workspace(int capacity) {
+            this.capacity = capacity;
+            int n = nodes.size();
+            sums = new double[n][];
+            activations = new double[n][];
+            deltas = new double[n][];
+            scratch = new double[n][];
+            int widest = 0;
+            for (int v = 0; v < n; v++) {
+                int length = capacity * nodes.get(v).size;
+                activations[v] = new double[length];
+                if (v > 0) {
+                    sums[v] = new double[length];
+                    deltas[v] = new double[length];
+                    scratch[v] = new double[length];
+                }
+                widest = Math.max(widest, length);
+            }
+            ones = new double[widest];
+            Arrays.fill(ones, 1);
+            targets = new double[capacity * outputSize()];
+        }
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<Edge> denseEdges = new ArrayList<>(); // Optimizer slots 2e and 2e + 1
+    private final DenseKernels kernels;
+    private final ForkJoinPool pool; // null with a single worker
+    private OutputHead outputHead = OutputHead.SOFTMAX_CROSS_ENTROPY;
+    private Optimizer optimizer;
+    private long seed = 42;
+    private boolean quiet;
+
+    private int[][] levels; // Node indices per level, set when the graph is fixed
+    private double[][] weightGradients; // Per dense edge
+    private double[][] biasGradients; // Per node
+    private double[] noBias; // Zeros as wide as the widest node
+    private Workspace training;
+    private final ThreadLocal<Workspace> inference = new ThreadLocal<>();
+
+    public GraphNetwork(int inputSize, double learningRate, double momentum, int workers, boolean useVectorKernels) {
+        nodes.add(new Node(inputSize, Activation.LINEAR));
+        this.kernels = DenseKernels.create(useVectorKernels);
+        this.optimizer = new NesterovOptimizer(learningRate, momentum);
+        this.pool = workers > 1 ? new ForkJoinPool(workers) : null;
+    }
+
+    // A residual MLP: a dense stem to width, then blocks whose output is
+    // activation(sum of the branches + block input), each branch being two
+    // dense layers of the given width, then a dense output layer. With more
+    // than one branch a block is the MLP form of a ResNeXt block, and its
+    // branches run in parallel.
+    public static GraphNetwork residualMlp(int inputSize, int width, int blocks, int branches, int outputSize,
+                                           double learningRate, double momentum, int workers, boolean useVectorKernels) {
+        GraphNetwork network = new GraphNetwork(inputSize, learningRate, momentum, workers, useVectorKernels);
+        int previous = network.addNode(width, Activation.RELU);
+        network.connect(0, previous);
+        for (int b = 0; b < blocks; b++) {
+            int[] hidden = new int[branches];
+            for (int i = 0; i < branches; i++) {
+                hidden[i] = network.addNode(width, Activation.RELU);
+                network.connect(previous, hidden[i]);
+            }
+            int sum = network.addNode(width, Activation.RELU);
+            for (int i = 0; i < branches; i++) {
+                network.connect(hidden[i], sum);
+            }
+            network.skip(previous, sum);
+            previous = sum;
+        }
+        int output = network.addNode(outputSize, Activation.LINEAR);
+        network.connect(previous, output);
+        return network;
+    }
+
+    // Returns the index of the new node
+    public int addNode(int size, Activation activation) {
+        checkOpen();
+        nodes.add(new Node(size, activation));
+        return nodes.size() - 1;
+    }
+
+    public void connect(int from, int to) {
+        addEdge(new Edge(from, to, true));
+    }
+
+    // Identity edge, adding the activations of from to the sums of to
+    public void skip(int from, int to) {
+        if (nodes.get(from).size != nodes.get(to).size) {
+            throw new IllegalArgumentException("A skip connection needs equal widths, node " + from + " has "
+                    + nodes.get(from).size + " and node " + to + " has " + nodes.get(to).size);
+        }
+        addEdge(new Edge(from, to, false));
+    }
+
+    public void setOutputHead(OutputHead outputHead) {
+        this.outputHead = outputHead;
+    }
+
+    // Replaces the default Nesterov momentum; the slots are 2e for the weights of
+    // dense edge e and 2e + 1 for the biases it carries, which are empty unless
+    // e is the first dense input of its node
+    public void setOptimizer(Optimizer optimizer) {
+        checkOpen();
+        this.optimizer = optimizer;
+    }
+
+    public void setSeed(long seed) {
+        checkOpen();
+        this.seed = seed;
+    }
+
+    public void setLogging(boolean enabled) {
+        quiet = !enabled;
+    }
+
+    @Override
+    public int inputSize() {
+        return nodes.get(0).size;
+    }
+
+    @Override
+    public int outputSize() {
+        return nodes.get(nodes.size() - 1).size;
+    }
+
+    // Bytes of weights and biases
+    public long parameterBytes() {
+        long count = 0;
+        for (Edge e : denseEdges) {
+            count += (long) nodes.get(e.from).size * nodes.get(e.to).size;
+        }
+        for (int v = 1; v < nodes.size(); v++) {
+            count += nodes.get(v).size;
+        }
+        return 8 * count;
+    }
+
+    // Bytes Main's padded tensor and biases would take for the same nodes
+    public long paddedTensorBytes() {
+        long layers = nodes.size();
+        long widest = nodes.stream().mapToInt(n -> n.size).max().orElse(0);
+        return 8 * (layers * widest * layers * widest + layers * widest);
+    }
+
+    // Levels from the input to the output, for printing the schedule
+    public int[][] levels() {
+        fix();
+        int[][] copy = new int[levels.length][];
+        for (int l = 0; l < levels.length; l++) {
+            copy[l] = levels[l].clone();
+        }
+        return copy;
+    }
+
+    public double[] predict(double[] input) {
+        double[][] outputs = {new double[outputSize()]};
+        predictBatch(new double[][]{input}, outputs, 1);
+        return outputs[0];
+    }
+
+    @Override
+    public void predictBatch(double[][] inputs, double[][] outputs, int count) {
+        fix();
+        Workspace ws = inference.get();
+        if (ws == null || ws.capacity < count) {
+            ws = new Workspace(count);
+            inference.set(ws);
+        }
+        int inputSize = inputSize();
+        int outputSize = outputSize();
+        for (int s = 0; s < count; s++) {
+            System.arraycopy(inputs[s], 0, ws.activations[0], s * inputSize, inputSize);
+        }
+        forward(ws, count);
+        double[] output = ws.activations[nodes.size() - 1];
+        for (int s = 0; s < count; s++) {
+            System.arraycopy(output, s * outputSize, outputs[s], 0, outputSize);
+        }
+    }
+
+    public void train(double[][] inputs, double[][] targets, int batchSize, int epochs) {
+        train(Dataset.of(inputs), Dataset.of(targets), batchSize, epochs);
+    }
+
+    public void train(Dataset inputs, Dataset targets, int batchSize, int epochs) {
+        fix();
+        if (training == null || training.capacity < batchSize) {
+            training = new Workspace(batchSize);
+        }
+        Workspace ws = training;
+        int inputSize = inputSize();
+        int outputSize = outputSize();
+        int[] order = new int[inputs.size()];
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            long startTime = System.nanoTime();
+            permute(order, RandomStreams.split(RandomStreams.split(seed, EPOCH_STREAM), epoch));
+            double loss = 0;
+            int correct = 0;
+            for (int i = 0; i < order.length; i += batchSize) {
+                int count = Math.min(batchSize, order.length - i);
+                for (int s = 0; s < count; s++) {
+                    inputs.read(order[i + s], ws.activations[0], s * inputSize);
+                    targets.read(order[i + s], ws.targets, s * outputSize);
+                }
+                forward(ws, count);
+                double[] output = ws.activations[nodes.size() - 1];
+                for (int s = 0; s < count; s++) {
+                    loss += outputHead.loss(output, ws.targets, s * outputSize, outputSize);
+                    correct += argmax(output, s * outputSize, outputSize) == argmax(ws.targets, s * outputSize, outputSize) ? 1 : 0;
+                }
+                backward(ws, count);
+                update(count);
+            }
+            if (!quiet) {
+                System.out.printf("Epoch %d: Loss = %.6f, Accuracy = %.2f%%, Time = %d s%n", epoch + 1, loss / order.length,
+                        correct * 100.0 / order.length, (System.nanoTime() - startTime) / 1_000_000_000);
+            }
+        }
+    }
+
+    // Mean loss and accuracy in percent
+    public double[] evaluate(Dataset inputs, Dataset targets) {
+        fix();
+        int batch = 256;
+        Workspace ws = new Workspace(Math.min(batch, Math.max(1, inputs.size())));
+        int inputSize = inputSize();
+        int outputSize = outputSize();
+        double loss = 0;
+        int correct = 0;
+        for (int i = 0; i < inputs.size(); i += batch) {
+            int count = Math.min(batch, inputs.size() - i);
+            for (int s = 0; s < count; s++) {
+                inputs.read(i + s, ws.activations[0], s * inputSize);
+                targets.read(i + s, ws.targets, s * outputSize);
+            }
+            forward(ws, count);
+            double[] output = ws.activations[nodes.size() - 1];
+            for (int s = 0; s < count; s++) {
+                loss += outputHead.loss(output, ws.targets, s * outputSize, outputSize);
+                correct += argmax(output, s * outputSize, outputSize) == argmax(ws.targets, s * outputSize, outputSize) ? 1 : 0;
+            }
+        }
+        return new double[]{loss / inputs.size(), correct * 100.0 / inputs.size()};
+    }
+
+    private void addEdge(Edge edge) {
+        checkOpen();
+        if (edge.from < 0 || edge.to <= 0 || edge.to >= nodes.size() || edge.from >= nodes.size() || edge.from == edge.to) {
+            throw new IllegalArgumentException("No edge possible from node " + edge.from + " to node " + edge.to + " among " + nodes.size());
+        }
+        nodes.get(edge.from).outputs.add(edge);
+        nodes.get(edge.to).inputs.add(edge);
+        if (edge.dense) {
+            edge.slot = denseEdges.size();
+            denseEdges.add(edge);
+        }
+    }
+
+    private void checkOpen() {
+        if (levels != null) {
+            throw new IllegalStateException("The graph is fixed once it has been run");
+        }
+    }
+
+    // Checks the graph, sorts it into levels and initializes the parameters
+    private void fix() {
+        if (levels != null) {
+            return;
+        }
+        int n = nodes.size();
+        int output = n - 1;
+        if (output == 0) {
+            throw new IllegalStateException("The graph has no layers");
+        }
+        for (int v = 1; v < n; v++) {
+            Node node = nodes.get(v);
+            if (node.inputs.stream().noneMatch(e -> e.dense)) {
+                throw new IllegalStateException("Node " + v + " needs a dense input edge");
+            }
+            if (v != output && node.outputs.isEmpty()) {
+                throw new IllegalStateException("Node " + v + " does not lead anywhere; the output is node " + output);
+            }
+        }
+
+        // Kahn's algorithm; a node's level is one more than its deepest input
+        int[] pending = new int[n];
+        for (int v = 0; v < n; v++) {
+            pending[v] = nodes.get(v).inputs.size();
+        }
+        int[] queue = new int[n];
+        int head = 0, tail = 0;
+        queue[tail++] = 0;
+        int depth = 0;
+        while (head < tail) {
+            Node node = nodes.get(queue[head++]);
+            depth = Math.max(depth, node.level);
+            for (Edge e : node.outputs) {
+                Node next = nodes.get(e.to);
+                next.level = Math.max(next.level, node.level + 1);
+                if (--pending[e.to] == 0) {
+                    queue[tail++] = e.to;
+                }
+            }
+        }
+        if (tail < n) {
+            for (int v = 0; v < n; v++) {
+                if (pending[v] > 0) {
+                    throw new IllegalStateException("Node " + v + " is on a cycle or only reachable through one");
+                }
+            }
+        }
+        int[] sizes = new int[depth + 1];
+        for (Node node : nodes) {
+            sizes[node.level]++;
+        }
+        levels = new int[depth + 1][];
+        for (int l = 0; l <= depth; l++) {
+            levels[l] = new int[sizes[l]];
+            sizes[l] = 0;
+        }
+        for (int v = 0; v < n; v++) {
+            int l = nodes.get(v).level;
+            levels[l][sizes[l]++] = v;
+        }
+
+        // He initialization over the summed fan-in of the dense edges into a node
+        int widest = 0;
+        weightGradients = new double[denseEdges.size()][];
+        biasGradients = new double[n][];
+        for (int v = 1; v < n; v++) {
+            Node node = nodes.get(v);
+            int fanIn = 0;
+            for (Edge e : node.inputs) {
+                fanIn += e.dense ? nodes.get(e.from).size : 0;
+            }
+            double scale = Math.sqrt(2.0 / fanIn);
+            SplittableRandom rand = new SplittableRandom(RandomStreams.split(RandomStreams.split(seed, INIT_STREAM), v));
+            node.bias = new double[node.size];
+            boolean first = true;
+            for (Edge e : node.inputs) {
+                if (e.dense) {
+                    e.carriesBias = first;
+                    first = false;
+                    e.weights = new double[node.size * nodes.get(e.from).size];
+                    for (int k = 0; k < e.weights.length; k++) {
+                        e.weights[k] = rand.nextGaussian() * scale;
+                    }
+                }
+            }
+            biasGradients[v] = new double[node.size];
+            widest = Math.max(widest, node.size);
+        }
+        noBias = new double[widest];
+        int[] slotSizes = new int[2 * denseEdges.size()];
+        for (int e = 0; e < denseEdges.size(); e++) {
+            Edge edge = denseEdges.get(e);
+            weightGradients[e] = new double[edge.weights.length];
+            slotSizes[2 * e] = edge.weights.length;
+            slotSizes[2 * e + 1] = edge.carriesBias ? nodes.get(edge.to).size : 0;
+        }
+        optimizer.init(slotSizes, kernels);
+    }
+
+    private void forward(Workspace ws, int count) {
+        for (int l = 1; l < levels.length; l++) {
+            runLevel(levels[l], count, v -> forwardNode(ws, v, count));
+        }
+    }
+
+    private void forwardNode(Workspace ws, int v, int count) {
+        Node node = nodes.get(v);
+        double[] sums = ws.sums[v];
+        int length = count * node.size;
+        boolean first = true;
+        for (Edge e : node.inputs) {
+            if (!e.dense) {
+                continue;
+            }
+            int inSize = nodes.get(e.from).size;
+            if (first) {
+                kernels.multiplyTransposed(ws.activations[e.from], e.weights, node.bias, sums, count, inSize, node.size);
+                first = false;
+            } else {
+                kernels.multiplyTransposed(ws.activations[e.from], e.weights, noBias, ws.scratch[v], count, inSize, node.size);
+                kernels.add(sums, ws.scratch[v], 0, length);
+            }
+        }
+        for (Edge e : node.inputs) {
+            if (!e.dense) {
+                kernels.add(sums, ws.activations[e.from], 0, length);
+            }
+        }
+        if (v == nodes.size() - 1 && outputHead.replacesActivation()) {
+            outputHead.apply(sums, ws.activations[v], count, node.size);
+        } else {
+            kernels.activate(sums, ws.activations[v], length, node.activation.slope);
+        }
+    }
+
+    private void backward(Workspace ws, int count) {
+        int output = nodes.size() - 1;
+        int length = count * outputSize();
+        double[] outputDeltas = ws.deltas[output];
+        // For the heads this difference already is the gradient of the loss with
+        // respect to the weighted sums, as in NeuralNetwork
+        for (int idx = 0; idx < length; idx++) {
+            outputDeltas[idx] = ws.activations[output][idx] - ws.targets[idx];
+        }
+        if (!outputHead.replacesActivation()) {
+            kernels.scaleByDerivative(outputDeltas, ws.activations[output], ws.ones, length, nodes.get(output).activation.slope);
+        }
+        for (double[] g : weightGradients) {
+            Arrays.fill(g, 0);
+        }
+        for (int v = 1; v < nodes.size(); v++) {
+            Arrays.fill(biasGradients[v], 0);
+        }
+        for (int l = levels.length - 1; l >= 1; l--) {
+            runLevel(levels[l], count, v -> backwardNode(ws, v, count));
+        }
+    }
+
+    // Gathers the error of node v from its consumers, which are all on higher
+    // levels, then adds the gradients of its own input edges
+    private void backwardNode(Workspace ws, int v, int count) {
+        Node node = nodes.get(v);
+        double[] deltas = ws.deltas[v];
+        int length = count * node.size;
+        if (v != nodes.size() - 1) {
+            boolean first = true;
+            for (Edge e : node.outputs) {
+                double[] target = first ? deltas : ws.scratch[v];
+                if (e.dense) {
+                    kernels.multiply(ws.deltas[e.to], e.weights, target, count, nodes.get(e.to).size, node.size);
+                } else {
+                    System.arraycopy(ws.deltas[e.to], 0, target, 0, length);
+                }
+                if (!first) {
+                    kernels.add(deltas, target, 0, length);
+                }
+                first = false;
+            }
+            kernels.scaleByDerivative(deltas, ws.activations[v], ws.ones, length, node.activation.slope);
+        }
+        for (Edge e : node.inputs) {
+            if (e.dense) {
+                // Only the edge carrying the biases sums their gradients; the
+                // others sum into scratch that forward overwrites
+                double[] biasTarget = e.carriesBias ? biasGradients[v] : ws.scratch[v];
+                kernels.accumulateGradients(deltas, ws.activations[e.from], weightGradients[e.slot], biasTarget, count, node.size, nodes.get(e.from).size);
+            }
+        }
+    }
+
+    private void update(int count) {
+        double scale = 1.0 / count;
+        optimizer.beginStep();
+        for (int e = 0; e < denseEdges.size(); e++) {
+            Edge edge = denseEdges.get(e);
+            optimizer.update(2 * e, edge.weights, weightGradients[e], 0, edge.weights.length, scale);
+            if (edge.carriesBias) {
+                Node node = nodes.get(edge.to);
+                optimizer.update(2 * e + 1, node.bias, biasGradients[edge.to], 0, node.size, scale);
+            }
+        }
+    }
+
+    private interface NodeTask {
+        void run(int v);
+    }
+
+    // Runs task for every node of a level, on the pool when the level has
+    // several nodes that are each worth a task
+    private void runLevel(int[] level, int count, NodeTask task) {
+        boolean parallel = pool != null && level.length > 1;
+        for (int i = 0; parallel && i < level.length; i++) {
+            parallel = work(level[i], count) >= PARALLEL_WORK;
+        }
+        if (!parallel) {
+            for (int v : level) {
+                task.run(v);
+            }
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(level.length);
+        for (int v : level) {
+            tasks.add(pool.submit(() -> task.run(v)));
+        }
+        for (ForkJoinTask<?> t : tasks) {
+            t.join();
+        }
+    }
+
+    // Multiply-adds of the dense input edges of v for count samples
+    private long work(int v, int count) {
+        Node node = nodes.get(v);
+        long work = 0;
+        for (Edge e : node.inputs) {
+            work += e.dense ? (long) nodes.get(e.from).size * node.size : 0;
+        }
+        return work * count;
+    }
+
+    private static int argmax(double[] values, int offset, int size) {
+        int best = offset;
+        for (int i = offset + 1; i < offset + size; i++) {
+            if (values[i] > values[best]) {
+                best = i;
+            }
+        }
+        return best - offset;
+    }
+
+    // Fisher-Yates shuffle of the identity, so the order depends only on the stream
+    private static void permute(int[] order, long stream) {
+        SplittableRandom rand = new SplittableRandom(stream);
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    // Trains a residual MLP on the digit dataset and compares its memory with
+    // Main's padded tensor:
+    // java project.GraphNetwork [--width 128] [--blocks 4] [--branches 1] [--epochs 5]
+    //        [--samples N] [--batch 32] [--learning-rate 0.01] [--workers N] [--vector]
+    public static void main(String[] args) {
+        int width = 128;
+        int blocks = 4;
+        int branches = 1;
+        int epochs = 5;
+        int samples = 0;
+        int batchSize = 32;
+        double learningRate = 0.01;
+        int workers = Runtime.getRuntime().availableProcessors();
+        boolean vector = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--width" -> width = Integer.parseInt(args[++i]);
+                case "--blocks" -> blocks = Integer.parseInt(args[++i]);
+                case "--branches" -> branches = Integer.parseInt(args[++i]);
+                case "--epochs" -> epochs = Integer.parseInt(args[++i]);
+                case "--samples" -> samples = Integer.parseInt(args[++i]);
+                case "--batch" -> batchSize = Integer.parseInt(args[++i]);
+                case "--learning-rate" -> learningRate = Double.parseDouble(args[++i]);
+                case "--workers" -> workers = Integer.parseInt(args[++i]);
+                case "--vector" -> vector = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        BinaryDataset inputs = BinaryDataset.openOrConvert("datasets/digit_recognition/trainingData.txt");
+        BinaryDataset targets = BinaryDataset.openOrConvert("datasets/digit_recognition/trainingLabels.txt");
+        if (inputs == null || targets == null) {
+            System.out.println("Failed to load the datasets. Exiting.");
+            return;
+        }
+        int validationStart = inputs.size() * 9 / 10;
+        int trainingEnd = samples > 0 ? Math.min(samples, validationStart) : validationStart;
+
+        GraphNetwork network = residualMlp(inputs.width(), width, blocks, branches, targets.width(), learningRate, 0.9, workers, vector);
+        System.out.printf(Locale.ROOT, "%d nodes in %d levels, %.1f MB of parameters where a padded tensor would take %.1f MB%n",
+                network.nodes.size(), network.levels().length, network.parameterBytes() / 1e6, network.paddedTensorBytes() / 1e6);
+        network.train(inputs.slice(0, trainingEnd), targets.slice(0, trainingEnd), batchSize, epochs);
+        double[] validation = network.evaluate(inputs.slice(validationStart, inputs.size()), targets.slice(validationStart, targets.size()));
+        System.out.printf(Locale.ROOT, "Validation: Loss = %.6f, Accuracy = %.2f%%%n", validation[0], validation[1]);
+    }
+}
@@ -0,0 +1,367 @@
+package project;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Trains many configurations of a network at once, one trial per thread of a
+// ForkJoinPool. Every trial is an independent single-threaded NeuralNetwork;
+// the datasets are shared read-only, so a memory-mapped BinaryDataset is mapped
+// once however many trials read it, and each trial only owns its parameters and
+// batch buffers.
+//
+// Losing trials are stopped early by comparing validation losses at fixed
+// epochs, called rungs. A trial reaching a rung continues only if its loss is
+// among the best 1/eta of the losses recorded at that rung so far; there is no
+// barrier, so trials that arrive first are compared with fewer others and the
+// outcome depends on timing, as in asynchronous successive halving.
+//   run                 every config up to the epoch budget, stopping trials
+//                       worse than the median at any epoch (eta 2, once three
+//                       trials have reported)
+//   successiveHalving   rungs at minEpochs * eta^k, so about 1/eta of the trials
+//                       survive each rung
+//   hyperband           successive halving brackets from the most aggressive
+//                       (many trials, few epochs before the first cut) to plain
+//                       training, hedging against cutting slow starters too early
+//
+// The leaderboard file is rewritten after every finished trial, best
+// validation loss first, so a long search can be followed and interrupted.
+//
+// Usage: HyperparameterSearch [--mode grid|random|halving|hyperband]
+//        [--trials 32] [--epochs 9] [--min-epochs 1] [--eta 3] [--parallelism N]
+//        [--samples 0] [--seed 42] [--leaderboard trainedModels/leaderboard.csv]
+class HyperparameterSearch {
+    private static final int MEDIAN_MIN_REPORTS = 3;
+
+    // Result of one trial; read once the search returns
+    static final class Trial {
+        final int index;
+        final SearchSpace.Config config;
+        final int bracket;
+        volatile int epochs; // Epochs trained
+        volatile double bestLoss = Double.NaN; // Lowest validation loss
+        volatile double bestAccuracy = Double.NaN; // Validation accuracy at bestLoss
+        volatile boolean stopped; // Cut at a rung
+        volatile double seconds;
+        volatile String error; // Message of the exception that ended the trial
+
+        Trial(int index, SearchSpace.Config config, int bracket) {
+            this.index = index;
+            this.config = config;
+            this.bracket = bracket;
+        }
+    }
+
+    // Validation losses recorded at each rung of one successive halving bracket
+    private static final class Bracket {
+        final int[] rungs; // Epochs at which trials are compared, ascending
+        final int eta;
+        final int minReports; // Below this many losses at a rung every trial continues
+        final List<List<Double>> losses = new ArrayList<>();
+
+        Bracket(int[] rungs, int eta, int minReports) {
+            this.rungs = rungs;
+            this.eta = eta;
+            this.minReports = minReports;
+            for (int r = 0; r < rungs.length; r++) {
+                losses.add(new ArrayList<>());
+            }
+        }
+
+        // Records the loss of a trial that finished epoch and returns false if
+        // the trial should stop there
+        synchronized boolean promote(int epoch, double loss) {
+            int rung = indexOf(epoch);
+            if (rung < 0) {
+                return true;
+            }
+            List<Double> seen = losses.get(rung);
+            seen.add(loss);
+            if (seen.size() < minReports) {
+                return true;
+            }
+            int better = 0;
+            for (double other : seen) {
+                better += other < loss ? 1 : 0;
+            }
+            return better < (seen.size() + eta - 1) / eta;
+        }
+
+        private int indexOf(int epoch) {
+            for (int r = 0; r < rungs.length; r++) {
+                if (rungs[r] == epoch) {
+                    return r;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final Dataset trainingInputs;
+    private final Dataset trainingTargets;
+    private final Dataset validationInputs;
+    private final Dataset validationTargets;
+    private final ForkJoinPool pool;
+    private OutputHead outputHead = OutputHead.SOFTMAX_CROSS_ENTROPY;
+    private boolean useVectorKernels;
+    private long seed = 42;
+    private Path leaderboard = Path.of("trainedModels", "leaderboard.csv");
+    private final List<Trial> finished = new ArrayList<>();
+
+    public HyperparameterSearch(Dataset trainingInputs, Dataset trainingTargets, Dataset validationInputs, Dataset validationTargets, int parallelism) {
+        this.trainingInputs = trainingInputs;
+        this.trainingTargets = trainingTargets;
+        this.validationInputs = validationInputs;
+        this.validationTargets = validationTargets;
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    public void setOutputHead(OutputHead outputHead) {
+        this.outputHead = outputHead;
+    }
+
+    public void setVectorKernels(boolean useVectorKernels) {
+        this.useVectorKernels = useVectorKernels;
+    }
+
+    // Trial i is seeded with a stream split from seed, so a trial trains the same
+    // way whatever else runs next to it
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setLeaderboard(Path leaderboard) {
+        this.leaderboard = leaderboard;
+    }
+
+    // Trains every config for up to epochs epochs with the median stopping rule
+    public List<Trial> run(List<SearchSpace.Config> configs, int epochs) {
+        int[] rungs = new int[Math.max(0, epochs - 1)];
+        for (int r = 0; r < rungs.length; r++) {
+            rungs[r] = r + 1;
+        }
+        Bracket bracket = new Bracket(rungs, 2, MEDIAN_MIN_REPORTS);
+        List<Trial> trials = new ArrayList<>();
+        List<Bracket> brackets = new ArrayList<>();
+        for (SearchSpace.Config config : configs) {
+            trials.add(new Trial(trials.size(), config, 0));
+            brackets.add(bracket);
+        }
+        return runTrials(trials, brackets, epochs);
+    }
+
+    public List<Trial> successiveHalving(List<SearchSpace.Config> configs, int minEpochs, int maxEpochs, int eta) {
+        Bracket bracket = new Bracket(rungs(minEpochs, maxEpochs, eta), eta, 1);
+        List<Trial> trials = new ArrayList<>();
+        List<Bracket> brackets = new ArrayList<>();
+        for (SearchSpace.Config config : configs) {
+            trials.add(new Trial(trials.size(), config, 0));
+            brackets.add(bracket);
+        }
+        return runTrials(trials, brackets, maxEpochs);
+    }
+
+    // Bracket s starts ceil((sMax + 1) / (s + 1)) * eta^s random configs with a
+    // first rung at maxEpochs / eta^s, where eta^sMax is the largest power of
+    // eta up to maxEpochs / minEpochs
+    public List<Trial> hyperband(SearchSpace space, int minEpochs, int maxEpochs, int eta) {
+        if (eta < 2) {
+            throw new IllegalArgumentException("eta must be at least 2, got " + eta);
+        }
+        int sMax = 0;
+        while ((long) minEpochs * power(eta, sMax + 1) <= maxEpochs) {
+            sMax++;
+        }
+        List<Trial> trials = new ArrayList<>();
+        List<Bracket> brackets = new ArrayList<>();
+        for (int s = sMax; s >= 0; s--) {
+            int count = (sMax + s + 1) / (s + 1) * power(eta, s);
+            int first = Math.max(1, maxEpochs / power(eta, s));
+            Bracket bracket = new Bracket(rungs(first, maxEpochs, eta), eta, 1);
+            for (SearchSpace.Config config : space.sample(count, RandomStreams.split(seed, s))) {
+                trials.add(new Trial(trials.size(), config, sMax - s));
+                brackets.add(bracket);
+            }
+        }
+        return runTrials(trials, brackets, maxEpochs);
+    }
+
+    // Rungs minEpochs, minEpochs * eta, ... below maxEpochs
+    private static int[] rungs(int minEpochs, int maxEpochs, int eta) {
+        if (eta < 2) {
+            throw new IllegalArgumentException("eta must be at least 2, got " + eta);
+        }
+        List<Integer> rungs = new ArrayList<>();
+        for (long epoch = Math.max(1, minEpochs); epoch < maxEpochs; epoch *= eta) {
+            rungs.add((int) epoch);
+        }
+        return rungs.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int e = 0; e < exponent; e++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    // Submits every trial to the pool and waits for all of them; the returned
+    // list is sorted like the leaderboard
+    private List<Trial> runTrials(List<Trial> trials, List<Bracket> brackets, int maxEpochs) {
+        System.out.printf("Searching %d configurations on %d threads, up to %d epochs each%n", trials.size(), pool.getParallelism(), maxEpochs);
+        synchronized (this) {
+            finished.clear();
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < trials.size(); t++) {
+            Trial trial = trials.get(t);
+            Bracket bracket = brackets.get(t);
+            tasks.add(pool.submit(() -> runTrial(trial, bracket, maxEpochs)));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        List<Trial> ranked = new ArrayList<>(trials);
+        ranked.sort(RANKING);
+        return ranked;
+    }
+
+    private void runTrial(Trial trial, Bracket bracket, int maxEpochs) {
+        long start = System.nanoTime();
+        SearchSpace.Config config = trial.config;
+        try {
+            int[] neurons = config.neuronsPerLayer(trainingInputs.width(), trainingTargets.width());
+            NeuralNetwork network = new NeuralNetwork(neurons.length, neurons, config.learningRate, config.momentum, true,
+                    config.dropoutRate, useVectorKernels);
+            network.setSeed(RandomStreams.split(seed, trial.index));
+            network.setOutputHead(outputHead);
+            network.setValidation(validationInputs, validationTargets);
+            network.setLogging(false);
+            network.addTrainingListener(new TrainingListener() {
+                @Override
+                public void epochFinished(EpochMetrics epoch) {
+                    trial.epochs = epoch.epoch;
+                    if (Double.isNaN(trial.bestLoss) || epoch.validationLoss < trial.bestLoss) {
+                        trial.bestLoss = epoch.validationLoss;
+                        trial.bestAccuracy = epoch.validationAccuracy;
+                    }
+                    // A diverged trial has nothing left to learn
+                    if (!Double.isFinite(epoch.validationLoss) || !bracket.promote(epoch.epoch, epoch.validationLoss)) {
+                        trial.stopped = true;
+                        network.stopTraining();
+                    }
+                }
+            });
+            network.train(trainingInputs, trainingTargets, config.batchSize, maxEpochs);
+        } catch (RuntimeException e) {
+            trial.error = String.valueOf(e);
+        }
+        trial.seconds = (System.nanoTime() - start) / 1e9;
+        finish(trial);
+    }
+
+    private synchronized void finish(Trial trial) {
+        finished.add(trial);
+        System.out.printf(Locale.ROOT, "Trial %d (%s): validation loss %.6f, accuracy %.2f%%, %d epochs%s, %.1f s%n",
+                trial.index, trial.config, trial.bestLoss, trial.bestAccuracy, trial.epochs,
+                trial.error != null ? ", failed: " + trial.error : trial.stopped ? ", stopped" : "", trial.seconds);
+        writeLeaderboard();
+    }
+
+    // Best validation loss first, trials without one last
+    private static final Comparator<Trial> RANKING = Comparator.comparingDouble(
+            (Trial t) -> Double.isNaN(t.bestLoss) ? Double.POSITIVE_INFINITY : t.bestLoss).thenComparingInt(t -> t.index);
+
+    // Written next to the leaderboard and moved over it, so a reader never sees
+    // half a file
+    private void writeLeaderboard() {
+        List<Trial> ranked = new ArrayList<>(finished);
+        ranked.sort(RANKING);
+        Path temporary = leaderboard.resolveSibling(leaderboard.getFileName() + ".tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(temporary))) {
+            out.println("rank,trial,validation_loss,validation_accuracy,epochs,stopped,seconds,bracket,hidden_layers,learning_rate,momentum,dropout_rate,batch_size,error");
+            for (int r = 0; r < ranked.size(); r++) {
+                Trial t = ranked.get(r);
+                SearchSpace.Config c = t.config;
+                out.printf(Locale.ROOT, "%d,%d,%.6f,%.2f,%d,%b,%.1f,%d,%s,%s,%s,%s,%d,%s%n",
+                        r + 1, t.index, t.bestLoss, t.bestAccuracy, t.epochs, t.stopped, t.seconds, t.bracket,
+                        c.layers(), c.learningRate, c.momentum, c.dropoutRate, c.batchSize,
+                        t.error != null ? '"' + t.error.replace("\"", "'") + '"' : "");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(temporary, leaderboard, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(String[] args) {
+        String mode = "hyperband";
+        int trials = 32;
+        int epochs = 9;
+        int minEpochs = 1;
+        int eta = 3;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int samples = 0;
+        long seed = 42;
+        String leaderboard = "trainedModels/leaderboard.csv";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode" -> mode = args[++i];
+                case "--trials" -> trials = Integer.parseInt(args[++i]);
+                case "--epochs" -> epochs = Integer.parseInt(args[++i]);
+                case "--min-epochs" -> minEpochs = Integer.parseInt(args[++i]);
+                case "--eta" -> eta = Integer.parseInt(args[++i]);
+                case "--parallelism" -> parallelism = Integer.parseInt(args[++i]);
+                case "--samples" -> samples = Integer.parseInt(args[++i]);
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                case "--leaderboard" -> leaderboard = args[++i];
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        // Mapped once and shared by every trial
+        BinaryDataset inputs = BinaryDataset.openOrConvert("datasets/digit_recognition/trainingData.txt");
+        BinaryDataset targets = BinaryDataset.openOrConvert("datasets/digit_recognition/trainingLabels.txt");
+        if (inputs == null || targets == null) {
+            System.out.println("Failed to load the datasets. Exiting.");
+            return;
+        }
+        // --samples limits the training data, which is enough to rank configurations
+        int validationStart = inputs.size() * 9 / 10;
+        int trainingEnd = samples > 0 ? Math.min(samples, validationStart) : validationStart;
+
+        SearchSpace space = new SearchSpace()
+                .hiddenLayers(new int[]{64}, new int[]{128, 64}, new int[]{256, 128}, new int[]{512, 256, 128})
+                .learningRates(0.001, 0.003, 0.01, 0.03)
+                .momenta(0.8, 0.9, 0.95)
+                .dropoutRates(0, 0.2, 0.3)
+                .batchSizes(16, 32, 64);
+
+        HyperparameterSearch search = new HyperparameterSearch(inputs.slice(0, trainingEnd), targets.slice(0, trainingEnd),
+                inputs.slice(validationStart, inputs.size()), targets.slice(validationStart, targets.size()), parallelism);
+        search.setSeed(seed);
+        search.setLeaderboard(Path.of(leaderboard));
+        List<Trial> ranked = switch (mode) {
+            case "grid" -> search.run(space.grid(), epochs);
+            case "random" -> search.run(space.sample(trials, seed), epochs);
+            case "halving" -> search.successiveHalving(space.sample(trials, seed), minEpochs, epochs, eta);
+            case "hyperband" -> search.hyperband(space, minEpochs, epochs, eta);
+            default -> throw new IllegalArgumentException("Unknown mode " + mode);
+        };
+        System.out.println("Best: " + ranked.get(0).config + ", leaderboard written to " + leaderboard);
+    }
+}
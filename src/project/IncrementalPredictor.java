@@ -0,0 +1,98 @@
+package project;
+
+// Prediction for an input that changes a few values at a time, created by
+// NeuralNetwork.toIncrementalPredictor. The weighted sums of the first layer are
+// kept between predictions, and changing input k adds delta times column k of
+// the first weight matrix to them, which costs one pass over the first hidden
+// layer instead of the whole input-by-hidden product. The later layers, which
+// are much smaller, run through a Predictor as usual.
+//
+// The first layer's weights are stored transposed so that each column is
+// contiguous. Rounding errors of the running sums are bounded by recomputing
+// them from the input every REFRESH_INTERVAL changes. All methods lock the
+// predictor, so one thread can change the input while another predicts.
+class IncrementalPredictor {
+    private static final int REFRESH_INTERVAL = 1024;
+
+    private final int inputSize;
+    private final int hiddenSize;
+    private final double[] columns; // columns[k * hiddenSize + j] = w[j][k]
+    private final double[] bias;
+    private final double slope; // Of the first layer's Activation
+    private final Predictor rest; // Layers 2 and up, taking the first layer's activations
+    private final DenseKernels kernels;
+    private final double[] input;
+    private final double[] sums;
+    private final double[] hidden;
+    private int changesSinceRefresh;
+
+    IncrementalPredictor(double[] weights, double[] bias, int inputSize, int hiddenSize, double slope, Predictor rest, boolean useVectorKernels) {
+        this.inputSize = inputSize;
+        this.hiddenSize = hiddenSize;
+        this.columns = new double[inputSize * hiddenSize];
+        for (int j = 0; j < hiddenSize; j++) {
+            for (int k = 0; k < inputSize; k++) {
+                columns[k * hiddenSize + j] = weights[j * inputSize + k];
+            }
+        }
+        this.bias = bias.clone();
+        this.slope = slope;
+        this.rest = rest;
+        this.kernels = DenseKernels.create(useVectorKernels);
+        this.input = new double[inputSize];
+        this.sums = new double[hiddenSize];
+        this.hidden = new double[hiddenSize];
+        refresh();
+    }
+
+    public int inputSize() {
+        return inputSize;
+    }
+
+    public int outputSize() {
+        return rest.outputSize();
+    }
+
+    // Replaces the whole input
+    public synchronized void reset(double[] values) {
+        System.arraycopy(values, 0, input, 0, inputSize);
+        refresh();
+    }
+
+    public synchronized void set(int k, double value) {
+        double delta = value - input[k];
+        if (delta == 0) {
+            return;
+        }
+        input[k] = value;
+        if (++changesSinceRefresh >= REFRESH_INTERVAL) {
+            refresh();
+            return;
+        }
+        int column = k * hiddenSize;
+        for (int j = 0; j < hiddenSize; j++) {
+            sums[j] += delta * columns[column + j];
+        }
+    }
+
+    public synchronized void predict(double[] output) {
+        kernels.activate(sums, hidden, hiddenSize, slope);
+        rest.predict(hidden, output);
+    }
+
+    // Sums from scratch, column by column, skipping the zero inputs that most
+    // of a drawing is made of
+    private void refresh() {
+        System.arraycopy(bias, 0, sums, 0, hiddenSize);
+        for (int k = 0; k < inputSize; k++) {
+            double x = input[k];
+            if (x != 0) {
+                int column = k * hiddenSize;
+                for (int j = 0; j < hiddenSize; j++) {
+                    sums[j] += x * columns[column + j];
+                }
+            }
+        }
+        changesSinceRefresh = 0;
+    }
+}
@@ -0,0 +1,416 @@
+package project;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Serves a BatchPredictor on a localhost socket. Every connection gets a thread
+// from a cached pool and sends one sample per line as comma-separated inputs;
+// the reply is the output vector in the same format. Requests from all
+// connections are queued and a single batcher thread runs them through the
+// network together, flushing when maxBatch requests are waiting or when the
+// oldest one has waited maxDelayMicros, so batching trades a bounded amount of
+// latency for throughput.
+//
+// Usage: InferenceServer [--model name [--off-heap] | --ensemble a,b,c]
+//        [--kernels vector|scalar] [--cache-mb 256] [--port 0] [--max-batch 32]
+//        [--max-delay-us 500] [--clients 1,8,32,128] [--seconds 3] [--serve]
+// Without --serve it runs a load test against itself for every client count and
+// prints throughput next to the median and p99 latency. An ensemble averages
+// models from trainedModels/ held in a ModelRegistry of --cache-mb megabytes,
+// and files replaced while serving are reloaded. --off-heap maps the model file
+// into an OffHeapModel instead of loading it onto the heap; only that option
+// needs --enable-preview. --kernels picks the kernels of an off-heap model or of
+// the untrained default network; loaded networks keep the ones they were saved with.
+class InferenceServer implements AutoCloseable {
+    private static final class Request {
+        final double[] input;
+        final double[] output;
+        final long enqueued = System.nanoTime();
+        final CompletableFuture<double[]> result = new CompletableFuture<>();
+
+        Request(double[] input, int outputSize) {
+            this.input = input;
+            this.output = new double[outputSize];
+        }
+    }
+
+    private final BatchPredictor predictor;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(4096);
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(InferenceServer::connectionThread);
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet(); // Open connections, closed by close()
+    private final Thread acceptor;
+    private final Thread batcher;
+    private volatile boolean closed;
+
+    public InferenceServer(BatchPredictor predictor, int port, int maxBatch, long maxDelayMicros) throws IOException {
+        this.predictor = predictor;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.batcher = new Thread(this::runBatches, "inference-batcher");
+        this.batcher.setDaemon(true);
+        this.acceptor = new Thread(this::accept, "inference-acceptor");
+        this.acceptor.setDaemon(true);
+        batcher.start();
+        acceptor.start();
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Queues one sample for the next batch, for callers inside the same process.
+    // Once the server is closed the returned future fails instead.
+    public CompletableFuture<double[]> submit(double[] input) {
+        if (input.length != predictor.inputSize()) {
+            throw new IllegalArgumentException("Expected " + predictor.inputSize() + " inputs, got " + input.length);
+        }
+        Request request = new Request(input, predictor.outputSize());
+        if (closed) {
+            request.result.completeExceptionally(closedException());
+            return request.result;
+        }
+        try {
+            queue.put(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.result.completeExceptionally(e);
+        }
+        // A request queued after the batcher's last drain would never be served
+        if (closed) {
+            failPending();
+        }
+        return request.result;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        batcher.interrupt();
+        // A platform thread blocked reading its socket only wakes up when the socket closes
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        connections.shutdownNow();
+        failPending();
+    }
+
+    private static Thread connectionThread(Runnable task) {
+        Thread thread = new Thread(task, "inference-connection");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Fails every request still queued; the batcher stops taking them once closed
+    private void failPending() {
+        List<Request> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        for (Request request : pending) {
+            request.result.completeExceptionally(closedException());
+        }
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("The inference server is closed");
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII)) {
+            sockets.add(socket);
+            if (closed) {
+                return; // close() may have run before the socket was added
+            }
+            socket.setTcpNoDelay(true);
+            StringBuilder reply = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                reply.setLength(0);
+                try {
+                    append(reply, submit(parse(line)).join());
+                } catch (RuntimeException e) {
+                    reply.append("error: ").append(e.getMessage());
+                }
+                out.write(reply.append('\n').toString());
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    private void runBatches() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        double[][] inputs = new double[maxBatch][];
+        double[][] outputs = new double[maxBatch][];
+        try {
+            while (!closed) {
+                Request first = queue.take();
+                batch.add(first);
+                long deadline = first.enqueued + maxDelayNanos;
+                queue.drainTo(batch, maxBatch - batch.size());
+                while (batch.size() < maxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+
+                int count = batch.size();
+                for (int s = 0; s < count; s++) {
+                    inputs[s] = batch.get(s).input;
+                    outputs[s] = batch.get(s).output;
+                }
+                try {
+                    predictor.predictBatch(inputs, outputs, count);
+                    for (Request request : batch) {
+                        request.result.complete(request.output);
+                    }
+                } catch (RuntimeException e) {
+                    for (Request request : batch) {
+                        request.result.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+        for (Request request : batch) {
+            request.result.completeExceptionally(closedException());
+        }
+        failPending();
+    }
+
+    private static double[] parse(String line) {
+        String[] values = line.split(",");
+        double[] input = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            input[i] = Double.parseDouble(values[i].trim());
+        }
+        return input;
+    }
+
+    private static void append(StringBuilder sb, double[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values[i]);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String model = null;
+        String ensemble = null;
+        long cacheMegabytes = 256;
+        boolean offHeap = false;
+        boolean useVectorKernels = true;
+        int port = 0;
+        int maxBatch = 32;
+        long maxDelayMicros = 500;
+        String clients = "1,8,32,128";
+        int seconds = 3;
+        boolean serve = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--model" -> model = args[++i];
+                case "--ensemble" -> ensemble = args[++i];
+                case "--cache-mb" -> cacheMegabytes = Long.parseLong(args[++i]);
+                case "--off-heap" -> offHeap = true;
+                case "--kernels" -> useVectorKernels = args[++i].equals("vector");
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--max-batch" -> maxBatch = Integer.parseInt(args[++i]);
+                case "--max-delay-us" -> maxDelayMicros = Long.parseLong(args[++i]);
+                case "--clients" -> clients = args[++i];
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--serve" -> serve = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        BatchPredictor predictor;
+        ModelRegistry registry = null;
+        if (ensemble != null) {
+            registry = new ModelRegistry(cacheMegabytes << 20);
+            try {
+                predictor = registry.ensemble(ensemble.split("\\s*,\\s*"));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        } else if (offHeap && model != null) {
+            try {
+                predictor = mapOffHeap(Path.of("trainedModels", model), useVectorKernels);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        } else {
+            NeuralNetwork network = model != null
+                    ? NeuralNetwork.loadModel(model)
+                    : new NeuralNetwork(4, new int[]{784, 128, 64, 10}, 0.001, 0.9, true, 0.3, useVectorKernels);
+            if (network == null) {
+                return;
+            }
+            predictor = network.toPredictor();
+        }
+
+        try (InferenceServer server = new InferenceServer(predictor, port, maxBatch, maxDelayMicros)) {
+            System.out.println("Serving on localhost:" + server.port() + ", max batch " + maxBatch + ", max delay " + maxDelayMicros + " us");
+            if (serve) {
+                Thread.currentThread().join();
+            }
+            System.out.printf("%8s %14s %12s %12s%n", "clients", "requests/s", "p50 us", "p99 us");
+            for (String count : clients.split(",")) {
+                loadTest(server.port(), predictor.inputSize(), Integer.parseInt(count.trim()), seconds);
+            }
+            if (registry != null) {
+                System.out.println("Registry: " + registry.stats());
+            }
+        }
+    }
+
+    // OffHeapModel is looked up by name, so only it and the segment kernels have
+    // to be compiled with --enable-preview and the server runs without it otherwise
+    private static BatchPredictor mapOffHeap(Path path, boolean useVectorKernels) throws IOException {
+        try {
+            Method map = Class.forName("project.OffHeapModel").getMethod("map", Path.class, boolean.class);
+            return (BatchPredictor) map.invoke(null, path, useVectorKernels);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException("Failed to map " + path, e.getCause());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalStateException("--off-heap needs OffHeapModel compiled and run with --enable-preview", e);
+        }
+    }
+
+    // Every client is a thread with its own connection sending requests back to
+    // back; latencies are measured on the client side
+    private static void loadTest(int port, int inputSize, int clients, int seconds) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> {
+                Random rand = new Random(client);
+                StringBuilder line = new StringBuilder();
+                for (int k = 0; k < inputSize; k++) {
+                    line.append(k == 0 ? "" : ",").append(rand.nextDouble() < 0.2 ? rand.nextInt(256) / 255.0 : 0);
+                }
+                String request = line.append('\n').toString();
+                long[] samples = new long[1024];
+                int n = 0;
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                     Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII)) {
+                    socket.setTcpNoDelay(true);
+                    while (System.nanoTime() < end) {
+                        long start = System.nanoTime();
+                        out.write(request);
+                        out.flush();
+                        if (in.readLine() == null) {
+                            break;
+                        }
+                        if (n == samples.length) {
+                            samples = Arrays.copyOf(samples, n * 2);
+                        }
+                        samples[n++] = System.nanoTime() - start;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                latencies[client] = samples;
+                counts[client] = n;
+            }, "inference-client");
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, offset, counts[c]);
+            offset += counts[c];
+        }
+        Arrays.sort(all);
+        System.out.printf("%8d %14.1f %12.1f %12.1f%n", clients, total / (double) seconds,
+                percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
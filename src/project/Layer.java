@@ -0,0 +1,68 @@
+package project;
+
+// One stage of a NeuralNetwork between two activation buffers. Every layer maps
+// inputSize() values per sample to outputSize() weighted sums; NeuralNetwork
+// applies the layer's Activation and dropout on top and owns the parameters,
+// which a layer only sees as flat arrays of weightCount() and biasCount()
+// values. Weights are always biasCount() rows of fanIn() values, so parameter
+// initialization and the row-partitioned update work for every layer type.
+// Images are stored channels-last, (y * width + x) * channels + c, per sample.
+interface Layer {
+    int DENSE = 1;
+    int CONV_2D = 2;
+    int MAX_POOL_2D = 3;
+    int AVG_POOL_2D = 4;
+    int FLATTEN = 5;
+
+    int inputSize();
+
+    int outputSize();
+
+    // Zero for layers without parameters
+    default int weightCount() {
+        return biasCount() * fanIn();
+    }
+
+    default int biasCount() {
+        return 0;
+    }
+
+    default int fanIn() {
+        return 0;
+    }
+
+    // Activation used unless the network is told otherwise; layers without
+    // parameters pass their sums through unchanged
+    default Activation defaultActivation(boolean useLeakyReLU) {
+        return biasCount() == 0 ? Activation.LINEAR : useLeakyReLU ? Activation.LEAKY_RELU : Activation.RELU;
+    }
+
+    // Doubles of per-layer scratch a workspace of the given capacity needs
+    default int scratchSize(int capacity) {
+        return 0;
+    }
+
+    // out = sums of count samples of in. scratch holds scratchSize(count) values
+    // and is still intact when backward runs for the same batch.
+    void forward(DenseKernels kernels, double[] weights, double[] biases, double[] in, double[] out, int count, double[] scratch);
+
+    // Adds the gradients of the batch to weightGradients and biasGradients and,
+    // unless inDeltas is null, writes the error with respect to in
+    void backward(DenseKernels kernels, double[] weights, double[] in, double[] outDeltas, double[] inDeltas,
+                  double[] weightGradients, double[] biasGradients, int count, double[] scratch);
+
+    // Type code followed by the constructor arguments, see create
+    int[] describe();
+
+    static Layer create(int[] description) {
+        int[] a = description;
+        return switch (a[0]) {
+            case DENSE -> new DenseLayer(a[1], a[2]);
+            case CONV_2D -> new Conv2DLayer(a[1], a[2], a[3], a[4], a[5], a[6], a[7]);
+            case MAX_POOL_2D -> new Pool2DLayer(true, a[1], a[2], a[3], a[4]);
+            case AVG_POOL_2D -> new Pool2DLayer(false, a[1], a[2], a[3], a[4]);
+            case FLATTEN -> new FlattenLayer(a[1]);
+            default -> throw new IllegalArgumentException("Unknown layer type " + a[0]);
+        };
+    }
+}
@@ -0,0 +1,144 @@
+package project;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Default TrainingListener: per-batch timings go into lock-free counters and
+// latency histograms, so recording costs a few atomic adds per batch, and every
+// epoch summary is kept for export. Attach with NeuralNetwork.addTrainingListener.
+class MetricsRecorder implements TrainingListener {
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder forwardNanos = new LongAdder();
+    private final LongAdder backwardNanos = new LongAdder();
+    private final LongAdder updateNanos = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private final LatencyHistogram sampleLatency = new LatencyHistogram(); // Batch time divided by its samples
+    private final List<EpochMetrics> epochs = new ArrayList<>();
+
+    @Override
+    public void batchFinished(BatchMetrics batch) {
+        batches.increment();
+        samples.add(batch.samples);
+        loadNanos.add(batch.loadNanos);
+        forwardNanos.add(batch.forwardNanos);
+        backwardNanos.add(batch.backwardNanos);
+        updateNanos.add(batch.updateNanos);
+        totalNanos.add(batch.nanos);
+        batchLatency.record(batch.nanos);
+        sampleLatency.record(batch.nanos / Math.max(1, batch.samples));
+    }
+
+    @Override
+    public synchronized void epochFinished(EpochMetrics epoch) {
+        epochs.add(epoch);
+    }
+
+    public synchronized List<EpochMetrics> getEpochs() {
+        return new ArrayList<>(epochs);
+    }
+
+    public LatencyHistogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    // Where the batch time went so far, as percentages of the total
+    public void printSummary() {
+        double total = Math.max(1, totalNanos.sum());
+        System.out.printf("%d batches, %d samples, %.1f samples/s%n", batches.sum(), samples.sum(), samples.sum() * 1e9 / total);
+        System.out.printf("Load %.1f%%, Forward %.1f%%, Backward %.1f%%, Update %.1f%%%n",
+                loadNanos.sum() * 100 / total, forwardNanos.sum() * 100 / total,
+                backwardNanos.sum() * 100 / total, updateNanos.sum() * 100 / total);
+        System.out.printf("Batch latency: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                batchLatency.mean() / 1e3, batchLatency.percentile(0.5) / 1e3,
+                batchLatency.percentile(0.99) / 1e3, batchLatency.max() / 1e3);
+    }
+
+    // One row per epoch; per-layer values are separate columns named after the layer
+    public void writeCsv(String fileName) {
+        List<EpochMetrics> rows = getEpochs();
+        int layers = rows.isEmpty() ? 0 : rows.get(0).weightNorms.length;
+        try (PrintWriter out = new PrintWriter(fileName)) {
+            StringBuilder header = new StringBuilder("epoch,samples,seconds,samples_per_second,loss,accuracy,validation_loss,validation_accuracy,"
+                    + "load_ms,forward_ms,backward_ms,update_ms,allocated_bytes,allocated_bytes_per_second");
+            for (String name : new String[]{"weight_norm", "gradient_norm", "dead_fraction"}) {
+                for (int i = 1; i < layers; i++) {
+                    header.append(',').append(name).append('_').append(i);
+                }
+            }
+            out.println(header);
+            for (EpochMetrics e : rows) {
+                StringBuilder line = new StringBuilder();
+                line.append(String.format(Locale.ROOT, "%d,%d,%.3f,%.1f,%.6f,%.2f,%s,%s,%.3f,%.3f,%.3f,%.3f,%d,%.0f",
+                        e.epoch, e.samples, e.nanos / 1e9, e.samplesPerSecond(), e.loss, e.accuracy,
+                        optional("%.6f", e.validationLoss, ""), optional("%.2f", e.validationAccuracy, ""),
+                        e.loadNanos / 1e6, e.forwardNanos / 1e6, e.backwardNanos / 1e6, e.updateNanos / 1e6,
+                        e.allocatedBytes, e.allocatedBytesPerSecond()));
+                for (double[] values : new double[][]{e.weightNorms, e.gradientNorms, e.deadFractions}) {
+                    for (int i = 1; i < values.length; i++) {
+                        line.append(',').append(values[i]);
+                    }
+                }
+                out.println(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Totals, batch latency percentiles and the epoch summaries as one JSON object
+    public void writeJson(String fileName) {
+        try (PrintWriter out = new PrintWriter(fileName)) {
+            out.println("{");
+            out.printf(Locale.ROOT, "  \"batches\": %d,%n  \"samples\": %d,%n", batches.sum(), samples.sum());
+            out.printf(Locale.ROOT, "  \"nanos\": {\"load\": %d, \"forward\": %d, \"backward\": %d, \"update\": %d, \"total\": %d},%n",
+                    loadNanos.sum(), forwardNanos.sum(), backwardNanos.sum(), updateNanos.sum(), totalNanos.sum());
+            out.printf("  \"batchLatencyNanos\": %s,%n", histogramJson(batchLatency));
+            out.printf("  \"sampleLatencyNanos\": %s,%n", histogramJson(sampleLatency));
+            out.println("  \"epochs\": [");
+            List<EpochMetrics> rows = getEpochs();
+            for (int r = 0; r < rows.size(); r++) {
+                EpochMetrics e = rows.get(r);
+                out.printf(Locale.ROOT, "    {\"epoch\": %d, \"samples\": %d, \"nanos\": %d, \"samplesPerSecond\": %.1f, "
+                                + "\"loss\": %.6f, \"accuracy\": %.2f, \"validationLoss\": %s, \"validationAccuracy\": %s, "
+                                + "\"loadNanos\": %d, \"forwardNanos\": %d, "
+                                + "\"backwardNanos\": %d, \"updateNanos\": %d, \"allocatedBytes\": %d, "
+                                + "\"weightNorms\": %s, \"gradientNorms\": %s, \"deadFractions\": %s}%s%n",
+                        e.epoch, e.samples, e.nanos, e.samplesPerSecond(), e.loss, e.accuracy,
+                        optional("%.6f", e.validationLoss, "null"), optional("%.2f", e.validationAccuracy, "null"),
+                        e.loadNanos, e.forwardNanos, e.backwardNanos, e.updateNanos, e.allocatedBytes,
+                        arrayJson(e.weightNorms), arrayJson(e.gradientNorms), arrayJson(e.deadFractions),
+                        r + 1 < rows.size() ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String histogramJson(LatencyHistogram h) {
+        return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+                h.count(), h.mean(), h.percentile(0.5), h.percentile(0.9), h.percentile(0.99), h.percentile(0.999), h.max());
+    }
+
+    // Formats value, or returns missing for NaN
+    private static String optional(String format, double value, String missing) {
+        return Double.isNaN(value) ? missing : String.format(Locale.ROOT, format, value);
+    }
+
+    // Skips the unused input layer entry
+    private static String arrayJson(double[] values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 1; i < values.length; i++) {
+            sb.append(i > 1 ? ", " : "").append(values[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
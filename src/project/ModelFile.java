@@ -0,0 +1,316 @@
+package project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Versioned binary model format. Only the topology, the hyperparameters and the
+// parameter tensors are stored, so the file does not depend on the fields of
+// NeuralNetwork the way Java serialization does.
+//
+// Layout, little-endian:
+//   int    magic        'NNMF'
+//   int    version
+//   int    headerSize   offset of the first tensor, which readers take from here
+//                       rather than from the fields they parse; files of a newer
+//                       version than VERSION are refused
+//   int    flags        LEAKY_RELU | VECTOR_KERNELS | OPTIMIZER_STATE
+//   int    numLayers
+//   int[]  neuronsPerLayer
+//   double learningRate, momentum, dropoutRate
+//   int    outputHead   OutputHead ordinal, since version 2
+//   byte[] activations  Activation ordinal of every layer (entry 0 unused), since version 2
+//   for every layer i >= 1, since version 3:
+//     int   length
+//     int[] description  Layer.describe() values
+// then, for every layer i >= 1, the weights (row-major, Layer.biasCount() x
+// Layer.fanIn(), which for older all-dense files is neuronsPerLayer[i] x
+// neuronsPerLayer[i - 1]) and the biases, followed by the momentum buffers of
+// every layer when OPTIMIZER_STATE is set. Those buffers are the whole state of
+// the default MomentumBlendOptimizer only, so header refuses OPTIMIZER_STATE for
+// networks trained with another optimizer. Every tensor starts on a 64-byte
+// boundary so it can be mapped directly. Tensors are written and mapped in
+// chunks, so neither the file nor a single tensor is limited to 2 GB.
+class ModelFile {
+    static final int MAGIC = 0x464D4E4E; // "NNMF" read as a little-endian int
+    static final int VERSION = 3;
+    static final int LEAKY_RELU = 1;
+    static final int VECTOR_KERNELS = 2;
+    static final int OPTIMIZER_STATE = 4;
+    static final int ALIGNMENT = 64;
+    private static final int WRITE_CHUNK = 1 << 17; // Doubles per write buffer, 1 MB
+    private static final int MAP_CHUNK = 1 << 27; // Doubles per mapping, 1 GB
+
+    private ModelFile() {
+    }
+
+    // Everything before the first tensor, see readHeader
+    static final class Header {
+        int version;
+        int headerSize;
+        int flags;
+        int[] neuronsPerLayer;
+        double learningRate;
+        double momentum;
+        double dropoutRate;
+        OutputHead outputHead = OutputHead.ACTIVATION_MSE;
+        Activation[] activations; // null before version 2
+        Layer[] layers; // null before version 3
+
+        int numLayers() {
+            return neuronsPerLayer.length;
+        }
+
+        // Files before version 3 hold dense layers only
+        int weightCount(int i) {
+            return layers != null ? layers[i].weightCount() : neuronsPerLayer[i] * neuronsPerLayer[i - 1];
+        }
+
+        int biasCount(int i) {
+            return layers != null ? layers[i].biasCount() : neuronsPerLayer[i];
+        }
+
+        // Before version 2 every layer had the default of the all-dense network
+        Activation activation(int i) {
+            if (activations != null) {
+                return activations[i];
+            }
+            return (flags & LEAKY_RELU) != 0 ? Activation.LEAKY_RELU : Activation.RELU;
+        }
+
+        boolean isDense() {
+            for (int i = 1; layers != null && i < numLayers(); i++) {
+                if (!(layers[i] instanceof DenseLayer)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Byte offset of every tensor in file order: the weights and biases of
+        // every layer i >= 1 at [2 * (i - 1)] and [2 * (i - 1) + 1], then the
+        // momentum buffers when OPTIMIZER_STATE is set. The last entry is the end
+        // of the file.
+        long[] tensorOffsets() {
+            int numLayers = numLayers();
+            boolean optimizerState = (flags & OPTIMIZER_STATE) != 0;
+            long[] offsets = new long[2 * (numLayers - 1) + (optimizerState ? numLayers - 1 : 0) + 1];
+            long offset = headerSize;
+            int t = 0;
+            for (int i = 1; i < numLayers; i++) {
+                offsets[t++] = offset;
+                offset += align(8L * weightCount(i));
+                offsets[t++] = offset;
+                offset += align(8L * biasCount(i));
+            }
+            for (int i = 1; optimizerState && i < numLayers; i++) {
+                offsets[t++] = offset;
+                offset += align(8L * weightCount(i));
+            }
+            offsets[t] = offset;
+            return offsets;
+        }
+    }
+
+    static boolean isModelFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(magic, 0);
+            return magic.position() == 4 && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    static void write(NeuralNetwork network, Path path, boolean includeOptimizerState) throws IOException {
+        int numLayers = network.getNeuronsPerLayer().length;
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(out, header(network, includeOptimizerState));
+            for (int i = 1; i < numLayers; i++) {
+                writeTensor(out, network.getWeights()[i]);
+                writeTensor(out, network.getBiases()[i]);
+            }
+            if (includeOptimizerState) {
+                for (int i = 1; i < numLayers; i++) {
+                    writeTensor(out, network.getWeightUpdates()[i]);
+                }
+            }
+        }
+    }
+
+    // The header of write, padded to headerSize and ready to be written
+    static ByteBuffer header(NeuralNetwork network, boolean includeOptimizerState) {
+        if (includeOptimizerState && !network.hasDefaultOptimizer()) {
+            throw new IllegalArgumentException("A model file only holds the momentum buffers of the default optimizer; "
+                    + "checkpoints keep the state of any optimizer, see setCheckpoints");
+        }
+        int[] neuronsPerLayer = network.getNeuronsPerLayer();
+        int numLayers = neuronsPerLayer.length;
+        int flags = (network.isLeakyReLU() ? LEAKY_RELU : 0)
+                | (network.usesVectorKernels() ? VECTOR_KERNELS : 0)
+                | (includeOptimizerState ? OPTIMIZER_STATE : 0);
+        int[][] descriptions = network.describeLayers();
+        int descriptionBytes = 0;
+        for (int i = 1; i < numLayers; i++) {
+            descriptionBytes += (1 + descriptions[i].length) * 4;
+        }
+        int headerSize = align(5 * 4 + numLayers * 4 + 3 * 8 + 4 + numLayers + descriptionBytes);
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(headerSize).putInt(flags).putInt(numLayers);
+        for (int neurons : neuronsPerLayer) {
+            header.putInt(neurons);
+        }
+        header.putDouble(network.getLearningRate()).putDouble(network.getMomentum()).putDouble(network.getDropoutRate());
+        header.putInt(network.getOutputHead().ordinal());
+        Activation[] activations = network.getActivations();
+        for (int i = 0; i < numLayers; i++) {
+            header.put((byte) (i == 0 ? 0 : activations[i].ordinal()));
+        }
+        for (int i = 1; i < numLayers; i++) {
+            header.putInt(descriptions[i].length);
+            for (int value : descriptions[i]) {
+                header.putInt(value);
+            }
+        }
+        header.position(headerSize);
+        return header.flip();
+    }
+
+    // Reads the header, then maps every tensor and fills the parameter arrays
+    // with bulk reads from the mappings
+    static NeuralNetwork read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel, path);
+        }
+    }
+
+    private static NeuralNetwork read(FileChannel channel, Path path) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(3 * 4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, start, 0, path);
+        int headerSize = start.getInt(8);
+        if (start.getInt(0) != MAGIC || headerSize < start.capacity() || headerSize > channel.size()) {
+            throw new IOException("Not a model file: " + path);
+        }
+        ByteBuffer headerBytes = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, headerBytes, 0, path);
+        Header header = readHeader(headerBytes, path);
+        int numLayers = header.numLayers();
+        long[] offsets = header.tensorOffsets();
+        if (offsets[offsets.length - 1] > channel.size()) {
+            throw new IOException("Model file is truncated: " + path);
+        }
+
+        double[][] weights = new double[numLayers][];
+        double[][] biases = new double[numLayers][];
+        double[][] weightUpdates = null;
+        for (int i = 1; i < numLayers; i++) {
+            weights[i] = readTensor(channel, offsets[2 * (i - 1)], header.weightCount(i));
+            biases[i] = readTensor(channel, offsets[2 * (i - 1) + 1], header.biasCount(i));
+        }
+        if ((header.flags & OPTIMIZER_STATE) != 0) {
+            weightUpdates = new double[numLayers][];
+            for (int i = 1; i < numLayers; i++) {
+                weightUpdates[i] = readTensor(channel, offsets[2 * (numLayers - 1) + i - 1], header.weightCount(i));
+            }
+        }
+
+        NeuralNetwork network = new NeuralNetwork(header.neuronsPerLayer, header.layers, header.learningRate, header.momentum,
+                (header.flags & LEAKY_RELU) != 0, header.dropoutRate, (header.flags & VECTOR_KERNELS) != 0, weights, biases, weightUpdates);
+        network.setOutputHead(header.outputHead);
+        for (int i = 1; header.activations != null && i < numLayers; i++) {
+            network.setActivation(i, header.activations[i]);
+        }
+        return network;
+    }
+
+    // Parses the header from the start of a little-endian buffer
+    static Header readHeader(ByteBuffer buffer, Path path) throws IOException {
+        Header header = new Header();
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a model file: " + path);
+        }
+        header.version = buffer.getInt();
+        if (header.version > VERSION) {
+            throw new IOException("Model file version " + header.version + " is newer than the supported version " + VERSION);
+        }
+        header.headerSize = buffer.getInt();
+        header.flags = buffer.getInt();
+        int numLayers = buffer.getInt();
+        header.neuronsPerLayer = new int[numLayers];
+        for (int i = 0; i < numLayers; i++) {
+            header.neuronsPerLayer[i] = buffer.getInt();
+        }
+        header.learningRate = buffer.getDouble();
+        header.momentum = buffer.getDouble();
+        header.dropoutRate = buffer.getDouble();
+        if (header.version >= 2) {
+            header.outputHead = OutputHead.values()[buffer.getInt()];
+            header.activations = new Activation[numLayers];
+            for (int i = 0; i < numLayers; i++) {
+                header.activations[i] = Activation.values()[buffer.get()];
+            }
+        }
+        if (header.version >= 3) {
+            int[][] descriptions = new int[numLayers][];
+            for (int i = 1; i < numLayers; i++) {
+                descriptions[i] = new int[buffer.getInt()];
+                for (int j = 0; j < descriptions[i].length; j++) {
+                    descriptions[i][j] = buffer.getInt();
+                }
+            }
+            header.layers = NeuralNetwork.createLayers(descriptions);
+        }
+        return header;
+    }
+
+    // Writes values through a bounded buffer, then zeros up to the next boundary
+    private static void writeTensor(FileChannel out, double[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * Math.min(values.length, WRITE_CHUNK)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int from = 0; from < values.length; from += WRITE_CHUNK) {
+            int count = Math.min(WRITE_CHUNK, values.length - from);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(values, from, count);
+            buffer.limit(8 * count);
+            writeFully(out, buffer);
+        }
+        long bytes = 8L * values.length;
+        writeFully(out, ByteBuffer.allocate((int) (align(bytes) - bytes)));
+    }
+
+    // Maps a tensor of length doubles from offset, at most MAP_CHUNK at a time
+    private static double[] readTensor(FileChannel channel, long offset, int length) throws IOException {
+        double[] values = new double[length];
+        for (int from = 0; from < length; from += MAP_CHUNK) {
+            int count = Math.min(MAP_CHUNK, length - from);
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset + 8L * from, 8L * count);
+            chunk.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(values, from, count);
+        }
+        return values;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path path) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Model file is truncated: " + path);
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    static int align(int bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -0,0 +1,152 @@
+package project;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Serves several models from one directory by name. A model is only read the
+// first time it is asked for, and the loaded Predictors are kept in a cache that
+// is bounded by their parameter bytes rather than by their number: when a load
+// pushes the total over the budget, the least recently used models are dropped
+// until it fits again. Predictors already handed out stay valid after eviction,
+// they are just no longer shared.
+//
+// A file that is replaced on disk is picked up on the next get: the file's
+// modification time and size are compared with the ones it was loaded from, at
+// most once per RELOAD_CHECK_NANOS per model so a hot model costs no system
+// call per request. If the new file cannot be read (it may still be being
+// written) the previous version keeps serving and the load is retried later.
+class ModelRegistry {
+    private static final long RELOAD_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Entry {
+        final Predictor predictor;
+        final long bytes;
+        final FileTime modified;
+        final long size;
+        volatile long checked; // System.nanoTime() of the last look at the file
+
+        Entry(Predictor predictor, BasicFileAttributes attributes) {
+            this.predictor = predictor;
+            this.bytes = predictor.parameterBytes();
+            this.modified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.checked = System.nanoTime();
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return modified.equals(attributes.lastModifiedTime()) && size == attributes.size();
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true); // Access order, eldest first
+    private long cachedBytes;
+    private long hits;
+    private long loads;
+    private long evictions;
+
+    public ModelRegistry(long maxBytes) {
+        this(Path.of("trainedModels"), maxBytes);
+    }
+
+    public ModelRegistry(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    // The current version of the named model, loading it if needed. Two threads
+    // missing on the same model at once may both read it; the later one wins.
+    public Predictor get(String name) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = cache.get(name);
+            if (entry != null && System.nanoTime() - entry.checked < RELOAD_CHECK_NANOS) {
+                hits++;
+                return entry.predictor;
+            }
+        }
+
+        // File system access and loading happen outside the lock, so a slow load
+        // does not hold up requests for models that are already cached
+        Path path = directory.resolve(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(name);
+            throw e;
+        }
+        if (entry != null && entry.matches(attributes)) {
+            entry.checked = System.nanoTime();
+            synchronized (this) {
+                hits++;
+            }
+            return entry.predictor;
+        }
+
+        Entry loaded;
+        try {
+            loaded = new Entry(NeuralNetwork.read(path).toPredictor(), attributes);
+        } catch (IOException | RuntimeException e) {
+            if (entry == null) {
+                throw e;
+            }
+            System.err.println("Keeping the previous version of " + name + ": " + e);
+            entry.checked = System.nanoTime();
+            return entry.predictor;
+        }
+        put(name, loaded);
+        return loaded.predictor;
+    }
+
+    // Drops the named model from the cache, it is read again on the next get
+    public synchronized void remove(String name) {
+        Entry entry = cache.remove(name);
+        if (entry != null) {
+            cachedBytes -= entry.bytes;
+        }
+    }
+
+    public EnsemblePredictor ensemble(String... names) throws IOException {
+        return new EnsemblePredictor(this, names);
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized String stats() {
+        return String.format("%d models, %.1f of %.1f MB, %d hits, %d loads, %d evictions",
+                cache.size(), cachedBytes / 1e6, maxBytes / 1e6, hits, loads, evictions);
+    }
+
+    private synchronized void put(String name, Entry loaded) {
+        Entry previous = cache.put(name, loaded);
+        if (previous != null) {
+            cachedBytes -= previous.bytes;
+        }
+        cachedBytes += loaded.bytes;
+        loads++;
+        // The new entry is the most recent, so it is only evicted if it alone is
+        // over the budget, and then not before the next load
+        Iterator<Map.Entry<String, Entry>> eldest = cache.entrySet().iterator();
+        while (cachedBytes > maxBytes && cache.size() > 1) {
+            cachedBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package project;
+
+// The original update rule of NeuralNetwork and still its default: weights follow
+// an exponential average of the gradients, biases take plain gradient steps. The
+// averages are the network's own weightUpdates arrays, so they are saved with
+// the model and existing files resume exactly where they stopped.
+class MomentumBlendOptimizer implements Optimizer {
+    private final double learningRate;
+    private final double momentum;
+    private final double[][] weightUpdates; // Indexed by layer like the weights
+    private DenseKernels kernels;
+
+    MomentumBlendOptimizer(double learningRate, double momentum, double[][] weightUpdates) {
+        this.learningRate = learningRate;
+        this.momentum = momentum;
+        this.weightUpdates = weightUpdates;
+    }
+
+    // True when the averages live in the given arrays, which is what ModelFile
+    // saves as the optimizer state
+    boolean keepsStateIn(double[][] buffers) {
+        return weightUpdates == buffers;
+    }
+
+    @Override
+    public void init(int[] slotSizes, DenseKernels kernels) {
+        this.kernels = kernels;
+    }
+
+    @Override
+    public void update(int slot, double[] params, double[] gradients, int from, int to, double scale) {
+        if (slot % 2 == 0) {
+            kernels.momentumStep(params, weightUpdates[slot / 2], gradients, from, to, momentum, learningRate, scale);
+        } else {
+            kernels.sgdStep(params, gradients, from, to, learningRate, scale);
+        }
+    }
+
+    // Entry 0, the input layer, is null like in weightUpdates
+    @Override
+    public double[][] saveState() {
+        return weightUpdates;
+    }
+
+    @Override
+    public void restoreState(double[][] state) {
+        for (int i = 1; i < weightUpdates.length; i++) {
+            System.arraycopy(state[i], 0, weightUpdates[i], 0, weightUpdates[i].length);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package project;
+
+// Nesterov accelerated gradient in the reformulation that keeps the weights at
+// the look-ahead point, so the gradient of the current weights can be used as is
+class NesterovOptimizer implements Optimizer {
+    private final double learningRate;
+    private final double momentum;
+    private double[][] velocity; // One buffer per slot, laid out like the parameters
+    private DenseKernels kernels;
+
+    public NesterovOptimizer(double learningRate, double momentum) {
+        this.learningRate = learningRate;
+        this.momentum = momentum;
+    }
+
+    @Override
+    public void init(int[] slotSizes, DenseKernels kernels) {
+        this.kernels = kernels;
+        this.velocity = new double[slotSizes.length][];
+        for (int slot = 0; slot < slotSizes.length; slot++) {
+            velocity[slot] = new double[slotSizes[slot]];
+        }
+    }
+
+    @Override
+    public void update(int slot, double[] params, double[] gradients, int from, int to, double scale) {
+        kernels.nesterovStep(params, velocity[slot], gradients, from, to, momentum, learningRate, scale);
+    }
+
+    @Override
+    public double[][] saveState() {
+        return velocity;
+    }
+
+    @Override
+    public void restoreState(double[][] state) {
+        for (int slot = 0; slot < velocity.length; slot++) {
+            System.arraycopy(state[slot], 0, velocity[slot], 0, velocity[slot].length);
+        }
+    }
+}
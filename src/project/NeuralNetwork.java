@@ -1,8 +1,19 @@
 package project;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 class NeuralNetwork implements Serializable {
     @Serial
@@ -14,62 +25,301 @@ class NeuralNetwork implements Serializable {
     private double momentum;
     private boolean useLeakyReLU;
     private double dropoutRate;
-    private double[][][] weights;
+    private boolean useVectorKernels;
+    private Activation[] layerActivations; // Activation of every layer i >= 1
+    private OutputHead outputHead;
+    private transient Layer[] layers; // layers[i] computes layer i from layer i - 1, dense unless built from layers
+    // Each layer's weights live in one flat row-major array: the weight from
+    // input k of layer i to its output j is at j * stride + k, where the stride
+    // is the layer's fan-in, neuronsPerLayer[i - 1] for dense layers.
+    private transient double[][] weights;
     private double[][] biases;
-    private double[][][] weightUpdates; // For momentum
+    private transient double[][] weightUpdates; // For momentum, same layout as weights
     private double[][] activations; // To store activations for each layer
     private double[][] dropouts; // To store dropout masks for each layer
-    private Random rand;
+    private long seed; // Root of every random stream, see RandomStreams
+
+    // The serialized form keeps the original nested double[][][] weight fields so
+    // that models saved before the switch to flat storage still load.
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("numLayers", int.class),
+            new ObjectStreamField("neuronsPerLayer", int[].class),
+            new ObjectStreamField("learningRate", double.class),
+            new ObjectStreamField("momentum", double.class),
+            new ObjectStreamField("useLeakyReLU", boolean.class),
+            new ObjectStreamField("dropoutRate", double.class),
+            new ObjectStreamField("useVectorKernels", boolean.class),
+            new ObjectStreamField("layerActivations", Activation[].class),
+            new ObjectStreamField("outputHead", OutputHead.class),
+            new ObjectStreamField("layers", int[][].class),
+            new ObjectStreamField("weights", double[][][].class),
+            new ObjectStreamField("biases", double[][].class),
+            new ObjectStreamField("weightUpdates", double[][][].class),
+            new ObjectStreamField("activations", double[][].class),
+            new ObjectStreamField("dropouts", double[][].class),
+            new ObjectStreamField("seed", long.class)
+    };
+
+    private transient DenseKernels kernels;
+    private transient BatchWorkspace[] workspaces; // One set of mini-batch buffers per worker, sized by train
+    private transient int workers; // Number of training threads, 0 or 1 trains on the calling thread
+    private transient boolean hogwild; // Workers apply their own updates without synchronizing
+    private transient ExecutorService executor;
+    private transient List<Callable<Void>> computeTasks; // One per worker, see createWorkerTasks
+    private transient List<Callable<Void>> updateTasks;
+    private transient Dataset batchInputs; // Batch currently dispatched to the workers
+    private transient Dataset batchTargets;
+
+    private transient int batchSources;
+    private transient int batchCount;
+    private transient int batchOffset; // Position in the epoch of row 0 of the batch datasets, see forwardLayers
+    private transient List<TrainingListener> listeners; // Null until the first addTrainingListener
+    private transient BatchMetrics batchMetrics; // Reused for every batch passed to the listeners
+    private transient Optimizer optimizer; // Null until the first update or setOptimizer, see optimizer()
+    private transient double[][] scratch; // Layer scratch of the single-sample forward, see Layer.scratchSize
+    private transient Dataset validationInputs; // Null without validation, see setValidation
+    private transient Dataset validationTargets;
+    private transient BatchWorkspace validationWorkspace;
+    private transient int earlyStoppingPatience; // 0 disables early stopping
+    private transient double earlyStoppingMinDelta;
+    private transient EarlyStopping earlyStopping; // State of the current train call
+    private transient Path checkpointPath; // Null without checkpoints
+    private transient int checkpointInterval; // Batches between checkpoints
+    private transient int batchesSinceCheckpoint;
+    private transient Checkpoint resumed; // Picked up by the next train call
+    private transient volatile boolean stopRequested; // See stopTraining
+    private transient boolean quiet; // No per-epoch console output, see setLogging
+
+    private static final int VALIDATION_BATCH = 256;
+    // Fewest samples per worker slice for which splitting a batch beats the cost
+    // of handing the slices to the pool and joining them
+    private static final int MIN_SLICE = 8;
+    private transient boolean sequential; // Visit the samples in their stored order, see setShuffle
+    private transient long singleSampleForwards; // Counter for the dropout streams of forward(input, true)
+
+    private static final long DEFAULT_SEED = 42;
+    // Keys of the streams split from seed
+    private static final long INIT_STREAM = 0;
+    private static final long EPOCH_STREAM = 1;
+    private static final long SINGLE_SAMPLE_STREAM = 2;
 
     public NeuralNetwork(int numLayers, int[] neuronsPerLayer, double learningRate, double momentum, boolean useLeakyReLU, double dropoutRate) {
-        this.numLayers = numLayers;
+        this(numLayers, neuronsPerLayer, learningRate, momentum, useLeakyReLU, dropoutRate, false);
+    }
+
+    // useVectorKernels selects the SIMD kernels when the jdk.incubator.vector
+    // module is available, see DenseKernels.create
+    public NeuralNetwork(int numLayers, int[] neuronsPerLayer, double learningRate, double momentum, boolean useLeakyReLU, double dropoutRate, boolean useVectorKernels) {
+        this(neuronsPerLayer, denseLayers(neuronsPerLayer), learningRate, momentum, useLeakyReLU, dropoutRate, useVectorKernels);
+    }
+
+    // Builds a network from explicit layers, for example convolutions and pooling
+    // followed by dense layers. Each layer's input size must match the output
+    // size of the one before it.
+    public NeuralNetwork(Layer[] layers, double learningRate, double momentum, boolean useLeakyReLU, double dropoutRate, boolean useVectorKernels) {
+        this(sizesOf(layers), prepend(layers), learningRate, momentum, useLeakyReLU, dropoutRate, useVectorKernels);
+    }
+
+    private NeuralNetwork(int[] neuronsPerLayer, Layer[] layers, double learningRate, double momentum, boolean useLeakyReLU, double dropoutRate, boolean useVectorKernels) {
+        this.numLayers = neuronsPerLayer.length;
         this.neuronsPerLayer = neuronsPerLayer;
+        this.layers = layers;
         this.learningRate = learningRate;
         this.momentum = momentum;
         this.useLeakyReLU = useLeakyReLU;
         this.dropoutRate = dropoutRate;
-        this.weights = new double[numLayers][][];
+        this.useVectorKernels = useVectorKernels;
+        this.kernels = DenseKernels.create(useVectorKernels);
+        this.weights = new double[numLayers][];
         this.biases = new double[numLayers][];
-        this.weightUpdates = new double[numLayers][][];
+        this.weightUpdates = new double[numLayers][];
         this.activations = new double[numLayers][];
         this.dropouts = new double[numLayers][];
-        this.rand = new Random(42); // Set a fixed random seed for consistency
+        this.seed = DEFAULT_SEED;
+        this.layerActivations = defaultActivations();
+        this.outputHead = OutputHead.ACTIVATION_MSE;
 
         initializeWeights();
     }
 
+    // Rebuilds a network from stored parameters, see ModelFile. layers may be
+    // null for an all-dense network, and weightUpdates when the file carries no
+    // optimizer state.
+    NeuralNetwork(int[] neuronsPerLayer, Layer[] layers, double learningRate, double momentum, boolean useLeakyReLU, double dropoutRate, boolean useVectorKernels,
+                  double[][] weights, double[][] biases, double[][] weightUpdates) {
+        this.numLayers = neuronsPerLayer.length;
+        this.neuronsPerLayer = neuronsPerLayer;
+        this.layers = layers != null ? layers : denseLayers(neuronsPerLayer);
+        this.learningRate = learningRate;
+        this.momentum = momentum;
+        this.useLeakyReLU = useLeakyReLU;
+        this.dropoutRate = dropoutRate;
+        this.useVectorKernels = useVectorKernels;
+        this.kernels = DenseKernels.create(useVectorKernels);
+        this.weights = weights;
+        this.biases = biases;
+        this.weightUpdates = weightUpdates != null ? weightUpdates : new double[numLayers][];
+        this.activations = new double[numLayers][];
+        this.dropouts = new double[numLayers][];
+        this.seed = DEFAULT_SEED;
+        this.layerActivations = defaultActivations();
+        this.outputHead = OutputHead.ACTIVATION_MSE;
+        for (int i = 1; i < numLayers; i++) {
+            if (this.weightUpdates[i] == null) {
+                this.weightUpdates[i] = new double[weights[i].length];
+            }
+            dropouts[i] = dropoutMask(i, neuronsPerLayer[i]);
+        }
+    }
+
+    private static Layer[] denseLayers(int[] neuronsPerLayer) {
+        Layer[] layers = new Layer[neuronsPerLayer.length];
+        for (int i = 1; i < layers.length; i++) {
+            layers[i] = new DenseLayer(neuronsPerLayer[i - 1], neuronsPerLayer[i]);
+        }
+        return layers;
+    }
+
+    private static int[] sizesOf(Layer[] layers) {
+        int[] sizes = new int[layers.length + 1];
+        sizes[0] = layers[0].inputSize();
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i].inputSize() != sizes[i]) {
+                throw new IllegalArgumentException("Layer " + (i + 1) + " takes " + layers[i].inputSize() + " inputs but receives " + sizes[i]);
+            }
+            sizes[i + 1] = layers[i].outputSize();
+        }
+        return sizes;
+    }
+
+    // Shifts the layers so that layers[i] produces layer i, as for the dense constructors
+    private static Layer[] prepend(Layer[] layers) {
+        Layer[] shifted = new Layer[layers.length + 1];
+        System.arraycopy(layers, 0, shifted, 1, layers.length);
+        return shifted;
+    }
+
+    // Splits every mini-batch across the given number of worker threads. In the
+    // default synchronous mode the workers' gradients are summed into a single
+    // update per batch; with hogwild each worker updates the shared weights from
+    // its own slice without any locking, while the optimizer still advances its
+    // step once per batch on the calling thread. Only the single-worker path trains
+    // without allocating: handing the slices to the executor creates a future
+    // per worker, a few hundred bytes per batch (see the allocation check of
+    // NeuralNetworkBenchmark).
+    public void setParallelism(int workers, boolean hogwild) {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        this.workers = Math.max(1, workers);
+        this.hogwild = hogwild;
+        this.workspaces = null;
+        if (this.workers > 1) {
+            executor = Executors.newFixedThreadPool(this.workers, runnable -> {
+                Thread thread = new Thread(runnable, "neural-network-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Worker count for setParallelism that gives every worker at least MIN_SLICE
+    // samples of a batch, and no more workers than there are processors
+    public static int workersFor(int batchSize) {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), batchSize / MIN_SLICE));
+    }
+
+    // He initialization over the fan-in of every output, with one random stream
+    // per layer
     private void initializeWeights() {
         for (int i = 1; i < numLayers; i++) {
-            weights[i] = new double[neuronsPerLayer[i]][neuronsPerLayer[i - 1]];
-            biases[i] = new double[neuronsPerLayer[i]];
-            weightUpdates[i] = new double[neuronsPerLayer[i]][neuronsPerLayer[i - 1]];
-            dropouts[i] = new double[neuronsPerLayer[i]];
-
-            for (int j = 0; j < neuronsPerLayer[i]; j++) {
-                biases[i][j] = rand.nextGaussian() * Math.sqrt(2.0 / neuronsPerLayer[i - 1]);
-                for (int k = 0; k < neuronsPerLayer[i - 1]; k++) {
-                    weights[i][j][k] = rand.nextGaussian() * Math.sqrt(2.0 / neuronsPerLayer[i - 1]);
+            SplittableRandom rand = new SplittableRandom(RandomStreams.split(RandomStreams.split(seed, INIT_STREAM), i));
+            int rows = layers[i].biasCount();
+            int stride = layers[i].fanIn();
+            weights[i] = new double[rows * stride];
+            biases[i] = new double[rows];
+            weightUpdates[i] = new double[rows * stride];
+            dropouts[i] = dropoutMask(i, neuronsPerLayer[i]);
+
+            for (int j = 0; j < rows; j++) {
+                biases[i][j] = rand.nextGaussian() * Math.sqrt(2.0 / stride);
+                for (int k = 0; k < stride; k++) {
+                    weights[i][j * stride + k] = rand.nextGaussian() * Math.sqrt(2.0 / stride);
                 }
             }
         }
     }
 
+    // Every layer with parameters uses ReLU, or LeakyReLU when useLeakyReLU is
+    // set, and pooling layers none, until changed with setActivation
+    private Activation[] defaultActivations() {
+        Activation[] defaults = new Activation[numLayers];
+        for (int i = 1; i < numLayers; i++) {
+            defaults[i] = layers[i].defaultActivation(useLeakyReLU);
+        }
+        return defaults;
+    }
+
+    // Sets the activation of layer 1 .. numLayers - 1. With any output head other
+    // than ACTIVATION_MSE the last layer's activation is not used.
+    public void setActivation(int layer, Activation activation) {
+        if (layer < 1 || layer >= numLayers) {
+            throw new IllegalArgumentException("Layer " + layer + " has no activation");
+        }
+        layerActivations[layer] = activation;
+    }
+
+    // ACTIVATION_MSE is the default and keeps the original behavior; for
+    // classification SOFTMAX_CROSS_ENTROPY usually needs far fewer epochs
+    public void setOutputHead(OutputHead outputHead) {
+        this.outputHead = outputHead;
+    }
+
+    // Creates scratch buffers for batches of up to capacity samples. A workspace
+    // belongs to one thread at a time; once created, forward and training passes
+    // through it allocate nothing.
+    public BatchWorkspace createWorkspace(int capacity) {
+        return new BatchWorkspace(neuronsPerLayer, layers, capacity);
+    }
+
+    // Inference on one sample using the caller's workspace, writing the network
+    // output into output. Allocation free and safe to call from several threads
+    // as long as each uses its own workspace.
+    public void forward(double[] input, double[] output, BatchWorkspace ws) {
+        System.arraycopy(input, 0, ws.activations[0], 0, neuronsPerLayer[0]);
+        forwardLayers(ws, 1, false);
+        System.arraycopy(ws.activations[numLayers - 1], 0, output, 0, neuronsPerLayer[numLayers - 1]);
+    }
+
+    // The returned array is reused by the next call
     public double[] forward(double[] input, boolean isTraining) {
         activations[0] = input; // Set input as activations for layer 0
+        if (scratch == null) {
+            scratch = new double[numLayers][];
+            for (int i = 1; i < numLayers; i++) {
+                scratch[i] = new double[layers[i].scratchSize(1)];
+            }
+        }
 
         for (int i = 1; i < numLayers; i++) {
-            double[] newActivations = new double[neuronsPerLayer[i]];
-            for (int j = 0; j < neuronsPerLayer[i]; j++) {
-                newActivations[j] = biases[i][j];
-                for (int k = 0; k < neuronsPerLayer[i - 1]; k++) {
-                    newActivations[j] += weights[i][j][k] * activations[i - 1][k];
-                }
-                newActivations[j] = useLeakyReLU ? (newActivations[j] > 0 ? newActivations[j] : 0.01 * newActivations[j]) : Math.max(0, newActivations[j]);
+            if (activations[i] == null || activations[i].length != neuronsPerLayer[i]) {
+                activations[i] = new double[neuronsPerLayer[i]];
+            }
+            layers[i].forward(kernels, weights[i], biases[i], activations[i - 1], activations[i], 1, scratch[i]);
+            if (i == numLayers - 1 && outputHead.replacesActivation()) {
+                outputHead.apply(activations[i], activations[i], 1, neuronsPerLayer[i]);
+                break;
             }
-            if (isTraining) {
-                applyDropout(newActivations, i);
+            kernels.activate(activations[i], activations[i], neuronsPerLayer[i], layerActivations[i].slope);
+            if (isTraining && layers[i].biasCount() > 0) {
+                long stream = RandomStreams.split(RandomStreams.split(seed, SINGLE_SAMPLE_STREAM), singleSampleForwards);
+                applyDropout(RandomStreams.split(stream, i), activations[i], dropouts[i], 0, neuronsPerLayer[i]);
             }
-            activations[i] = newActivations;
+        }
+        if (isTraining) {
+            singleSampleForwards++;
         }
         
         if(isTraining == false) {
@@ -80,34 +330,210 @@ class NeuralNetwork implements Serializable {
         return activations[numLayers - 1];
     }
 
-    private void applyDropout(double[] activations, int layerIndex) {
-        for (int i = 0; i < activations.length; i++) {
-            if (rand.nextDouble() < dropoutRate) {
-                activations[i] = 0;
-                dropouts[layerIndex][i] = 0;
-            } else {
-                dropouts[layerIndex][i] = 1 / (1 - dropoutRate);
+    // Layers without parameters, like pooling and flattening, only rearrange
+    // what the layer before already dropped, so they keep every neuron and
+    // their mask stays 1
+    private double[] dropoutMask(int layer, int length) {
+        double[] mask = new double[length];
+        if (layers[layer].biasCount() == 0) {
+            Arrays.fill(mask, 1);
+        }
+        return mask;
+    }
+
+    // Drops each of length activations from offset with probability dropoutRate.
+    // Every 64 random bits of stream decide two neurons, compared 32 bits at a
+    // time against the rate scaled to 2^32.
+    private void applyDropout(long stream, double[] activations, double[] mask, int offset, int length) {
+        long threshold = (long) (dropoutRate * 0x1p32);
+        double keep = 1 / (1 - dropoutRate);
+        for (int i = 0; i < length; i += 2) {
+            long bits = RandomStreams.bits(stream, i >>> 1);
+            drop(activations, mask, offset + i, bits >>> 32, threshold, keep);
+            if (i + 1 < length) {
+                drop(activations, mask, offset + i + 1, bits & 0xFFFFFFFFL, threshold, keep);
             }
         }
     }
 
+    private static void drop(double[] activations, double[] mask, int index, long random, long threshold, double keep) {
+        if (random < threshold) {
+            activations[index] = 0;
+            mask[index] = 0;
+        } else {
+            mask[index] = keep;
+        }
+    }
+
+    // Seeds the weight initialization, the shuffling and dropout. New initial
+    // weights are drawn from the seed, so call it before training. Training is
+    // bit-reproducible for a given seed, data and number of workers.
+    public void setSeed(long seed) {
+        this.seed = seed;
+        singleSampleForwards = 0;
+        initializeWeights();
+    }
+
+    // Training visits the samples of a Dataset in a new random order every epoch
+    // unless shuffle is turned off. Batch sources decide their own order.
+    public void setShuffle(boolean shuffle) {
+        sequential = !shuffle;
+    }
+
+    // Prints a line per epoch, and the validation results, unless turned off
+    public void setLogging(boolean logging) {
+        quiet = !logging;
+    }
+
+    // Ends the current train call after the epoch in progress, from any thread
+    // or from a TrainingListener. The parameters are left as they are.
+    public void stopTraining() {
+        stopRequested = true;
+    }
+
+    // Replaces the default MomentumBlendOptimizer, which uses the learning rate
+    // and momentum given to the constructor. The optimizer's state starts empty.
+    public void setOptimizer(Optimizer optimizer) {
+        int[] slotSizes = new int[2 * numLayers];
+        for (int i = 1; i < numLayers; i++) {
+            slotSizes[2 * i] = weights[i].length;
+            slotSizes[2 * i + 1] = biases[i].length;
+        }
+        optimizer.init(slotSizes, kernels);
+        this.optimizer = optimizer;
+    }
+
+    private Optimizer optimizer() {
+        if (optimizer == null) {
+            setOptimizer(new MomentumBlendOptimizer(learningRate, momentum, weightUpdates));
+        }
+        return optimizer;
+    }
+
+    // True while the optimizer's whole state is the weightUpdates arrays, the
+    // only optimizer state a ModelFile can hold
+    boolean hasDefaultOptimizer() {
+        return optimizer == null || optimizer instanceof MomentumBlendOptimizer blend && blend.keepsStateIn(weightUpdates);
+    }
+
+    // Listeners get timings for every batch and a summary of every epoch. With
+    // none attached, train does no extra work beyond reading the clock.
+    public void addTrainingListener(TrainingListener listener) {
+        if (listeners == null) {
+            listeners = new ArrayList<>();
+            batchMetrics = new BatchMetrics();
+        }
+        listeners.add(listener);
+    }
+
+    public void removeTrainingListener(TrainingListener listener) {
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
+    // Measures the loss and accuracy on these samples after every epoch, in
+    // batches and without dropout. They should not be part of the training data,
+    // see Dataset.slice for holding out part of it.
+    public void setValidation(Dataset inputs, Dataset targets) {
+        validationInputs = inputs;
+        validationTargets = targets;
+    }
+
+    public void setValidation(double[][] inputs, double[][] targets) {
+        setValidation(Dataset.of(inputs), Dataset.of(targets));
+    }
+
+    // Ends training once the validation loss has not dropped by more than
+    // minDelta for patience epochs. The parameters of the best epoch are kept in
+    // memory and restored when training ends. Needs setValidation.
+    public void setEarlyStopping(int patience, double minDelta) {
+        earlyStoppingPatience = patience;
+        earlyStoppingMinDelta = minDelta;
+    }
+
+    // Writes a checkpoint to trainedModels/fileName every everyBatches batches
+    // and after every epoch, see resumeFromCheckpoint
+    public void setCheckpoints(String fileName, int everyBatches) {
+        checkpointPath = Path.of("trainedModels", fileName);
+        checkpointInterval = everyBatches;
+    }
+
+    // Loads a checkpoint written while training this network with the same
+    // optimizer, so call it after setOptimizer. The next train call, with the
+    // same data, batch size and epoch count, continues right after the last
+    // checkpointed batch, bit for bit when the number of workers is also the
+    // same. Returns false when there is no checkpoint to resume.
+    public boolean resumeFromCheckpoint(String fileName) {
+        Path path = Path.of("trainedModels", fileName);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.read(path);
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (!Arrays.deepEquals(checkpoint.layers, describeLayers())) {
+            throw new IllegalArgumentException("Checkpoint " + fileName + " was written for a different network");
+        }
+        Optimizer optimizer = optimizer();
+        if (!optimizer.getClass().getName().equals(checkpoint.optimizer)) {
+            throw new IllegalArgumentException("Checkpoint " + fileName + " holds the state of " + checkpoint.optimizer
+                    + ", not of " + optimizer.getClass().getName());
+        }
+        for (int i = 1; i < numLayers; i++) {
+            System.arraycopy(checkpoint.weights[i], 0, weights[i], 0, weights[i].length);
+            System.arraycopy(checkpoint.biases[i], 0, biases[i], 0, biases[i].length);
+        }
+        optimizer.restoreState(checkpoint.optimizerState);
+        seed = checkpoint.seed;
+        resumed = checkpoint;
+        System.out.printf("Resuming at epoch %d after %d samples.%n", checkpoint.epoch + 1, checkpoint.sample);
+        return true;
+    }
+
     public void train(double[][] inputs, double[][] targets, int batchSize, int epochs) {
-        for (int epoch = 0; epoch < epochs; epoch++) {
-            long startTime = System.currentTimeMillis();
-            double totalLoss = 0;
-            int correctPredictions = 0;
+        train(Dataset.of(inputs), Dataset.of(targets), batchSize, epochs);
+    }
+
+    // Rows are copied straight from the datasets into the batch buffers, so a
+    // memory-mapped BinaryDataset is never materialized as double[][]
+    public void train(Dataset inputs, Dataset targets, int batchSize, int epochs) {
+        int sliceSize = prepareWorkspaces(batchSize);
+        Checkpoint resume = startRun();
+        int firstEpoch = resume != null ? resume.epoch : 0;
+        int[] order = sequential ? null : new int[inputs.size()];
+
+        for (int epoch = firstEpoch; epoch < epochs && !stoppedEarly(); epoch++) {
+            long startTime = System.nanoTime();
+            long allocatedBefore = allocatedBytes();
+            boolean resuming = resume != null && epoch == firstEpoch;
+            double[] totals = resuming ? resume.totals : new double[6]; // See trainOn
+            startEpochMetrics(epoch);
+            long shuffleStream = startEpochStreams(epoch);
+            Dataset epochInputs = inputs;
+            Dataset epochTargets = targets;
+            if (order != null) {
+                // Only the indices move; the rows are read through the permutation
+                permute(order, shuffleStream);
+                epochInputs = inputs.reorder(order);
+                epochTargets = targets.reorder(order);
+            }
 
             int lastShownProgress = 0;
 
-            for (int i = 0; i < inputs.length; i += batchSize) {
-                int end = Math.min(i + batchSize, inputs.length);
-                for (int j = i; j < end; j++) {
-                    double[] output = trainSingle(inputs[j], targets[j]);
-                    totalLoss += computeLoss(output, targets[j]);
-                    correctPredictions += computeAccuracy(output, targets[j]);
+            for (int i = resuming ? resume.sample : 0; i < inputs.size(); i += batchSize) {
+                int count = Math.min(batchSize, inputs.size() - i);
+                trainOn(epochInputs, epochTargets, i, count, sliceSize, 0, totals);
+                if (i + count < inputs.size()) {
+                    checkpointIfDue(epoch, i + count, totals);
                 }
+
                 // Display progress
-                int progress = (i + batchSize) * 100 / inputs.length;
+                int progress = (i + batchSize) * 100 / inputs.size();
 
                 if (progress % 20 == 0 && lastShownProgress != progress) {
                     lastShownProgress = progress;
@@ -115,64 +541,526 @@ class NeuralNetwork implements Serializable {
                 }
             }
 
-            double averageLoss = totalLoss / inputs.length;
-            double accuracy = (double) correctPredictions / inputs.length * 100;
-            long endTime = System.currentTimeMillis();
-            long duration = (endTime - startTime) / 1000;
+            finishEpoch(epoch, totals, inputs.size(), startTime, allocatedBefore);
+        }
+        finishRun();
+    }
+
+    // Trains on the batches produced by source, for example a
+    // PrefetchingBatchSource streaming a dataset that does not fit in memory
+    public void train(BatchSource source, int epochs) {
+        int sliceSize = prepareWorkspaces(source.batchSize());
+        Checkpoint resume = startRun();
+        int firstEpoch = resume != null ? resume.epoch : 0;
 
-            System.out.printf("Epoch %d: Loss = %.6f, Accuracy = %.2f%%, Time = %d s%n", epoch + 1, averageLoss, accuracy, duration);
+        for (int epoch = firstEpoch; epoch < epochs && !stoppedEarly(); epoch++) {
+            long startTime = System.nanoTime();
+            long allocatedBefore = allocatedBytes();
+            boolean resuming = resume != null && epoch == firstEpoch;
+            double[] totals = resuming ? resume.totals : new double[6];
+            int samples = 0;
+            startEpochMetrics(epoch);
+            startEpochStreams(epoch);
+
+            source.startEpoch(epoch);
+            Batch batch;
+            long waitStart = System.nanoTime();
+            while ((batch = source.next()) != null) {
+                // The batches trained on before the checkpoint are read and dropped
+                if (!resuming || samples >= resume.sample) {
+                    // Rows are read from 0 of each batch, dropout follows the epoch position
+                    batchOffset = samples;
+                    trainOn(batch.inputs, batch.targets, 0, batch.count, sliceSize, System.nanoTime() - waitStart, totals);
+                    checkpointIfDue(epoch, samples + batch.count, totals);
+                }
+                samples += batch.count;
+                source.recycle(batch);
+                waitStart = System.nanoTime();
+            }
+
+            finishEpoch(epoch, totals, samples, startTime, allocatedBefore);
+        }
+        finishRun();
+    }
+
+    // Sets up early stopping and the random streams for a train call and returns
+    // the checkpoint it resumes from, if any
+    private Checkpoint startRun() {
+        if (earlyStoppingPatience > 0 && validationInputs == null) {
+            throw new IllegalStateException("Early stopping needs a validation set, see setValidation");
+        }
+        Checkpoint resume = resumed;
+        resumed = null;
+        earlyStopping = earlyStoppingPatience > 0 ? new EarlyStopping(earlyStoppingPatience, earlyStoppingMinDelta) : null;
+        batchesSinceCheckpoint = 0;
+        stopRequested = false;
+        if (resume != null && resume.earlyStopping != null) {
+            earlyStopping = resume.earlyStopping;
         }
+        return resume;
     }
 
-    private double[] trainSingle(double[] input, double[] target) {
-        double[] output = forward(input, true);
-        double[][] deltas = new double[numLayers][];
-        for (int i = numLayers - 1; i >= 1; i--) {
-            deltas[i] = new double[neuronsPerLayer[i]];
-            for (int j = 0; j < neuronsPerLayer[i]; j++) {
-                if (i == numLayers - 1) {
-                    deltas[i][j] = (output[j] - target[j]) * (useLeakyReLU ? (output[j] > 0 ? 1 : 0.01) : (output[j] > 0 ? 1 : 0));
-                } else {
-                    deltas[i][j] = 0;
-                    for (int k = 0; k < neuronsPerLayer[i + 1]; k++) {
-                        deltas[i][j] += deltas[i + 1][k] * weights[i + 1][k][j];
+    // Points every workspace at the dropout stream of the epoch and returns the
+    // stream for its shuffle
+    private long startEpochStreams(int epoch) {
+        long stream = RandomStreams.split(RandomStreams.split(seed, EPOCH_STREAM), epoch);
+        batchOffset = 0;
+        for (BatchWorkspace ws : workspaces) {
+            ws.stream = RandomStreams.split(stream, 1);
+        }
+        return RandomStreams.split(stream, 0);
+    }
+
+    // Fisher-Yates shuffle of the identity, so the order depends only on the stream
+    private static void permute(int[] order, long stream) {
+        SplittableRandom rand = new SplittableRandom(stream);
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    private boolean stoppedEarly() {
+        return stopRequested || earlyStopping != null && earlyStopping.shouldStop();
+    }
+
+    private void finishRun() {
+        if (earlyStopping != null && earlyStopping.restoreBest(weights, biases) && !quiet) {
+            System.out.printf("Restored the parameters of epoch %d, validation loss %.6f%n",
+                    earlyStopping.getBestEpoch(), earlyStopping.getBestLoss());
+        }
+    }
+
+    private void checkpointIfDue(int epoch, int sample, double[] totals) {
+        if (checkpointPath != null && ++batchesSinceCheckpoint >= checkpointInterval) {
+            writeCheckpoint(epoch, sample, totals);
+        }
+    }
+
+    // Called between batches, when no worker is running, so the snapshot is consistent
+    private void writeCheckpoint(int epoch, int sample, double[] totals) {
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.layers = describeLayers();
+        checkpoint.weights = weights;
+        checkpoint.biases = biases;
+        checkpoint.optimizer = optimizer.getClass().getName();
+        checkpoint.optimizerState = optimizer.saveState();
+        checkpoint.seed = seed;
+        checkpoint.epoch = epoch;
+        checkpoint.sample = sample;
+        checkpoint.totals = totals;
+        checkpoint.earlyStopping = earlyStopping;
+        try {
+            checkpoint.write(checkpointPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        batchesSinceCheckpoint = 0;
+    }
+
+    // Sizes the per-worker workspaces for the batch size and returns the number
+    // of samples each worker receives
+    private int prepareWorkspaces(int batchSize) {
+        optimizer(); // Created here so that workers never race to create it
+
+        int parallelism = Math.max(1, workers);
+        int sliceSize = (batchSize + parallelism - 1) / parallelism;
+        if (workspaces == null || workspaces[0].capacity < sliceSize) {
+            workspaces = new BatchWorkspace[parallelism];
+            for (int w = 0; w < parallelism; w++) {
+                workspaces[w] = createWorkspace(sliceSize);
+            }
+            createWorkerTasks();
+        }
+        return sliceSize;
+    }
+
+    // Trains on one mini-batch and adds to totals its summed loss, its correct
+    // predictions and the nanoseconds spent loading, in forward, in backward and
+    // in the update, in that order. waitNanos is time already spent fetching it.
+    private void trainOn(Dataset inputs, Dataset targets, int from, int count, int sliceSize, long waitNanos, double[] totals) {
+        long startTime = System.nanoTime();
+        int used;
+        if (workspaces.length == 1) {
+            trainBatch(inputs, targets, from, count);
+            used = 1;
+        } else {
+            batchInputs = inputs;
+            batchTargets = targets;
+            used = trainBatchParallel(from, count, sliceSize);
+        }
+
+        int outputSize = neuronsPerLayer[numLayers - 1];
+        for (int w = 0; w < used; w++) {
+            BatchWorkspace ws = workspaces[w];
+            double[] output = ws.activations[numLayers - 1];
+            for (int j = 0; j < ws.count; j++) {
+                totals[0] += computeLoss(output, ws.targets, j * outputSize, outputSize);
+                totals[1] += computeAccuracy(output, ws.targets, j * outputSize, outputSize);
+            }
+        }
+
+        // The slowest worker sets the pace of every phase
+        long load = 0, forward = 0, backward = 0, update = 0;
+        for (int w = 0; w < used; w++) {
+            BatchWorkspace ws = workspaces[w];
+            load = Math.max(load, ws.loadNanos);
+            forward = Math.max(forward, ws.forwardNanos);
+            backward = Math.max(backward, ws.backwardNanos);
+            update = Math.max(update, ws.updateNanos);
+        }
+        load += waitNanos;
+        totals[2] += load;
+        totals[3] += forward;
+        totals[4] += backward;
+        totals[5] += update;
+
+        if (listeners != null && !listeners.isEmpty()) {
+            BatchMetrics metrics = batchMetrics;
+            metrics.index++;
+            metrics.samples = count;
+            metrics.loadNanos = load;
+            metrics.forwardNanos = forward;
+            metrics.backwardNanos = backward;
+            metrics.updateNanos = update;
+            metrics.nanos = System.nanoTime() - startTime + waitNanos;
+            for (TrainingListener listener : listeners) {
+                listener.batchFinished(metrics);
+            }
+        }
+    }
+
+    private void startEpochMetrics(int epoch) {
+        if (batchMetrics != null) {
+            batchMetrics.epoch = epoch + 1;
+            batchMetrics.index = 0;
+        }
+    }
+
+    // Reports the epoch, runs the validation and early stopping check and
+    // writes the end-of-epoch checkpoint
+    private void finishEpoch(int epoch, double[] totals, int samples, long startTime, long allocatedBefore) {
+        long nanos = System.nanoTime() - startTime;
+        long allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+        if (!quiet) {
+            printEpoch(epoch, totals, samples, nanos);
+        }
+
+        double[] validation = validationInputs != null ? validate() : null;
+        if (validation != null) {
+            if (!quiet) {
+                System.out.printf("Validation: Loss = %.6f, Accuracy = %.2f%%%n", validation[0], validation[1]);
+            }
+            if (earlyStopping != null && earlyStopping.record(epoch + 1, validation[0], weights, biases) && !quiet) {
+                System.out.printf("Stopping early, the validation loss has not improved since epoch %d%n", earlyStopping.getBestEpoch());
+            }
+        }
+        if (checkpointPath != null) {
+            writeCheckpoint(epoch + 1, 0, new double[6]);
+        }
+        if (listeners == null || listeners.isEmpty()) {
+            return;
+        }
+
+        EpochMetrics metrics = new EpochMetrics(epoch + 1, samples, nanos, totals[0] / samples, totals[1] / samples * 100,
+                validation != null ? validation[0] : Double.NaN, validation != null ? validation[1] : Double.NaN,
+                (long) totals[2], (long) totals[3], (long) totals[4], (long) totals[5], allocated,
+                weightNorms(), gradientNorms(), deadFractions());
+        for (TrainingListener listener : listeners) {
+            listener.epochFinished(metrics);
+        }
+    }
+
+    // Mean loss and accuracy in percent on the validation set
+    private double[] validate() {
+        if (validationWorkspace == null) {
+            validationWorkspace = createWorkspace(VALIDATION_BATCH);
+        }
+        BatchWorkspace ws = validationWorkspace;
+        int outputSize = neuronsPerLayer[numLayers - 1];
+        int size = validationInputs.size();
+        double loss = 0;
+        int correct = 0;
+        for (int from = 0; from < size; from += VALIDATION_BATCH) {
+            int count = Math.min(VALIDATION_BATCH, size - from);
+            forwardBatch(ws, validationInputs, from, count, false);
+            for (int s = 0; s < count; s++) {
+                validationTargets.read(from + s, ws.targets, s * outputSize);
+            }
+            double[] output = ws.activations[numLayers - 1];
+            for (int s = 0; s < count; s++) {
+                loss += computeLoss(output, ws.targets, s * outputSize, outputSize);
+                correct += computeAccuracy(output, ws.targets, s * outputSize, outputSize);
+            }
+        }
+        return new double[]{loss / size, correct * 100.0 / size};
+    }
+
+    private void printEpoch(int epoch, double[] totals, int samples, long nanos) {
+        double averageLoss = totals[0] / samples;
+        double accuracy = totals[1] / samples * 100;
+        long duration = nanos / 1_000_000_000;
+
+        System.out.printf("Epoch %d: Loss = %.6f, Accuracy = %.2f%%, Time = %d s%n", epoch + 1, averageLoss, accuracy, duration);
+    }
+
+    // Bytes allocated so far by the calling thread, or -1 when the JVM does not
+    // expose per-thread allocation counters
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private double[] weightNorms() {
+        double[] norms = new double[numLayers];
+        for (int i = 1; i < numLayers; i++) {
+            norms[i] = norm(weights[i], 1);
+        }
+        return norms;
+    }
+
+    // Mean gradient of the last batch held by the first workspace, which in the
+    // synchronous modes is the sum over all workers
+    private double[] gradientNorms() {
+        double[] norms = new double[numLayers];
+        BatchWorkspace ws = workspaces[0];
+        int count = hogwild || workspaces.length == 1 ? ws.count : batchCount;
+        for (int i = 1; i < numLayers && count > 0; i++) {
+            norms[i] = norm(ws.weightGradients[i], 1.0 / count);
+        }
+        return norms;
+    }
+
+    // Fraction of the neurons of each layer whose weighted input was not positive
+    // for any sample of the last batch in the first workspace
+    private double[] deadFractions() {
+        double[] fractions = new double[numLayers];
+        BatchWorkspace ws = workspaces[0];
+        for (int i = 1; i < numLayers && ws.count > 0; i++) {
+            int size = neuronsPerLayer[i];
+            int dead = 0;
+            for (int j = 0; j < size; j++) {
+                boolean fired = false;
+                for (int s = 0; s < ws.count && !fired; s++) {
+                    fired = ws.preActivations[i][s * size + j] > 0;
+                }
+                if (!fired) {
+                    dead++;
+                }
+            }
+            fractions[i] = (double) dead / size;
+        }
+        return fractions;
+    }
+
+    private static double norm(double[] values, double scale) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v * v;
+        }
+        return Math.sqrt(sum) * scale;
+    }
+
+    // Runs samples [from, from + count) as one mini-batch: the gradients of every
+    // sample are summed and the weights are updated once for the whole batch.
+    private void trainBatch(Dataset inputs, Dataset targets, int from, int count) {
+        BatchWorkspace ws = workspaces[0];
+        ws.from = from;
+        ws.count = count;
+        forwardBatch(ws, inputs, from, count, true);
+        backwardBatch(ws, targets, from, count);
+        long startTime = System.nanoTime();
+        optimizer().beginStep();
+        updateWeights(workspaces, 0, 1, count, 0, 1);
+        ws.updateNanos = System.nanoTime() - startTime;
+    }
+
+    // Splits one mini-batch into contiguous slices, one per worker, and returns
+    // the number of workspaces that received samples.
+    private int trainBatchParallel(int from, int count, int sliceSize) {
+        int used = 0;
+        for (BatchWorkspace ws : workspaces) {
+            ws.from = from + used * sliceSize;
+            ws.count = Math.max(0, Math.min(sliceSize, from + count - ws.from));
+            ws.updateNanos = 0;
+            if (ws.count > 0) {
+                used++;
+            }
+        }
+        batchSources = used;
+        batchCount = count;
+        if (hogwild) {
+            // Once per batch on this thread, so stateful optimizers never step concurrently
+            optimizer().beginStep();
+        }
+        runAll(computeTasks);
+        if (!hogwild) {
+            long startTime = System.nanoTime();
+            optimizer().beginStep();
+            runAll(updateTasks);
+            workspaces[0].updateNanos = System.nanoTime() - startTime;
+        }
+        return used;
+    }
+
+    // The worker tasks are created once and read the current batch from fields,
+    // so dispatching a batch does not build new task objects.
+    private void createWorkerTasks() {
+        computeTasks = new ArrayList<>(workspaces.length);
+        updateTasks = new ArrayList<>(workspaces.length);
+        for (int w = 0; w < workspaces.length; w++) {
+            BatchWorkspace ws = workspaces[w];
+            int worker = w;
+            computeTasks.add(() -> {
+                if (ws.count > 0) {
+                    forwardBatch(ws, batchInputs, ws.from, ws.count, true);
+                    backwardBatch(ws, batchTargets, ws.from, ws.count);
+                    if (hogwild) {
+                        long startTime = System.nanoTime();
+                        updateWeights(workspaces, worker, 1, ws.count, 0, 1);
+                        ws.updateNanos = System.nanoTime() - startTime;
                     }
-                    deltas[i][j] *= (useLeakyReLU ? (activations[i][j] > 0 ? 1 : 0.01) : (activations[i][j] > 0 ? 1 : 0));
                 }
-                deltas[i][j] *= dropouts[i][j]; // Apply dropout scaling
+                return null;
+            });
+            // Each worker reduces and applies its own share of the rows of every layer
+            updateTasks.add(() -> {
+                updateWeights(workspaces, 0, batchSources, batchCount, worker, workspaces.length);
+                return null;
+            });
+        }
+    }
+
+    private void runAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Training interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Training worker failed", e.getCause());
         }
+    }
 
-        updateWeights(deltas);
-        return output;
+    // The three phases of a training step are package-private so that
+    // NeuralNetworkBenchmark can time them separately
+    void forwardBatch(BatchWorkspace ws, Dataset inputs, int from, int count, boolean isTraining) {
+        long startTime = System.nanoTime();
+        int inputSize = neuronsPerLayer[0];
+        for (int s = 0; s < count; s++) {
+            inputs.read(from + s, ws.activations[0], s * inputSize);
+        }
+        long loaded = System.nanoTime();
+
+        forwardLayers(ws, count, isTraining);
+        ws.loadNanos = loaded - startTime;
+        ws.forwardNanos = System.nanoTime() - loaded;
     }
 
-    private void updateWeights(double[][] deltas) {
+    private void forwardLayers(BatchWorkspace ws, int count, boolean isTraining) {
         for (int i = 1; i < numLayers; i++) {
-            double[] prevActivations = activations[i - 1];
-
-            for (int j = 0; j < neuronsPerLayer[i]; j++) {
-                biases[i][j] -= learningRate * deltas[i][j];
-                for (int k = 0; k < neuronsPerLayer[i - 1]; k++) {
-                    weightUpdates[i][j][k] = momentum * weightUpdates[i][j][k] + (1 - momentum) * deltas[i][j] * prevActivations[k];
-                    weights[i][j][k] -= learningRate * weightUpdates[i][j][k];
+            int length = count * neuronsPerLayer[i];
+            layers[i].forward(kernels, weights[i], biases[i], ws.activations[i - 1], ws.preActivations[i], count, ws.scratch[i]);
+            if (i == numLayers - 1 && outputHead.replacesActivation()) {
+                // No dropout on the outputs of a head
+                outputHead.apply(ws.preActivations[i], ws.activations[i], count, neuronsPerLayer[i]);
+                break;
+            }
+            kernels.activate(ws.preActivations[i], ws.activations[i], length, layerActivations[i].slope);
+            if (isTraining && layers[i].biasCount() > 0) {
+                // Each sample draws from the stream of its position in the epoch,
+                // however the batch is split between workers
+                int size = neuronsPerLayer[i];
+                for (int s = 0; s < count; s++) {
+                    long stream = RandomStreams.split(RandomStreams.split(ws.stream, batchOffset + ws.from + s), i);
+                    applyDropout(stream, ws.activations[i], ws.dropouts[i], s * size, size);
                 }
             }
         }
     }
 
-    private double computeLoss(double[] output, double[] target) {
-        double loss = 0;
-        for (int i = 0; i < output.length; i++) {
-            loss += Math.pow(output[i] - target[i], 2);
+    void backwardBatch(BatchWorkspace ws, Dataset targets, int from, int count) {
+        long startTime = System.nanoTime();
+        int last = numLayers - 1;
+        int outputSize = neuronsPerLayer[last];
+        double[] output = ws.activations[last];
+        double[] outputDeltas = ws.deltas[last];
+        for (int s = 0; s < count; s++) {
+            targets.read(from + s, ws.targets, s * outputSize);
         }
-        return loss / output.length;
+        // For the heads this difference already is the gradient of the loss with
+        // respect to the weighted sums
+        for (int idx = 0; idx < count * outputSize; idx++) {
+            outputDeltas[idx] = output[idx] - ws.targets[idx];
+        }
+        if (!outputHead.replacesActivation()) {
+            kernels.scaleByDerivative(outputDeltas, output, ws.dropouts[last], count * outputSize, layerActivations[last].slope);
+        }
+
+        // Each layer adds its gradients and hands the error back to the layer
+        // before it, which then goes through that layer's activation and dropout
+        ws.clearGradients();
+        for (int i = last; i >= 1; i--) {
+            double[] inDeltas = i > 1 ? ws.deltas[i - 1] : null;
+            layers[i].backward(kernels, weights[i], ws.activations[i - 1], ws.deltas[i], inDeltas,
+                    ws.weightGradients[i], ws.biasGradients[i], count, ws.scratch[i]);
+            if (inDeltas != null) {
+                kernels.scaleByDerivative(inDeltas, ws.activations[i - 1], ws.dropouts[i - 1], count * neuronsPerLayer[i - 1], layerActivations[i - 1].slope);
+            }
+        }
+        ws.backwardNanos = System.nanoTime() - startTime;
     }
 
-    private int computeAccuracy(double[] output, double[] target) {
-        int maxIndexOutput = 0;
-        int maxIndexTarget = 0;
-        for (int i = 0; i < output.length; i++) {
+    // Applies the mean gradient of a batch with the optimizer. The gradients of
+    // sources[first .. first + numSources) are summed first; only the rows in
+    // share part of parts are touched so several threads can update disjoint rows.
+    void updateWeights(BatchWorkspace[] sources, int first, int numSources, int count, int part, int parts) {
+        Optimizer optimizer = optimizer();
+        double scale = 1.0 / count;
+        for (int i = 1; i < numLayers; i++) {
+            int rows = layers[i].biasCount();
+            int rowStart = rows * part / parts;
+            int rowEnd = rows * (part + 1) / parts;
+            int stride = layers[i].fanIn();
+            double[] gradients = sources[first].weightGradients[i];
+            double[] biasGradients = sources[first].biasGradients[i];
+            double[] layerWeights = weights[i];
+
+            // Rows are contiguous, so a share of rows is one contiguous range
+            int start = rowStart * stride;
+            int end = rowEnd * stride;
+            for (int w = first + 1; w < first + numSources; w++) {
+                kernels.add(gradients, sources[w].weightGradients[i], start, end);
+                double[] otherBias = sources[w].biasGradients[i];
+                for (int j = rowStart; j < rowEnd; j++) {
+                    biasGradients[j] += otherBias[j];
+                }
+            }
+
+            optimizer.update(2 * i + 1, biases[i], biasGradients, rowStart, rowEnd, scale);
+            optimizer.update(2 * i, layerWeights, gradients, start, end, scale);
+        }
+    }
+
+    // Compares one row of size values starting at offset in flat output and target buffers
+    private double computeLoss(double[] output, double[] target, int offset, int size) {
+        return outputHead.loss(output, target, offset, size);
+    }
+
+    private int computeAccuracy(double[] output, double[] target, int offset, int size) {
+        int maxIndexOutput = offset;
+        int maxIndexTarget = offset;
+        for (int i = offset; i < offset + size; i++) {
             if (output[i] > output[maxIndexOutput]) {
                 maxIndexOutput = i;
             }
@@ -183,25 +1071,330 @@ class NeuralNetwork implements Serializable {
         return maxIndexOutput == maxIndexTarget ? 1 : 0;
     }
 
-    // Method to save the model to a file
+    // Thread-safe inference on a copy of the current parameters
+    public Predictor toPredictor() {
+        return new Predictor(neuronsPerLayer, layers, weights, biases, layerActivations, outputHead, useVectorKernels);
+    }
+
+    // Predictor that updates the first layer's sums input by input, see
+    // IncrementalPredictor. Needs a dense first layer followed by at least one more.
+    public IncrementalPredictor toIncrementalPredictor() {
+        if (!(layers[1] instanceof DenseLayer) || numLayers < 3) {
+            throw new UnsupportedOperationException("Incremental prediction needs a dense first layer and a layer after it");
+        }
+        // The later layers as a network of their own whose input is layer 1
+        Predictor rest = new Predictor(Arrays.copyOfRange(neuronsPerLayer, 1, numLayers), Arrays.copyOfRange(layers, 1, numLayers),
+                Arrays.copyOfRange(weights, 1, numLayers), Arrays.copyOfRange(biases, 1, numLayers),
+                Arrays.copyOfRange(layerActivations, 1, numLayers), outputHead, useVectorKernels);
+        return new IncrementalPredictor(weights[1], biases[1], neuronsPerLayer[0], neuronsPerLayer[1], layerActivations[1].slope, rest, useVectorKernels);
+    }
+
+    // Inference-only float32 copy of the current parameters
+    public FloatModel toFloatModel() {
+        requireDense("float32");
+        return new FloatModel(neuronsPerLayer, weights, biases, layerActivations, outputHead);
+    }
+
+    // Post-training int8 export. The calibration samples (a slice of the training
+    // set is enough) set the activation range of every layer, and the accuracy of
+    // the float32 and int8 exports on them is printed next to this model's.
+    public QuantizedModel quantize(double[][] calibrationInputs, double[][] calibrationTargets) {
+        requireDense("int8");
+        BatchWorkspace ws = createWorkspace(1);
+        double[] output = new double[neuronsPerLayer[numLayers - 1]];
+        double[] ranges = new double[numLayers];
+        int correct = 0;
+        for (int s = 0; s < calibrationInputs.length; s++) {
+            forward(calibrationInputs[s], output, ws);
+            correct += computeAccuracy(output, calibrationTargets[s], 0, output.length);
+            for (int i = 0; i < numLayers; i++) {
+                for (int k = 0; k < neuronsPerLayer[i]; k++) {
+                    ranges[i] = Math.max(ranges[i], Math.abs(ws.activations[i][k]));
+                }
+            }
+        }
+
+        FloatModel floatModel = toFloatModel();
+        QuantizedModel quantized = new QuantizedModel(neuronsPerLayer, weights, biases, layerActivations, outputHead, ranges);
+        int floatCorrect = 0;
+        int quantizedCorrect = 0;
+        for (int s = 0; s < calibrationInputs.length; s++) {
+            int expected = Predictor.argMax(calibrationTargets[s]);
+            floatCorrect += FloatModel.argMax(floatModel.forward(calibrationInputs[s])) == expected ? 1 : 0;
+            quantizedCorrect += FloatModel.argMax(quantized.forward(calibrationInputs[s])) == expected ? 1 : 0;
+        }
+
+        double percent = 100.0 / calibrationInputs.length;
+        double accuracy = correct * percent;
+        System.out.printf("Calibration on %d samples: double = %.2f%%, float32 = %.2f%% (%+.2f), int8 = %.2f%% (%+.2f)%n",
+                calibrationInputs.length, accuracy,
+                floatCorrect * percent, floatCorrect * percent - accuracy,
+                quantizedCorrect * percent, quantizedCorrect * percent - accuracy);
+        System.out.printf("Parameter memory: double = %d KB, float32 = %d KB, int8 = %d KB%n",
+                floatModel.parameterBytes() * 2 / 1024, floatModel.parameterBytes() / 1024, quantized.parameterBytes() / 1024);
+        return quantized;
+    }
+
+    // Frozen inference model without dropout and with the bias add and activation
+    // fused into every layer's matrix-vector product. ReLU neurons of the hidden
+    // layers that never fire on the calibration samples are removed, which does
+    // not change any output for those samples, and the pruneFraction smallest
+    // weights of every layer are dropped, storing sparse enough layers as CSR.
+    // With no calibration samples no neuron is removed.
+    public FrozenModel freeze(double[][] calibrationInputs, double pruneFraction) {
+        requireDense("frozen");
+        boolean[][] alive = liveNeurons(calibrationInputs);
+        FrozenModel frozen = new FrozenModel(neuronsPerLayer, weights, biases, layerActivations, outputHead, alive, pruneFraction, useVectorKernels);
+
+        long weightCount = 0;
+        for (int i = 1; i < numLayers; i++) {
+            weightCount += weights[i].length;
+        }
+        System.out.printf("Frozen %s into %s, %d of %d weights kept in %d sparse layers, parameter memory %d KB -> %d KB%n",
+                Arrays.toString(neuronsPerLayer), Arrays.toString(frozen.getSizes()), frozen.weightCount(), weightCount,
+                frozen.sparseLayers(), 8 * (weightCount + biasCount()) / 1024, frozen.parameterBytes() / 1024);
+        if (calibrationInputs != null && calibrationInputs.length > 0) {
+            Predictor predictor = toPredictor();
+            int agreed = 0;
+            for (double[] input : calibrationInputs) {
+                agreed += Predictor.argMax(predictor.predict(input)) == Predictor.argMax(frozen.predict(input)) ? 1 : 0;
+            }
+            System.out.printf("Predictions agree on %.2f%% of %d calibration samples%n", agreed * 100.0 / calibrationInputs.length, calibrationInputs.length);
+        }
+        return frozen;
+    }
+
+    // Marks the neurons that stay in a frozen model: all of them except the ReLU
+    // neurons of hidden layers whose weighted input is never positive for the
+    // calibration samples. A ReLU neuron like that only ever outputs zero.
+    private boolean[][] liveNeurons(double[][] calibrationInputs) {
+        boolean[][] alive = new boolean[numLayers][];
+        if (calibrationInputs == null || calibrationInputs.length == 0) {
+            return alive;
+        }
+        for (int i = 1; i < numLayers - 1; i++) {
+            if (layerActivations[i] == Activation.RELU) {
+                alive[i] = new boolean[neuronsPerLayer[i]];
+            }
+        }
+        Dataset inputs = Dataset.of(calibrationInputs);
+        BatchWorkspace ws = createWorkspace(VALIDATION_BATCH);
+        for (int from = 0; from < inputs.size(); from += VALIDATION_BATCH) {
+            int count = Math.min(VALIDATION_BATCH, inputs.size() - from);
+            forwardBatch(ws, inputs, from, count, false);
+            for (int i = 1; i < numLayers; i++) {
+                if (alive[i] == null) {
+                    continue;
+                }
+                int size = neuronsPerLayer[i];
+                for (int idx = 0; idx < count * size; idx++) {
+                    if (ws.preActivations[i][idx] > 0) {
+                        alive[i][idx % size] = true;
+                    }
+                }
+            }
+        }
+        return alive;
+    }
+
+    private long biasCount() {
+        long count = 0;
+        for (int i = 1; i < numLayers; i++) {
+            count += biases[i].length;
+        }
+        return count;
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("numLayers", numLayers);
+        fields.put("neuronsPerLayer", neuronsPerLayer);
+        fields.put("learningRate", learningRate);
+        fields.put("momentum", momentum);
+        fields.put("useLeakyReLU", useLeakyReLU);
+        fields.put("dropoutRate", dropoutRate);
+        fields.put("useVectorKernels", useVectorKernels);
+        fields.put("layerActivations", layerActivations);
+        fields.put("outputHead", outputHead);
+        fields.put("layers", describeLayers());
+        fields.put("weights", toNested(weights));
+        fields.put("biases", biases);
+        fields.put("weightUpdates", toNested(weightUpdates));
+        fields.put("activations", activations);
+        fields.put("dropouts", dropouts);
+        fields.put("seed", seed);
+        out.writeFields();
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        numLayers = fields.get("numLayers", 0);
+        neuronsPerLayer = (int[]) fields.get("neuronsPerLayer", null);
+        learningRate = fields.get("learningRate", 0.0);
+        momentum = fields.get("momentum", 0.0);
+        useLeakyReLU = fields.get("useLeakyReLU", false);
+        dropoutRate = fields.get("dropoutRate", 0.0);
+        useVectorKernels = fields.get("useVectorKernels", false);
+        kernels = DenseKernels.create(useVectorKernels);
+        int[][] descriptions = (int[][]) fields.get("layers", null);
+        layers = descriptions != null ? createLayers(descriptions) : denseLayers(neuronsPerLayer);
+        // Streams written before per-layer activations keep the original behavior
+        layerActivations = (Activation[]) fields.get("layerActivations", null);
+        if (layerActivations == null) {
+            layerActivations = defaultActivations();
+        }
+        outputHead = (OutputHead) fields.get("outputHead", OutputHead.ACTIVATION_MSE);
+
+        weights = toFlat((double[][][]) fields.get("weights", null));
+        biases = (double[][]) fields.get("biases", null);
+        weightUpdates = toFlat((double[][][]) fields.get("weightUpdates", null));
+        activations = (double[][]) fields.get("activations", null);
+        dropouts = (double[][]) fields.get("dropouts", null);
+        seed = fields.get("seed", DEFAULT_SEED); // Older streams hold a Random instead, which is skipped
+    }
+
+    // Layer i as its Layer.describe() values, entry 0 unused
+    int[][] describeLayers() {
+        int[][] descriptions = new int[numLayers][];
+        for (int i = 1; i < numLayers; i++) {
+            descriptions[i] = layers[i].describe();
+        }
+        return descriptions;
+    }
+
+    static Layer[] createLayers(int[][] descriptions) {
+        Layer[] layers = new Layer[descriptions.length];
+        for (int i = 1; i < layers.length; i++) {
+            layers[i] = Layer.create(descriptions[i]);
+        }
+        return layers;
+    }
+
+    private double[][][] toNested(double[][] flat) {
+        double[][][] nested = new double[numLayers][][];
+        for (int i = 1; i < numLayers; i++) {
+            int rows = layers[i].biasCount();
+            int stride = layers[i].fanIn();
+            nested[i] = new double[rows][];
+            for (int j = 0; j < rows; j++) {
+                nested[i][j] = Arrays.copyOfRange(flat[i], j * stride, (j + 1) * stride);
+            }
+        }
+        return nested;
+    }
+
+    private static double[][] toFlat(double[][][] nested) {
+        double[][] flat = new double[nested.length][];
+        for (int i = 1; i < nested.length; i++) {
+            int stride = nested[i].length == 0 ? 0 : nested[i][0].length;
+            flat[i] = new double[nested[i].length * stride];
+            for (int j = 0; j < nested[i].length; j++) {
+                System.arraycopy(nested[i][j], 0, flat[i], j * stride, stride);
+            }
+        }
+        return flat;
+    }
+
+    // The float32 and int8 exports only implement dense layers
+    private void requireDense(String format) {
+        for (int i = 1; i < numLayers; i++) {
+            if (!(layers[i] instanceof DenseLayer)) {
+                throw new UnsupportedOperationException("The " + format + " export supports dense layers only, layer " + i + " is not");
+            }
+        }
+    }
+
+    // Parameters and settings used by the exporters and file formats. These are
+    // the live arrays, not copies.
+    int[] getNeuronsPerLayer() {
+        return neuronsPerLayer;
+    }
+
+    Layer[] getLayers() {
+        return layers;
+    }
+
+    double[][] getWeights() {
+        return weights;
+    }
+
+    double[][] getBiases() {
+        return biases;
+    }
+
+    double[][] getWeightUpdates() {
+        return weightUpdates;
+    }
+
+    double getLearningRate() {
+        return learningRate;
+    }
+
+    double getMomentum() {
+        return momentum;
+    }
+
+    double getDropoutRate() {
+        return dropoutRate;
+    }
+
+    Activation[] getActivations() {
+        return layerActivations;
+    }
+
+    OutputHead getOutputHead() {
+        return outputHead;
+    }
+
+    boolean isLeakyReLU() {
+        return useLeakyReLU;
+    }
+
+    boolean usesVectorKernels() {
+        return useVectorKernels;
+    }
+
+    // Method to save the model to a file, in the ModelFile format with the
+    // momentum buffers so training can continue after loading. With another
+    // optimizer set only the parameters are saved; use setCheckpoints to keep
+    // its state.
     public void saveModel(String fileName) {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream("trainedModels/" + fileName))) {
-            out.writeObject(this);
+        saveModel(fileName, hasDefaultOptimizer());
+    }
+
+    public void saveModel(String fileName, boolean includeOptimizerState) {
+        try {
+            ModelFile.write(this, Path.of("trainedModels", fileName), includeOptimizerState);
             System.out.println("Model saved successfully.");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Method to load the model from a file
+    // Method to load the model from a file. Models saved with Java serialization
+    // by earlier versions are still read.
     public static NeuralNetwork loadModel(String fileName) {
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("trainedModels/" + fileName))) {
-            NeuralNetwork model = (NeuralNetwork) in.readObject();
+        try {
+            NeuralNetwork model = read(Path.of("trainedModels", fileName));
             System.out.println("Model loaded successfully.");
             return model;
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
+
+    // loadModel without the console output, for callers that handle errors themselves
+    static NeuralNetwork read(Path path) throws IOException {
+        if (ModelFile.isModelFile(path)) {
+            return ModelFile.read(path);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(path.toFile()))) {
+            return (NeuralNetwork) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in " + path, e);
+        }
+    }
 }
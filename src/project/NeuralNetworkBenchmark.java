@@ -0,0 +1,343 @@
+package project;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+// Microbenchmarks for the training and inference paths of NeuralNetwork, in the
+// spirit of JMH: every benchmark runs warmup iterations, then measured iterations
+// of a fixed duration, and reports the mean throughput with its standard
+// deviation, the bytes allocated per operation (from the per-thread allocation
+// counter) and the collections that happened while measuring.
+//
+// Usage: NeuralNetworkBenchmark [--layers 784-128-64-10,784-1024-1024-10]
+//        [--batch 1,16,64] [--warmup 3] [--iterations 5] [--time 1000] [--vector]
+//        [--only forward,backward,alloc,...]
+//
+// The sparse benchmark times the dense and sparse kernels of the first layer of
+// every --layers network on inputs of increasing density and reports the
+// density where the sparse ones stop winning, which is what
+// DenseKernels.sparseInputCrossover() is set from.
+//
+// The allocation check runs warmed-up training steps on the single-worker
+// path (forwardBatch, backwardBatch and updateWeights through one workspace)
+// and fails if they allocate a single byte on the calling thread. It also
+// reports, without failing, what a batch costs on the multi-worker path, where
+// handing the slices to the executor allocates a future per worker.
+public class NeuralNetworkBenchmark {
+    private interface Operation {
+        void run();
+    }
+
+    private static final int ALLOCATION_WARMUP_STEPS = 2000; // Enough for the JIT to compile the step
+    private static final int ALLOCATION_STEPS = 1000;
+
+    private int warmupIterations = 3;
+    private int measuredIterations = 5;
+    private long iterationMillis = 1000;
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        String layers = "784-128-64-10,784-512-512-10,784-1024-1024-10";
+        String batches = "1,16,64";
+        String only = "";
+        boolean vector = false;
+        NeuralNetworkBenchmark benchmark = new NeuralNetworkBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--layers" -> layers = args[++i];
+                case "--batch" -> batches = args[++i];
+                case "--warmup" -> benchmark.warmupIterations = Integer.parseInt(args[++i]);
+                case "--iterations" -> benchmark.measuredIterations = Integer.parseInt(args[++i]);
+                case "--time" -> benchmark.iterationMillis = Long.parseLong(args[++i]);
+                case "--vector" -> vector = true;
+                case "--only" -> only = args[++i];
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("%-18s %-20s %6s %14s %14s %12s %8s %8s%n",
+                "Benchmark", "Layers", "Batch", "samples/s", "error", "bytes/op", "gc", "gc ms");
+        for (String layerSpec : layers.split(",")) {
+            int[] neurons = parseLayers(layerSpec);
+            for (String batchSpec : batches.split(",")) {
+                benchmark.runLayerBenchmarks(neurons, layerSpec, Integer.parseInt(batchSpec.trim()), vector, only);
+            }
+        }
+        if (only.isEmpty() || only.contains("load")) {
+            benchmark.runLoadingBenchmarks();
+        }
+        if (only.isEmpty() || only.contains("sparse")) {
+            for (String layerSpec : layers.split(",")) {
+                int[] neurons = parseLayers(layerSpec);
+                for (String batchSpec : batches.split(",")) {
+                    benchmark.runSparseBenchmarks(neurons[0], neurons[1], Integer.parseInt(batchSpec.trim()), vector);
+                }
+            }
+        }
+    }
+
+    private void runLayerBenchmarks(int[] neurons, String layerSpec, int batchSize, boolean vector, String only) {
+        NeuralNetwork network = new NeuralNetwork(neurons.length, neurons, 0.001, 0.9, true, 0.3, vector);
+        Random rand = new Random(1);
+        int samples = Math.max(256, batchSize * 4);
+        double[][] x = new double[samples][neurons[0]];
+        double[][] y = new double[samples][neurons[neurons.length - 1]];
+        for (int s = 0; s < samples; s++) {
+            for (int k = 0; k < x[s].length; k++) {
+                x[s][k] = rand.nextDouble() < 0.2 ? rand.nextDouble() : 0;
+            }
+            y[s][rand.nextInt(y[s].length)] = 1;
+        }
+        Dataset inputs = Dataset.of(x);
+        Dataset targets = Dataset.of(y);
+
+        BatchWorkspace ws = network.createWorkspace(batchSize);
+        BatchWorkspace[] sources = {ws};
+        double[] output = new double[y[0].length];
+        int[] cursor = new int[1];
+
+        if (selected(only, "forward")) {
+            measure("forward.inference", layerSpec, batchSize, batchSize, () -> {
+                int from = next(cursor, batchSize, samples);
+                network.forwardBatch(ws, inputs, from, batchSize, false);
+            });
+            measure("forward.training", layerSpec, batchSize, batchSize, () -> {
+                int from = next(cursor, batchSize, samples);
+                network.forwardBatch(ws, inputs, from, batchSize, true);
+            });
+        }
+        if (selected(only, "predict") && batchSize == 1) {
+            measure("forward.single", layerSpec, 1, 1, () -> network.forward(x[next(cursor, 1, samples)], output, ws));
+        }
+        if (selected(only, "backward")) {
+            network.forwardBatch(ws, inputs, 0, batchSize, true);
+            measure("backward", layerSpec, batchSize, batchSize, () -> network.backwardBatch(ws, targets, 0, batchSize));
+        }
+        if (selected(only, "update")) {
+            network.forwardBatch(ws, inputs, 0, batchSize, true);
+            network.backwardBatch(ws, targets, 0, batchSize);
+            measure("updateWeights", layerSpec, batchSize, batchSize, () -> network.updateWeights(sources, 0, 1, batchSize, 0, 1));
+        }
+        if (selected(only, "step")) {
+            measure("trainStep", layerSpec, batchSize, batchSize, () -> {
+                int from = next(cursor, batchSize, samples);
+                network.forwardBatch(ws, inputs, from, batchSize, true);
+                network.backwardBatch(ws, targets, from, batchSize);
+                network.updateWeights(sources, 0, 1, batchSize, 0, 1);
+            });
+        }
+        if (selected(only, "alloc")) {
+            checkAllocations(network, ws, inputs, targets, layerSpec, batchSize, samples);
+        }
+        if (selected(only, "epoch")) {
+            // train prints one line per epoch, which is part of what is measured
+            measure("epoch", layerSpec, batchSize, samples, () -> network.train(inputs, targets, batchSize, 1));
+        }
+    }
+
+    // Forward plus gradient time of one inSize x outSize layer, dense against
+    // sparse, for input densities from 2% to 100%
+    private void runSparseBenchmarks(int inSize, int outSize, int batchSize, boolean vector) {
+        DenseKernels kernels = DenseKernels.create(vector);
+        Random rand = new Random(3);
+        double[] w = new double[outSize * inSize];
+        double[] bias = new double[outSize];
+        double[] gradients = new double[outSize * inSize];
+        double[] biasGradients = new double[outSize];
+        double[] in = new double[batchSize * inSize];
+        double[] out = new double[batchSize * outSize];
+        double[] d = new double[batchSize * outSize];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = rand.nextGaussian();
+        }
+        for (int i = 0; i < d.length; i++) {
+            d[i] = rand.nextGaussian();
+        }
+        NonZeros nonZeros = new NonZeros();
+        String layer = inSize + "x" + outSize;
+        double crossover = 0;
+        for (double density : new double[]{0.02, 0.05, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.8, 1.0}) {
+            for (int i = 0; i < in.length; i++) {
+                in[i] = rand.nextDouble() < density ? rand.nextDouble() : 0;
+            }
+            String name = String.format("%s d=%.2f", layer, density);
+            double dense = measure("dense", name, batchSize, batchSize, () -> {
+                kernels.multiplyTransposed(in, w, bias, out, batchSize, inSize, outSize);
+                kernels.accumulateGradients(d, in, gradients, biasGradients, batchSize, outSize, inSize);
+            });
+            // Building the lists is part of what the sparse path costs
+            double sparse = measure("sparse", name, batchSize, batchSize, () -> {
+                nonZeros.build(in, batchSize, inSize);
+                kernels.sparseMultiplyTransposed(nonZeros, w, bias, out, batchSize, inSize, outSize);
+                kernels.sparseAccumulateGradients(d, nonZeros, gradients, biasGradients, batchSize, outSize, inSize);
+            });
+            if (sparse > dense) {
+                crossover = density;
+            }
+        }
+        System.out.printf("Sparse kernels win up to a density of %.2f for %s, batch %d, %s kernels%n",
+                crossover, layer, batchSize, vector ? "vector" : "scalar");
+    }
+
+    private void runLoadingBenchmarks() throws IOException {
+        File text = File.createTempFile("benchmark", ".txt");
+        File binary = new File(text.getPath().replaceFirst("\\.txt$", "") + ".bin");
+        text.deleteOnExit();
+        binary.deleteOnExit();
+        int rows = 2000;
+        Random rand = new Random(2);
+        try (PrintWriter out = new PrintWriter(text)) {
+            for (int s = 0; s < rows; s++) {
+                StringBuilder line = new StringBuilder(" {");
+                for (int k = 0; k < 784; k++) {
+                    line.append(k == 0 ? "" : ", ").append(rand.nextDouble() < 0.2 ? rand.nextInt(256) / 255.0 : 0.0);
+                }
+                out.println(line.append("},"));
+            }
+        }
+
+        measure("readDataFromFile", "784", rows, rows, () -> DigitRecognizer.readDataFromFile(text.getPath()));
+        BinaryDataset.convert(text.getPath(), binary.getPath());
+        double[] row = new double[784];
+        measure("binaryDataset", "784", rows, rows, () -> {
+            try {
+                BinaryDataset dataset = BinaryDataset.open(binary.getPath());
+                for (int s = 0; s < dataset.size(); s++) {
+                    dataset.read(s, row, 0);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    // Fails when a warmed-up training step on one workspace allocates; prints
+    // the bytes per batch of the multi-worker path for comparison
+    private void checkAllocations(NeuralNetwork network, BatchWorkspace ws, Dataset inputs, Dataset targets,
+                                  String layers, int batchSize, int samples) {
+        BatchWorkspace[] sources = {ws};
+        int[] cursor = new int[1];
+        Operation step = () -> {
+            int from = next(cursor, batchSize, samples);
+            network.forwardBatch(ws, inputs, from, batchSize, true);
+            network.backwardBatch(ws, targets, from, batchSize);
+            network.updateWeights(sources, 0, 1, batchSize, 0, 1);
+        };
+        long stepBytes = allocatedBy(step, ALLOCATION_WARMUP_STEPS, ALLOCATION_STEPS);
+        System.out.printf("%-18s %-20s %6d %14s %14s %12.1f%n", "alloc.step", layers, batchSize, "", "",
+                (double) stepBytes / ALLOCATION_STEPS);
+        if (stepBytes > 0) {
+            throw new IllegalStateException(String.format("A training step of %s at batch %d allocated %.1f bytes",
+                    layers, batchSize, (double) stepBytes / ALLOCATION_STEPS));
+        }
+
+        if (batchSize >= 2) {
+            int[] neurons = parseLayers(layers);
+            NeuralNetwork parallel = new NeuralNetwork(neurons.length, neurons, 0.001, 0.9, true, 0.3, network.usesVectorKernels());
+            parallel.setParallelism(2, false);
+            parallel.setLogging(false);
+            // Whole epochs, as the parallel path is only reachable through train
+            int batches = (samples + batchSize - 1) / batchSize;
+            int epochs = ALLOCATION_STEPS / batches + 1;
+            long epochBytes = allocatedBy(() -> parallel.train(inputs, targets, batchSize, 1), ALLOCATION_WARMUP_STEPS / batches + 1, epochs);
+            System.out.printf("%-18s %-20s %6d %14s %14s %12.1f%n", "alloc.parallel", layers, batchSize, "", "",
+                    (double) epochBytes / (epochs * batches));
+            parallel.setParallelism(1, false);
+        }
+    }
+
+    // Bytes the calling thread allocates over count runs of operation, after
+    // warmup runs
+    private long allocatedBy(Operation operation, int warmup, int count) {
+        for (int i = 0; i < warmup; i++) {
+            operation.run();
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < count; i++) {
+            operation.run();
+        }
+        return threads.getCurrentThreadAllocatedBytes() - before;
+    }
+
+    // Prints one result line and returns the mean throughput
+    private double measure(String name, String layers, int batchSize, int samplesPerOp, Operation operation) {
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(operation);
+        }
+
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long totalOps = 0;
+        double[] throughput = new double[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            long start = System.nanoTime();
+            long ops = runIteration(operation);
+            throughput[i] = ops * (double) samplesPerOp / ((System.nanoTime() - start) / 1e9);
+            totalOps += ops;
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        double mean = 0;
+        for (double t : throughput) {
+            mean += t / measuredIterations;
+        }
+        double variance = 0;
+        for (double t : throughput) {
+            variance += (t - mean) * (t - mean) / Math.max(1, measuredIterations - 1);
+        }
+        System.out.printf("%-18s %-20s %6d %14.1f %14.1f %12.1f %8d %8d%n",
+                name, layers, batchSize, mean, Math.sqrt(variance), (double) allocated / totalOps,
+                gcCount() - gcCountBefore, gcTime() - gcTimeBefore);
+        return mean;
+    }
+
+    private long runIteration(Operation operation) {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        long ops = 0;
+        do {
+            operation.run();
+            ops++;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+
+    private static boolean selected(String only, String name) {
+        return only.isEmpty() || only.contains(name);
+    }
+
+    private static int next(int[] cursor, int batchSize, int samples) {
+        int from = cursor[0];
+        cursor[0] = from + 2 * batchSize > samples ? 0 : from + batchSize;
+        return from;
+    }
+
+    private static int[] parseLayers(String spec) {
+        String[] parts = spec.trim().split("-");
+        int[] neurons = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            neurons[i] = Integer.parseInt(parts[i]);
+        }
+        return neurons;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+}
@@ -3,6 +3,8 @@ package project;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -13,14 +15,8 @@ public class NeuralNetworkDemo {
         try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
             String line;
             while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.startsWith("{") && line.endsWith("},")) {
-                    line = line.substring(1, line.length() - 2).trim();
-                    String[] values = line.split(",");
-                    double[] data = new double[values.length];
-                    for (int i = 0; i < values.length; i++) {
-                        data[i] = Double.parseDouble(values[i].trim());
-                    }
+                double[] data = BinaryDataset.parseRow(line);
+                if (data != null) {
                     dataList.add(data);
                 }
             }
@@ -56,20 +52,44 @@ public class NeuralNetworkDemo {
 
             // Create a new neural network
             neuralNetwork = new NeuralNetwork(numLayers, neuronsPerLayer, learningRate, momentum, useLeakyReLU, 0.3);
+            neuralNetwork.setOutputHead(OutputHead.SOFTMAX_CROSS_ENTROPY);
         }
 
-        // Read training data from file
-        double[][] inputs = readDataFromFile("datasets/digit_recognition/trainingData.txt");
-        double[][] targets = readDataFromFile("datasets/digit_recognition/trainingLabels.txt");
+        // Map the training data, converting the text files to the binary format on first use
+        BinaryDataset inputs = BinaryDataset.openOrConvert("datasets/digit_recognition/trainingData.txt");
+        BinaryDataset targets = BinaryDataset.openOrConvert("datasets/digit_recognition/trainingLabels.txt");
 
-        // Read testing data from file
-        double[][] tests = readDataFromFile("datasets/digit_recognition/testingData.txt");
+        // Map the testing data
+        BinaryDataset tests = BinaryDataset.openOrConvert("datasets/digit_recognition/testingData.txt");
+        if (inputs == null || targets == null || tests == null) {
+            System.out.println("Failed to load the datasets. Exiting.");
+            return;
+        }
+
+        // The testing data has no labels, so the last tenth of the training data
+        // is held out to measure the model on samples it never trains on
+        int validationStart = inputs.size() * 9 / 10;
+        neuralNetwork.setValidation(inputs.slice(validationStart, inputs.size()), targets.slice(validationStart, targets.size()));
+        neuralNetwork.setEarlyStopping(3, 0);
+        neuralNetwork.setCheckpoints("checkpoint", 1000);
+
+        if (Files.exists(Path.of("trainedModels", "checkpoint"))) {
+            System.out.println("An earlier training run left a checkpoint. Do you want to resume it? (yes/no)");
+            if (scanner.nextLine().equalsIgnoreCase("yes")) {
+                try {
+                    neuralNetwork.resumeFromCheckpoint("checkpoint");
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage() + ", starting over.");
+                }
+            }
+        }
 
         // Train the neural network
         System.out.print("Enter the number of epochs: ");
         int epochs = scanner.nextInt();
         int batchSize = 16;
-        neuralNetwork.train(inputs, targets, batchSize, epochs);
+        neuralNetwork.setParallelism(NeuralNetwork.workersFor(batchSize), false);
+        neuralNetwork.train(inputs.slice(0, validationStart), targets.slice(0, validationStart), batchSize, epochs);
 
         // Save the model after training
         System.out.print("Enter the file name to save the model: ");
@@ -78,8 +98,10 @@ public class NeuralNetworkDemo {
         neuralNetwork.saveModel(saveModelFileName);
 
         // Example prediction
-        for (int i = 0; i < tests.length; i++) {
-            System.out.println("Sample " + i + ": " + getMaxIndexValue(neuralNetwork.forward(tests[i], false)));
+        double[] sample = new double[tests.width()];
+        for (int i = 0; i < tests.size(); i++) {
+            tests.read(i, sample, 0);
+            System.out.println("Sample " + i + ": " + getMaxIndexValue(neuralNetwork.forward(sample, false)));
         }
 
         scanner.close();
@@ -0,0 +1,44 @@
+package project;
+
+// Positions and values of the nonzero entries of count sample-major rows, the
+// compact form the sparse kernels read their inputs from. Sample s owns
+// indices and values [starts[s], starts[s + 1]). The arrays only grow, so one
+// instance per thread is rebuilt batch after batch without allocating.
+class NonZeros {
+    int[] indices = new int[0];
+    double[] values = new double[0];
+    int[] starts = new int[1];
+
+    // Fraction of nonzero values among the first length
+    static double density(double[] rows, int length) {
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            count += rows[i] != 0 ? 1 : 0;
+        }
+        return length == 0 ? 0 : (double) count / length;
+    }
+
+    void build(double[] rows, int count, int size) {
+        if (starts.length < count + 1) {
+            starts = new int[count + 1];
+        }
+        if (indices.length < count * size) {
+            indices = new int[count * size];
+            values = new double[count * size];
+        }
+        int p = 0;
+        for (int s = 0; s < count; s++) {
+            starts[s] = p;
+            int row = s * size;
+            for (int k = 0; k < size; k++) {
+                double v = rows[row + k];
+                if (v != 0) {
+                    indices[p] = k;
+                    values[p] = v;
+                    p++;
+                }
+            }
+        }
+        starts[count] = p;
+    }
+}
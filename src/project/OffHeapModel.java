@@ -0,0 +1,228 @@
+package project;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Inference on parameters kept outside the Java heap. The model is one native
+// MemorySegment holding a complete ModelFile image, header included, so the
+// tensors sit at the file's 64-byte aligned offsets and the segment can be
+// mapped from a file or written to one without any conversion. Mapping a file
+// reads nothing up front and leaves paging to the operating system; either way
+// the heap only holds the per-thread activation buffers, so its size and the GC
+// pauses no longer grow with the model.
+//
+// The segment comes from a shared Arena and is never written after it is
+// built, so any number of threads can predict at once. close() frees it, after
+// which predictions throw IllegalStateException. Models saved with save() are
+// written to a new file that is moved over the old one, so a process that has
+// the old version mapped keeps reading it unharmed.
+//
+// java.lang.foreign is a preview API on Java 21, so this class and the segment
+// kernels need --enable-preview. No other class refers to them at compile time;
+// InferenceServer --off-heap loads this one by name.
+class OffHeapModel implements BatchPredictor, AutoCloseable {
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final int HEADER_SIZE_OFFSET = 8; // See the layout in ModelFile
+
+    private final Arena arena;
+    private final MemorySegment image;
+    private final ModelFile.Header header;
+    private final int numLayers;
+    private final int[] neuronsPerLayer;
+    private final double[] slopes;
+    private final MemorySegment[] weights; // Slices of image
+    private final MemorySegment[] biases;
+    private final MemorySegment[] weightUpdates; // null without optimizer state
+    private final SegmentKernels segmentKernels;
+    private final DenseKernels kernels;
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new); // Per-thread, grown on demand
+
+    private static final class Buffers {
+        int capacity;
+        double[][] activations; // Sample-major, one per layer
+    }
+
+    private OffHeapModel(Arena arena, MemorySegment image, Path path, boolean useVectorKernels) throws IOException {
+        this.arena = arena;
+        this.image = image;
+        int headerSize = image.get(INT, HEADER_SIZE_OFFSET);
+        this.header = ModelFile.readHeader(image.asSlice(0, headerSize).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN), path);
+        if (!header.isDense()) {
+            throw new UnsupportedOperationException("The off-heap model supports dense layers only");
+        }
+        long[] offsets = header.tensorOffsets();
+        if (offsets[offsets.length - 1] > image.byteSize()) {
+            throw new IOException("Model file is truncated: " + path);
+        }
+        this.numLayers = header.numLayers();
+        this.neuronsPerLayer = header.neuronsPerLayer;
+        this.slopes = new double[numLayers];
+        this.weights = new MemorySegment[numLayers];
+        this.biases = new MemorySegment[numLayers];
+        boolean optimizerState = (header.flags & ModelFile.OPTIMIZER_STATE) != 0;
+        this.weightUpdates = optimizerState ? new MemorySegment[numLayers] : null;
+        for (int i = 1; i < numLayers; i++) {
+            slopes[i] = header.activation(i).slope;
+            weights[i] = image.asSlice(offsets[2 * (i - 1)], 8L * header.weightCount(i));
+            biases[i] = image.asSlice(offsets[2 * (i - 1) + 1], 8L * header.biasCount(i));
+            if (optimizerState) {
+                weightUpdates[i] = image.asSlice(offsets[2 * (numLayers - 1) + i - 1], 8L * header.weightCount(i));
+            }
+        }
+        this.segmentKernels = SegmentKernels.create(useVectorKernels);
+        this.kernels = DenseKernels.create(useVectorKernels);
+    }
+
+    // Maps a ModelFile read-only; pages are loaded as the layers first touch them
+    public static OffHeapModel map(Path path, boolean useVectorKernels) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MemorySegment image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            return new OffHeapModel(arena, image, path, useVectorKernels);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    // Copies the parameters of a dense network, and its momentum buffers when
+    // includeOptimizerState is set, into a 64-byte aligned native segment
+    public static OffHeapModel copyOf(NeuralNetwork network, boolean includeOptimizerState) {
+        ByteBuffer headerBytes = ModelFile.header(network, includeOptimizerState);
+        Arena arena = Arena.ofShared();
+        try {
+            ModelFile.Header header = ModelFile.readHeader(headerBytes.duplicate().order(ByteOrder.LITTLE_ENDIAN), null);
+            long[] offsets = header.tensorOffsets();
+            MemorySegment image = arena.allocate(offsets[offsets.length - 1], ModelFile.ALIGNMENT);
+            MemorySegment.copy(MemorySegment.ofBuffer(headerBytes), 0, image, 0, headerBytes.remaining());
+            int numLayers = header.numLayers();
+            for (int i = 1; i < numLayers; i++) {
+                copy(network.getWeights()[i], image, offsets[2 * (i - 1)]);
+                copy(network.getBiases()[i], image, offsets[2 * (i - 1) + 1]);
+                if (includeOptimizerState) {
+                    copy(network.getWeightUpdates()[i], image, offsets[2 * (numLayers - 1) + i - 1]);
+                }
+            }
+            return new OffHeapModel(arena, image, null, network.usesVectorKernels());
+        } catch (IOException e) {
+            arena.close();
+            throw new IllegalStateException("Cannot parse a header that was just written", e);
+        } catch (RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    // Writes the image as a ModelFile through a mapping of a new file, which is
+    // then moved over path
+    public void save(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Arena mapping = Arena.ofConfined();
+             FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, image.byteSize(), mapping);
+            file.copyFrom(image);
+            file.force();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // A trainable copy on the heap, with the momentum buffers if they were kept
+    public NeuralNetwork toNetwork() {
+        double[][] heapWeights = new double[numLayers][];
+        double[][] heapBiases = new double[numLayers][];
+        double[][] heapUpdates = weightUpdates != null ? new double[numLayers][] : null;
+        for (int i = 1; i < numLayers; i++) {
+            heapWeights[i] = weights[i].toArray(SegmentKernels.DOUBLE);
+            heapBiases[i] = biases[i].toArray(SegmentKernels.DOUBLE);
+            if (heapUpdates != null) {
+                heapUpdates[i] = weightUpdates[i].toArray(SegmentKernels.DOUBLE);
+            }
+        }
+        NeuralNetwork network = new NeuralNetwork(neuronsPerLayer.clone(), header.layers, header.learningRate, header.momentum,
+                (header.flags & ModelFile.LEAKY_RELU) != 0, header.dropoutRate, (header.flags & ModelFile.VECTOR_KERNELS) != 0,
+                heapWeights, heapBiases, heapUpdates);
+        network.setOutputHead(header.outputHead);
+        for (int i = 1; i < numLayers; i++) {
+            network.setActivation(i, header.activation(i));
+        }
+        return network;
+    }
+
+    @Override
+    public int inputSize() {
+        return neuronsPerLayer[0];
+    }
+
+    @Override
+    public int outputSize() {
+        return neuronsPerLayer[numLayers - 1];
+    }
+
+    // Size of the native image, which is also the size of its file
+    public long parameterBytes() {
+        return image.byteSize();
+    }
+
+    public void predict(double[] input, double[] output) {
+        double[][] a = buffers(1);
+        System.arraycopy(input, 0, a[0], 0, inputSize());
+        forwardLayers(a, 1);
+        System.arraycopy(a[numLayers - 1], 0, output, 0, outputSize());
+    }
+
+    @Override
+    public void predictBatch(double[][] inputs, double[][] outputs, int count) {
+        double[][] a = buffers(count);
+        int inputSize = inputSize();
+        int outputSize = outputSize();
+        for (int s = 0; s < count; s++) {
+            System.arraycopy(inputs[s], 0, a[0], s * inputSize, inputSize);
+        }
+        forwardLayers(a, count);
+        for (int s = 0; s < count; s++) {
+            System.arraycopy(a[numLayers - 1], s * outputSize, outputs[s], 0, outputSize);
+        }
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    private void forwardLayers(double[][] a, int count) {
+        for (int i = 1; i < numLayers; i++) {
+            segmentKernels.multiplyTransposed(a[i - 1], weights[i], biases[i], a[i], count, neuronsPerLayer[i - 1], neuronsPerLayer[i]);
+            if (i == numLayers - 1 && header.outputHead.replacesActivation()) {
+                header.outputHead.apply(a[i], a[i], count, neuronsPerLayer[i]);
+            } else {
+                kernels.activate(a[i], a[i], count * neuronsPerLayer[i], slopes[i]);
+            }
+        }
+    }
+
+    private double[][] buffers(int count) {
+        Buffers b = buffers.get();
+        if (b.capacity < count) {
+            b.capacity = count;
+            b.activations = new double[numLayers][];
+            for (int i = 0; i < numLayers; i++) {
+                b.activations[i] = new double[count * neuronsPerLayer[i]];
+            }
+        }
+        return b.activations;
+    }
+
+    private static void copy(double[] values, MemorySegment image, long offset) {
+        MemorySegment.copy(values, 0, image, SegmentKernels.DOUBLE, offset, values.length);
+    }
+}
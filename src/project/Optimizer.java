@@ -0,0 +1,30 @@
+package project;
+
+// Update rule applied by NeuralNetwork after every mini-batch. Parameters are
+// addressed by slot: slot 2 * i holds the flat weights of layer i and slot
+// 2 * i + 1 its biases. Optimizer state lives in flat arrays with the same
+// layout as the parameters, and each update is one fused pass of a DenseKernels
+// step over [from, to), so several threads can update disjoint ranges at once.
+interface Optimizer {
+    // Allocates the state for parameters of the given slot sizes; called by
+    // NeuralNetwork.setOptimizer before the first update
+    void init(int[] slotSizes, DenseKernels kernels);
+
+    // Called once per mini-batch before its updates, for step-dependent terms
+    default void beginStep() {
+    }
+
+    // params[k] is updated from gradients[k] * scale, where scale turns the
+    // summed gradients of a batch into their mean
+    void update(int slot, double[] params, double[] gradients, int from, int to, double scale);
+
+    // Everything update depends on besides the parameters, for checkpoints. The
+    // arrays may be the live buffers; restoreState receives arrays of the same
+    // shapes and copies them in. Stateless optimizers have none.
+    default double[][] saveState() {
+        return new double[0][];
+    }
+
+    default void restoreState(double[][] state) {
+    }
+}
@@ -0,0 +1,117 @@
+package project;
+
+// How the last layer turns its weighted sums into outputs and which loss it is
+// trained on. Every head except ACTIVATION_MSE pairs its output function with
+// the loss whose gradient with respect to the weighted sums is simply
+// output - target, so the backward pass starts from that difference in one
+// sweep without a separate derivative. The declaration order is part of the
+// ModelFile format.
+enum OutputHead {
+    // The original behavior: the layer's own Activation (and dropout) followed by
+    // the squared error, with the activation derivative applied to the error
+    ACTIVATION_MSE,
+    // Probabilities over mutually exclusive classes with cross-entropy
+    SOFTMAX_CROSS_ENTROPY,
+    // Independent probabilities per output with binary cross-entropy
+    SIGMOID_CROSS_ENTROPY,
+    // Raw weighted sums with the squared error, for regression
+    LINEAR_MSE;
+
+    private static final double MIN_PROBABILITY = 1e-15; // Keeps log() finite for confident mistakes
+
+    // True when the head replaces the last layer's activation and dropout
+    boolean replacesActivation() {
+        return this != ACTIVATION_MSE;
+    }
+
+    // Applies the output function to count sample-major rows of size values
+    void apply(double[] sums, double[] outputs, int count, int size) {
+        for (int s = 0; s < count; s++) {
+            int o = s * size;
+            switch (this) {
+                case SOFTMAX_CROSS_ENTROPY -> {
+                    // Subtracting the largest sum keeps exp() from overflowing and
+                    // leaves the result unchanged; one exp() per output
+                    double max = sums[o];
+                    for (int j = 1; j < size; j++) {
+                        max = Math.max(max, sums[o + j]);
+                    }
+                    double total = 0;
+                    for (int j = 0; j < size; j++) {
+                        double e = Math.exp(sums[o + j] - max);
+                        outputs[o + j] = e;
+                        total += e;
+                    }
+                    double inverse = 1 / total;
+                    for (int j = 0; j < size; j++) {
+                        outputs[o + j] *= inverse;
+                    }
+                }
+                case SIGMOID_CROSS_ENTROPY -> {
+                    for (int j = 0; j < size; j++) {
+                        outputs[o + j] = 1 / (1 + Math.exp(-sums[o + j]));
+                    }
+                }
+                default -> System.arraycopy(sums, o, outputs, o, size);
+            }
+        }
+    }
+
+    // Float version of apply for a single sample, in place
+    void apply(float[] values, int size) {
+        switch (this) {
+            case SOFTMAX_CROSS_ENTROPY -> {
+                float max = values[0];
+                for (int j = 1; j < size; j++) {
+                    max = Math.max(max, values[j]);
+                }
+                float total = 0;
+                for (int j = 0; j < size; j++) {
+                    values[j] = (float) Math.exp(values[j] - max);
+                    total += values[j];
+                }
+                float inverse = 1 / total;
+                for (int j = 0; j < size; j++) {
+                    values[j] *= inverse;
+                }
+            }
+            case SIGMOID_CROSS_ENTROPY -> {
+                for (int j = 0; j < size; j++) {
+                    values[j] = (float) (1 / (1 + Math.exp(-values[j])));
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    // Loss of one row of size values starting at offset
+    double loss(double[] output, double[] target, int offset, int size) {
+        double loss = 0;
+        switch (this) {
+            case SOFTMAX_CROSS_ENTROPY -> {
+                // Only the classes present in the target contribute, which for
+                // one-hot targets is a single log()
+                for (int i = offset; i < offset + size; i++) {
+                    if (target[i] != 0) {
+                        loss -= target[i] * Math.log(Math.max(output[i], MIN_PROBABILITY));
+                    }
+                }
+                return loss;
+            }
+            case SIGMOID_CROSS_ENTROPY -> {
+                for (int i = offset; i < offset + size; i++) {
+                    double p = Math.min(Math.max(output[i], MIN_PROBABILITY), 1 - MIN_PROBABILITY);
+                    loss -= target[i] * Math.log(p) + (1 - target[i]) * Math.log(1 - p);
+                }
+                return loss / size;
+            }
+            default -> {
+                for (int i = offset; i < offset + size; i++) {
+                    loss += Math.pow(output[i] - target[i], 2);
+                }
+                return loss / size;
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package project;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Coordinator of data-parallel training over TCP. N DistributedWorker
+// processes each train a copy of the network on their own shard of the data;
+// every round they send the change of their parameters as 32-bit floats,
+// optionally top-k compressed, and the server sends back the average, which
+// every side adds to the parameters of the previous round (periodic parameter
+// averaging, also known as local SGD). Rounds are synchronous, so equal shards
+// keep the workers in step; the messages are described in ParameterUpdates.
+//
+// java project.ParameterServer [--workers 2] [--port 5005] [--bind address] [--spawn]
+//        [--save name] [--scaling 1,2,4,8] [training settings, see Settings]
+//
+// --spawn starts the workers as local processes with this JVM's options; without
+// it the server waits for workers started by hand. The server only accepts
+// connections on the loopback interface unless --bind names another address,
+// such as 0.0.0.0, for workers on other machines; workers are not
+// authenticated, so only bind to a trusted network.
+// --scaling trains once per worker count with spawned workers and reports the
+// throughput and scaling efficiency against a single worker, so its list must
+// start with 1.
+class ParameterServer {
+    static final int DEFAULT_PORT = 5005;
+    private static final int ACCEPT_TIMEOUT_MILLIS = 60_000;
+
+    // Everything a worker needs to build the same network and find its shard;
+    // the server sends them as command line options
+    static final class Settings {
+        String inputs = "datasets/digit_recognition/trainingData.txt";
+        String targets = "datasets/digit_recognition/trainingLabels.txt";
+        int[] hiddenLayers = {128, 64};
+        double learningRate = 0.01;
+        double momentum = 0.9;
+        double dropoutRate = 0.3;
+        int batchSize = 16;
+        int epochs = 3;
+        int syncEvery = 8; // Batches per round
+        double topK = 0; // Share of the values a worker sends per round, 0 for all
+        int samples = 0; // Limits the training rows when positive
+        long seed = 42;
+        boolean useVectorKernels;
+
+        static Settings parse(String[] args) {
+            Settings settings = new Settings();
+            for (int i = 0; i < args.length; i += 2) {
+                if (!settings.set(args[i], args[i + 1])) {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            return settings;
+        }
+
+        // Returns false for options that are not training settings
+        boolean set(String option, String value) {
+            switch (option) {
+                case "--inputs" -> inputs = value;
+                case "--targets" -> targets = value;
+                case "--hidden" -> hiddenLayers = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                case "--learning-rate" -> learningRate = Double.parseDouble(value);
+                case "--momentum" -> momentum = Double.parseDouble(value);
+                case "--dropout" -> dropoutRate = Double.parseDouble(value);
+                case "--batch" -> batchSize = Integer.parseInt(value);
+                case "--epochs" -> epochs = Integer.parseInt(value);
+                case "--sync-every" -> syncEvery = Integer.parseInt(value);
+                case "--top-k" -> topK = Double.parseDouble(value);
+                case "--samples" -> samples = Integer.parseInt(value);
+                case "--seed" -> seed = Long.parseLong(value);
+                case "--kernels" -> useVectorKernels = value.equals("vector");
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Paths must not contain spaces
+        String toArgs() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < hiddenLayers.length; i++) {
+                sb.append(i > 0 ? "," : "").append(hiddenLayers[i]);
+            }
+            return String.join(" ", "--inputs", inputs, "--targets", targets, "--hidden", sb.toString(),
+                    "--learning-rate", Double.toString(learningRate), "--momentum", Double.toString(momentum),
+                    "--dropout", Double.toString(dropoutRate), "--batch", Integer.toString(batchSize),
+                    "--epochs", Integer.toString(epochs), "--sync-every", Integer.toString(syncEvery),
+                    "--top-k", Double.toString(topK), "--samples", Integer.toString(samples),
+                    "--seed", Long.toString(seed), "--kernels", useVectorKernels ? "vector" : "scalar");
+        }
+
+        NeuralNetwork network(int inputSize, int outputSize) {
+            int[] neurons = new int[hiddenLayers.length + 2];
+            neurons[0] = inputSize;
+            System.arraycopy(hiddenLayers, 0, neurons, 1, hiddenLayers.length);
+            neurons[neurons.length - 1] = outputSize;
+            NeuralNetwork network = new NeuralNetwork(neurons.length, neurons, learningRate, momentum, true, dropoutRate, useVectorKernels);
+            network.setOutputHead(OutputHead.SOFTMAX_CROSS_ENTROPY);
+            network.setSeed(seed);
+            return network;
+        }
+
+        // The last tenth of the rows is held out for validation
+        int validationStart(int rows) {
+            return rows * 9 / 10;
+        }
+
+        int trainingSize(int rows) {
+            return samples > 0 ? Math.min(samples, validationStart(rows)) : validationStart(rows);
+        }
+    }
+
+    private final Settings settings;
+    private final int workers;
+    private final ServerSocket server;
+    private long bytesReceived;
+    private long bytesSent;
+    private int rounds;
+    private long trainingNanos; // From the last handshake to the last DONE
+
+    public ParameterServer(Settings settings, int workers, InetAddress address, int port) throws IOException {
+        this.settings = settings;
+        this.workers = workers;
+        this.server = new ServerSocket(port, 50, address);
+        server.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+    }
+
+    // The bound port, for a server created on port 0
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    // The address local workers connect to
+    public String host() {
+        InetAddress address = server.getInetAddress();
+        return (address.isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : address).getHostAddress();
+    }
+
+    // Hands network's parameters to the workers, runs rounds until every worker
+    // is done, and leaves the final average in network
+    public void run(NeuralNetwork network) throws IOException {
+        double[] global = new double[ParameterUpdates.count(network)];
+        ParameterUpdates.gather(network, global);
+        List<Socket> sockets = new ArrayList<>();
+        DataInputStream[] ins = new DataInputStream[workers];
+        DataOutputStream[] outs = new DataOutputStream[workers];
+        try {
+            for (int rank = 0; rank < workers; rank++) {
+                Socket socket = server.accept();
+                sockets.add(socket);
+                socket.setTcpNoDelay(true);
+                ins[rank] = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                outs[rank] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                if (ins[rank].readInt() != ParameterUpdates.MAGIC) {
+                    throw new IOException("Not a worker: " + socket.getRemoteSocketAddress());
+                }
+                // Full precision once, so every worker starts from the same point
+                outs[rank].writeInt(rank);
+                outs[rank].writeInt(workers);
+                outs[rank].writeUTF(settings.toArgs());
+                outs[rank].writeInt(global.length);
+                for (double value : global) {
+                    outs[rank].writeDouble(value);
+                }
+                outs[rank].flush();
+            }
+
+            long start = System.nanoTime();
+            float[] received = new float[global.length];
+            double[] sum = new double[global.length];
+            float[] average = new float[global.length];
+            while (true) {
+                Arrays.fill(sum, 0);
+                int done = 0;
+                for (int rank = 0; rank < workers; rank++) {
+                    long bytes = ParameterUpdates.read(ins[rank], received);
+                    if (bytes < 0) {
+                        done++;
+                        continue;
+                    }
+                    bytesReceived += bytes;
+                    for (int j = 0; j < sum.length; j++) {
+                        sum[j] += received[j];
+                    }
+                }
+                if (done == workers) {
+                    break;
+                }
+                if (done > 0) {
+                    throw new IOException(done + " of " + workers + " workers finished before the others");
+                }
+                int nonZeros = 0;
+                for (int j = 0; j < sum.length; j++) {
+                    average[j] = (float) (sum[j] / workers);
+                    global[j] += average[j];
+                    nonZeros += average[j] != 0 ? 1 : 0;
+                }
+                for (DataOutputStream out : outs) {
+                    bytesSent += ParameterUpdates.write(out, average, nonZeros);
+                    out.flush();
+                }
+                rounds++;
+            }
+            trainingNanos = System.nanoTime() - start;
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.close();
+        }
+        ParameterUpdates.scatter(global, network);
+    }
+
+    // Mean bytes a worker sent per round
+    public double uploadPerRound() {
+        return rounds == 0 ? 0 : (double) bytesReceived / rounds / workers;
+    }
+
+    private void printSummary() {
+        System.out.printf(Locale.ROOT, "%d rounds in %.1f s, %.1f MB received and %.1f MB sent, %.0f bytes per worker and round%n",
+                rounds, trainingNanos / 1e9, bytesReceived / 1e6, bytesSent / 1e6, uploadPerRound());
+    }
+
+    // Starts count DistributedWorker processes with the JVM options of this one
+    static List<Process> spawnWorkers(int count, String host, int port, boolean quiet) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            // A debugger or profiler agent would clash on its port
+            if (!option.startsWith("-agentlib") && !option.startsWith("-javaagent")) {
+                command.add(option);
+            }
+        }
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), DistributedWorker.class.getName(),
+                "--host", host, "--port", Integer.toString(port)));
+        if (quiet) {
+            command.add("--quiet");
+        }
+        List<Process> processes = new ArrayList<>();
+        for (int w = 0; w < count; w++) {
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        return processes;
+    }
+
+    private static void awaitWorkers(List<Process> processes) {
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            }
+        }
+    }
+
+    // Accuracy in percent of network on the validation rows
+    private static double validate(NeuralNetwork network, Dataset inputs, Dataset targets) {
+        Predictor predictor = network.toPredictor();
+        double[] input = new double[inputs.width()];
+        double[] target = new double[targets.width()];
+        double[] output = new double[targets.width()];
+        int correct = 0;
+        for (int s = 0; s < inputs.size(); s++) {
+            inputs.read(s, input, 0);
+            targets.read(s, target, 0);
+            predictor.predict(input, output);
+            correct += argmax(output) == argmax(target) ? 1 : 0;
+        }
+        return inputs.size() == 0 ? 0 : correct * 100.0 / inputs.size();
+    }
+
+    private static int argmax(double[] values) {
+        int best = 0;
+        for (int j = 1; j < values.length; j++) {
+            if (values[j] > values[best]) {
+                best = j;
+            }
+        }
+        return best;
+    }
+
+    public static void main(String[] args) {
+        Settings settings = new Settings();
+        int workers = 2;
+        int port = DEFAULT_PORT;
+        String bind = null; // Loopback only
+        boolean spawn = false;
+        String save = null;
+        int[] scaling = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--workers" -> workers = Integer.parseInt(args[++i]);
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--bind" -> bind = args[++i];
+                case "--spawn" -> spawn = true;
+                case "--save" -> save = args[++i];
+                case "--scaling" -> scaling = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                default -> {
+                    if (i + 1 >= args.length || !settings.set(args[i], args[++i])) {
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                }
+            }
+        }
+
+        if (scaling != null && (scaling.length == 0 || scaling[0] != 1)) {
+            throw new IllegalArgumentException("--scaling must start with 1, the single worker the speedup is measured against");
+        }
+
+        BinaryDataset inputs = BinaryDataset.openOrConvert(settings.inputs);
+        BinaryDataset targets = BinaryDataset.openOrConvert(settings.targets);
+        if (inputs == null || targets == null) {
+            System.out.println("Failed to load the datasets. Exiting.");
+            return;
+        }
+        Dataset validationInputs = inputs.slice(settings.validationStart(inputs.size()), inputs.size());
+        Dataset validationTargets = targets.slice(settings.validationStart(targets.size()), targets.size());
+        int trainingSize = settings.trainingSize(inputs.size());
+
+        for (int n : scaling != null ? scaling : new int[]{workers}) {
+            if (trainingSize / n == 0) {
+                throw new IllegalArgumentException(trainingSize + " training rows cannot be split between " + n + " workers");
+            }
+        }
+        try {
+            if (scaling == null) {
+                InetAddress address = bind != null ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress();
+                ParameterServer server = new ParameterServer(settings, workers, address, port);
+                System.out.printf("Waiting for %d workers on %s port %d%n", workers, address.getHostAddress(), server.port());
+                List<Process> processes = spawn ? spawnWorkers(workers, server.host(), server.port(), false) : List.of();
+                NeuralNetwork network = settings.network(inputs.width(), targets.width());
+                server.run(network);
+                awaitWorkers(processes);
+                server.printSummary();
+                System.out.printf(Locale.ROOT, "Validation accuracy %.2f%%%n", validate(network, validationInputs, validationTargets));
+                if (save != null) {
+                    network.saveModel(save);
+                }
+                return;
+            }
+
+            // Every worker count trains the same rows for the same epochs, split
+            // into as many shards, so ideal scaling divides the time by N
+            System.out.println("Workers  Time (s)  Samples/s  Speedup  Efficiency  Validation  Upload/round");
+            double baseline = 0;
+            for (int n : scaling) {
+                int shard = trainingSize / n;
+                ParameterServer server = new ParameterServer(settings, n, InetAddress.getLoopbackAddress(), 0);
+                List<Process> processes = spawnWorkers(n, server.host(), server.port(), true);
+                NeuralNetwork network = settings.network(inputs.width(), targets.width());
+                server.run(network);
+                awaitWorkers(processes);
+                double seconds = server.trainingNanos / 1e9;
+                double throughput = (double) shard * n * settings.epochs / seconds;
+                if (baseline == 0) {
+                    baseline = throughput; // The single worker run
+                }
+                System.out.printf(Locale.ROOT, "%7d  %8.1f  %9.0f  %7.2f  %9.0f%%  %9.2f%%  %10.0f B%n", n, seconds, throughput,
+                        throughput / baseline, throughput / baseline / n * 100, validate(network, validationInputs, validationTargets),
+                        server.uploadPerRound());
+            }
+            System.out.printf("%d processors available%n", Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package project;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Wire format of distributed training, shared by ParameterServer and
+// DistributedWorker. The parameters of a network are handled as one flat
+// vector, the weights then the biases of every layer in order, and a round
+// exchanges changes of that vector as 32-bit floats:
+//
+//   byte   kind       DENSE, SPARSE or DONE
+//   DENSE:  float[n]                       every value
+//   SPARSE: int count, int[count] indices, float[count] values, all others zero
+//
+// write picks whichever of the two is smaller, so top-k compressed updates,
+// and averages of them, go sparse once fewer than half the values are set.
+// Streams are big-endian, as DataOutputStream writes them.
+final class ParameterUpdates {
+    static final int MAGIC = 0x4E4E4454; // "NNDT", sent by a worker when it connects
+    static final byte DENSE = 1;
+    static final byte SPARSE = 2;
+    static final byte DONE = 3;
+
+    private ParameterUpdates() {
+    }
+
+    static int count(NeuralNetwork network) {
+        int count = 0;
+        for (int i = 1; i < network.getWeights().length; i++) {
+            count += length(network.getWeights()[i]) + length(network.getBiases()[i]);
+        }
+        return count;
+    }
+
+    // Copies the live parameters of network into flat
+    static void gather(NeuralNetwork network, double[] flat) {
+        int p = 0;
+        for (int i = 1; i < network.getWeights().length; i++) {
+            p = copy(network.getWeights()[i], flat, p);
+            p = copy(network.getBiases()[i], flat, p);
+        }
+    }
+
+    // Overwrites the live parameters of network with flat
+    static void scatter(double[] flat, NeuralNetwork network) {
+        int p = 0;
+        for (int i = 1; i < network.getWeights().length; i++) {
+            p = paste(flat, p, network.getWeights()[i]);
+            p = paste(flat, p, network.getBiases()[i]);
+        }
+    }
+
+    // Writes values, of which nonZeros are not zero, and returns the bytes written
+    static long write(DataOutputStream out, float[] values, int nonZeros) throws IOException {
+        if (8L * nonZeros + 4 < 4L * values.length) {
+            out.writeByte(SPARSE);
+            out.writeInt(nonZeros);
+            for (int k = 0; k < values.length; k++) {
+                if (values[k] != 0) {
+                    out.writeInt(k);
+                }
+            }
+            for (float value : values) {
+                if (value != 0) {
+                    out.writeFloat(value);
+                }
+            }
+            return 5 + 8L * nonZeros;
+        }
+        out.writeByte(DENSE);
+        for (float value : values) {
+            out.writeFloat(value);
+        }
+        return 1 + 4L * values.length;
+    }
+
+    // Reads one message into values and returns its size in bytes, or -1 for
+    // DONE, which leaves values untouched
+    static long read(DataInputStream in, float[] values) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case DENSE -> {
+                for (int k = 0; k < values.length; k++) {
+                    values[k] = in.readFloat();
+                }
+                return 1 + 4L * values.length;
+            }
+            case SPARSE -> {
+                int count = in.readInt();
+                if (count < 0 || count > values.length) {
+                    throw new IOException("Sparse update of " + count + " values for " + values.length + " parameters");
+                }
+                int[] indices = new int[count];
+                for (int c = 0; c < count; c++) {
+                    indices[c] = in.readInt();
+                    if (indices[c] < 0 || indices[c] >= values.length) {
+                        throw new IOException("Sparse update index " + indices[c] + " for " + values.length + " parameters");
+                    }
+                }
+                Arrays.fill(values, 0);
+                for (int c = 0; c < count; c++) {
+                    values[indices[c]] = in.readFloat();
+                }
+                return 5 + 8L * count;
+            }
+            case DONE -> {
+                return -1;
+            }
+            default -> throw new IOException("Unknown update kind " + kind);
+        }
+    }
+
+    // Keeps the k values of largest magnitude of values + residual in update and
+    // moves everything else, together with the float rounding of what is kept,
+    // into residual, which is added back before the next selection (error
+    // feedback). values is overwritten. Returns the number of values kept;
+    // k >= values.length keeps them all.
+    static int compress(double[] values, double[] residual, float[] update, int k, float[] scratch) {
+        for (int j = 0; j < values.length; j++) {
+            values[j] += residual[j];
+        }
+        float threshold = k >= values.length ? 0 : kthLargestMagnitude(values, k, scratch);
+        int kept = 0;
+        for (int j = 0; j < values.length; j++) {
+            double v = values[j];
+            float sent = 0;
+            // Ties at the threshold are taken until k values are kept
+            if (kept < k && (float) v != 0 && Math.abs((float) v) >= threshold) {
+                sent = (float) v;
+                kept++;
+            }
+            update[j] = sent;
+            residual[j] = v - sent;
+        }
+        return kept;
+    }
+
+    // Quickselect over the magnitudes, in scratch
+    private static float kthLargestMagnitude(double[] values, int k, float[] scratch) {
+        for (int j = 0; j < values.length; j++) {
+            scratch[j] = Math.abs((float) values[j]);
+        }
+        int target = k - 1; // Index in descending order
+        int lo = 0, hi = values.length - 1;
+        while (lo < hi) {
+            float pivot = scratch[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (scratch[i] > pivot) {
+                    i++;
+                }
+                while (scratch[j] < pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    float swap = scratch[i];
+                    scratch[i++] = scratch[j];
+                    scratch[j--] = swap;
+                }
+            }
+            if (target <= j) {
+                hi = j;
+            } else if (target >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return scratch[target];
+    }
+
+    private static int length(double[] values) {
+        return values == null ? 0 : values.length;
+    }
+
+    private static int copy(double[] values, double[] flat, int p) {
+        if (values == null) {
+            return p;
+        }
+        System.arraycopy(values, 0, flat, p, values.length);
+        return p + values.length;
+    }
+
+    private static int paste(double[] flat, int p, double[] values) {
+        if (values == null) {
+            return p;
+        }
+        System.arraycopy(flat, p, values, 0, values.length);
+        return p + values.length;
+    }
+}
@@ -0,0 +1,135 @@
+package project;
+
+import java.util.Arrays;
+
+// Max or average pooling over non-overlapping size x size windows of every
+// channel. Rows and columns that do not fill a whole window are dropped.
+class Pool2DLayer implements Layer {
+    private final boolean max;
+    private final int channels;
+    private final int height;
+    private final int width;
+    private final int size;
+    private final int outHeight;
+    private final int outWidth;
+
+    Pool2DLayer(boolean max, int channels, int height, int width, int size) {
+        this.max = max;
+        this.channels = channels;
+        this.height = height;
+        this.width = width;
+        this.size = size;
+        this.outHeight = height / size;
+        this.outWidth = width / size;
+    }
+
+    public static Pool2DLayer max(int channels, int height, int width, int size) {
+        return new Pool2DLayer(true, channels, height, width, size);
+    }
+
+    public static Pool2DLayer average(int channels, int height, int width, int size) {
+        return new Pool2DLayer(false, channels, height, width, size);
+    }
+
+    // Pools the output of a convolution
+    public static Pool2DLayer max(Conv2DLayer input, int size) {
+        return max(input.outputChannels(), input.outputHeight(), input.outputWidth(), size);
+    }
+
+    public static Pool2DLayer average(Conv2DLayer input, int size) {
+        return average(input.outputChannels(), input.outputHeight(), input.outputWidth(), size);
+    }
+
+    public int outputChannels() {
+        return channels;
+    }
+
+    public int outputHeight() {
+        return outHeight;
+    }
+
+    public int outputWidth() {
+        return outWidth;
+    }
+
+    @Override
+    public int inputSize() {
+        return height * width * channels;
+    }
+
+    @Override
+    public int outputSize() {
+        return outHeight * outWidth * channels;
+    }
+
+    @Override
+    public void forward(DenseKernels kernels, double[] weights, double[] biases, double[] in, double[] out, int count, double[] scratch) {
+        int inputSize = inputSize();
+        int o = 0;
+        double area = size * size;
+        for (int s = 0; s < count; s++) {
+            int sample = s * inputSize;
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int corner = sample + (oy * size * width + ox * size) * channels;
+                    for (int c = 0; c < channels; c++) {
+                        double result = max ? Double.NEGATIVE_INFINITY : 0;
+                        for (int y = 0; y < size; y++) {
+                            int pixel = corner + y * width * channels + c;
+                            for (int x = 0; x < size; x++) {
+                                double v = in[pixel + x * channels];
+                                result = max ? Math.max(result, v) : result + v;
+                            }
+                        }
+                        out[o++] = max ? result : result / area;
+                    }
+                }
+            }
+        }
+    }
+
+    // The maximum of every window is found again in the input instead of being
+    // remembered, so the layer needs no scratch
+    @Override
+    public void backward(DenseKernels kernels, double[] weights, double[] in, double[] outDeltas, double[] inDeltas,
+                         double[] weightGradients, double[] biasGradients, int count, double[] scratch) {
+        if (inDeltas == null) {
+            return;
+        }
+        int inputSize = inputSize();
+        Arrays.fill(inDeltas, 0, count * inputSize, 0);
+        int o = 0;
+        double area = size * size;
+        for (int s = 0; s < count; s++) {
+            int sample = s * inputSize;
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int corner = sample + (oy * size * width + ox * size) * channels;
+                    for (int c = 0; c < channels; c++) {
+                        double delta = outDeltas[o++];
+                        int best = corner + c;
+                        for (int y = 0; y < size; y++) {
+                            int pixel = corner + y * width * channels + c;
+                            for (int x = 0; x < size; x++) {
+                                int index = pixel + x * channels;
+                                if (max) {
+                                    best = in[index] > in[best] ? index : best;
+                                } else {
+                                    inDeltas[index] += delta / area;
+                                }
+                            }
+                        }
+                        if (max) {
+                            inDeltas[best] += delta;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int[] describe() {
+        return new int[]{max ? MAX_POOL_2D : AVG_POOL_2D, channels, height, width, size};
+    }
+}
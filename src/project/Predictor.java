@@ -0,0 +1,125 @@
+package project;
+
+// Thread-safe inference on a snapshot of a trained NeuralNetwork, created by
+// NeuralNetwork.toPredictor. The parameters are copied, so later training does
+// not affect predictions, and every thread runs through its own scratch buffers,
+// so any number of threads can predict at once without locking or console I/O.
+class Predictor implements BatchPredictor {
+    private final int numLayers;
+    private final int[] neuronsPerLayer;
+    private final Layer[] layers; // Layer objects hold no state, so they are shared with the network
+    private final Activation[] layerActivations;
+    private final OutputHead outputHead;
+    private final double[][] weights; // Same flat row-major layout as NeuralNetwork
+    private final double[][] biases;
+    private final DenseKernels kernels;
+    private final ThreadLocal<Buffers> buffers; // Per-thread buffers, grown on demand
+
+    private static final class Buffers {
+        int capacity;
+        double[][] activations; // Sample-major, one per layer
+        double[][] scratch; // See Layer.scratchSize
+    }
+
+    Predictor(int[] neuronsPerLayer, Layer[] layers, double[][] weights, double[][] biases, Activation[] layerActivations, OutputHead outputHead, boolean useVectorKernels) {
+        this.numLayers = neuronsPerLayer.length;
+        this.neuronsPerLayer = neuronsPerLayer.clone();
+        this.layers = layers.clone();
+        this.layerActivations = layerActivations.clone();
+        this.outputHead = outputHead;
+        this.weights = new double[numLayers][];
+        this.biases = new double[numLayers][];
+        for (int i = 1; i < numLayers; i++) {
+            this.weights[i] = weights[i].clone();
+            this.biases[i] = biases[i].clone();
+        }
+        this.kernels = DenseKernels.create(useVectorKernels);
+        this.buffers = ThreadLocal.withInitial(Buffers::new);
+    }
+
+    @Override
+    public int inputSize() {
+        return neuronsPerLayer[0];
+    }
+
+    @Override
+    public int outputSize() {
+        return neuronsPerLayer[numLayers - 1];
+    }
+
+    // Returns a new array, use the two-argument form to avoid the allocation
+    public double[] predict(double[] input) {
+        double[] output = new double[outputSize()];
+        predict(input, output);
+        return output;
+    }
+
+    public void predict(double[] input, double[] output) {
+        Buffers b = buffers(1);
+        System.arraycopy(input, 0, b.activations[0], 0, neuronsPerLayer[0]);
+        forwardLayers(b, 1);
+        System.arraycopy(b.activations[numLayers - 1], 0, output, 0, outputSize());
+    }
+
+    // Runs count samples through the layers together, which reads every weight
+    // matrix once per batch instead of once per sample
+    @Override
+    public void predictBatch(double[][] inputs, double[][] outputs, int count) {
+        Buffers b = buffers(count);
+        double[][] a = b.activations;
+        int inputSize = inputSize();
+        int outputSize = outputSize();
+        for (int s = 0; s < count; s++) {
+            System.arraycopy(inputs[s], 0, a[0], s * inputSize, inputSize);
+        }
+        forwardLayers(b, count);
+        for (int s = 0; s < count; s++) {
+            System.arraycopy(a[numLayers - 1], s * outputSize, outputs[s], 0, outputSize);
+        }
+    }
+
+    // Size of the copied weights and biases, what a cache should weigh this by
+    public long parameterBytes() {
+        long count = 0;
+        for (int i = 1; i < numLayers; i++) {
+            count += weights[i].length + biases[i].length;
+        }
+        return 8 * count;
+    }
+
+    public static int argMax(double[] output) {
+        int best = 0;
+        for (int i = 1; i < output.length; i++) {
+            if (output[i] > output[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private void forwardLayers(Buffers b, int count) {
+        double[][] a = b.activations;
+        for (int i = 1; i < numLayers; i++) {
+            layers[i].forward(kernels, weights[i], biases[i], a[i - 1], a[i], count, b.scratch[i]);
+            if (i == numLayers - 1 && outputHead.replacesActivation()) {
+                outputHead.apply(a[i], a[i], count, neuronsPerLayer[i]);
+            } else {
+                kernels.activate(a[i], a[i], count * neuronsPerLayer[i], layerActivations[i].slope);
+            }
+        }
+    }
+
+    private Buffers buffers(int count) {
+        Buffers b = buffers.get();
+        if (b.capacity < count) {
+            b.capacity = count;
+            b.activations = new double[numLayers][];
+            b.scratch = new double[numLayers][];
+            for (int i = 0; i < numLayers; i++) {
+                b.activations[i] = new double[count * neuronsPerLayer[i]];
+                b.scratch[i] = i == 0 ? null : new double[layers[i].scratchSize(count)];
+            }
+        }
+        return b;
+    }
+}
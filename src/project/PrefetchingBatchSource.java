@@ -0,0 +1,172 @@
+package project;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Streams a dataset in file order and prepares batches on a background thread
+// while the previous ones train. Rows are decoded into a window of shuffleBuffer
+// samples and emitted from random positions of that window, so the read pattern
+// stays sequential (friendly to memory-mapped or paged files) while the batch
+// order is shuffled. Finished batches go through a bounded queue of prefetch
+// buffers that are recycled, so memory use is independent of the dataset size.
+// Each epoch shuffles with its own stream of the seed, independent of the
+// epochs before it.
+class PrefetchingBatchSource implements BatchSource {
+    private final Dataset inputs;
+    private final Dataset targets;
+    private final int batchSize;
+    private final int inputSize;
+    private final int outputSize;
+    private final int shuffleBuffer;
+    private final long seed;
+    private final BlockingQueue<Batch> free;
+    private final BlockingQueue<Batch> ready;
+    private final Batch end = new Batch(0, 0, 0); // Marks the end of a pass in ready
+    private double shift = 0;
+    private double scale = 1;
+
+    private Thread producer;
+    private volatile boolean cancelled;
+    private volatile RuntimeException failure;
+
+    public PrefetchingBatchSource(Dataset inputs, Dataset targets, int batchSize, int shuffleBuffer, int prefetch, long seed) {
+        this.inputs = inputs;
+        this.targets = targets;
+        this.batchSize = batchSize;
+        this.inputSize = inputs.width();
+        this.outputSize = targets.width();
+        this.shuffleBuffer = Math.max(1, shuffleBuffer);
+        this.seed = seed;
+        this.free = new ArrayBlockingQueue<>(prefetch);
+        this.ready = new ArrayBlockingQueue<>(prefetch + 1);
+        for (int i = 0; i < prefetch; i++) {
+            free.add(new Batch(batchSize, inputSize, outputSize));
+        }
+    }
+
+    // Double-buffered with a shuffle window of 64 batches
+    public PrefetchingBatchSource(Dataset inputs, Dataset targets, int batchSize, long seed) {
+        this(inputs, targets, batchSize, batchSize * 64, 2, seed);
+    }
+
+    // Inputs are emitted as (x - shift) * scale
+    public void setNormalization(double shift, double scale) {
+        this.shift = shift;
+        this.scale = scale;
+    }
+
+    @Override
+    public int batchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public void startEpoch(int epoch) {
+        stopProducer();
+        cancelled = false;
+        failure = null;
+        SplittableRandom rand = new SplittableRandom(RandomStreams.split(seed, epoch));
+        producer = new Thread(() -> produce(rand), "batch-prefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    @Override
+    public Batch next() {
+        try {
+            Batch batch = ready.take();
+            if (batch == end) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return null;
+            }
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a batch", e);
+        }
+    }
+
+    @Override
+    public void recycle(Batch batch) {
+        free.add(batch);
+    }
+
+    @Override
+    public void close() {
+        stopProducer();
+    }
+
+    private void produce(SplittableRandom rand) {
+        int total = inputs.size();
+        double[] windowInputs = new double[shuffleBuffer * inputSize];
+        double[] windowTargets = new double[shuffleBuffer * outputSize];
+        int nextRow = 0;
+        int filled = 0;
+        try {
+            while (filled < shuffleBuffer && nextRow < total) {
+                load(nextRow++, windowInputs, windowTargets, filled++);
+            }
+
+            while (filled > 0 && !cancelled) {
+                Batch batch = free.take();
+                int count = 0;
+                while (count < batchSize && filled > 0) {
+                    // Emit a random slot of the window and refill it with the next row
+                    int slot = rand.nextInt(filled);
+                    System.arraycopy(windowInputs, slot * inputSize, batch.inputData, count * inputSize, inputSize);
+                    System.arraycopy(windowTargets, slot * outputSize, batch.targetData, count * outputSize, outputSize);
+                    count++;
+                    if (nextRow < total) {
+                        load(nextRow++, windowInputs, windowTargets, slot);
+                    } else {
+                        filled--;
+                        System.arraycopy(windowInputs, filled * inputSize, windowInputs, slot * inputSize, inputSize);
+                        System.arraycopy(windowTargets, filled * outputSize, windowTargets, slot * outputSize, outputSize);
+                    }
+                }
+                batch.count = count;
+                ready.put(batch);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        ready.add(end);
+    }
+
+    private void load(int row, double[] windowInputs, double[] windowTargets, int slot) {
+        int offset = slot * inputSize;
+        inputs.read(row, windowInputs, offset);
+        if (shift != 0 || scale != 1) {
+            for (int k = offset; k < offset + inputSize; k++) {
+                windowInputs[k] = (windowInputs[k] - shift) * scale;
+            }
+        }
+        targets.read(row, windowTargets, slot * outputSize);
+    }
+
+    // Stops an unfinished pass and returns all of its buffers to the free queue
+    private void stopProducer() {
+        if (producer == null) {
+            return;
+        }
+        cancelled = true;
+        producer.interrupt();
+        try {
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        producer = null;
+        Batch batch;
+        while ((batch = ready.poll()) != null) {
+            if (batch != end) {
+                free.add(batch);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package project;
+
+// Post-training int8 quantization of a NeuralNetwork. Every weight row has its
+// own scale (max |w| / 127) and the input of every layer is quantized with a
+// scale taken from the activation range seen on a calibration set, so the dot
+// products run as int8 x int8 with an int accumulator. Created by
+// NeuralNetwork.quantize.
+class QuantizedModel {
+    private final int numLayers;
+    private final int[] neuronsPerLayer;
+    private final float[] slopes; // Negative slope of every layer's Activation
+    private final OutputHead outputHead;
+    private final byte[][] weights; // Same flat row-major layout as NeuralNetwork
+    private final float[][] rowScales;
+    private final float[][] biases;
+    private final float[] inputScales; // inputScales[i] quantizes the activations feeding layer i
+    private final ThreadLocal<Scratch> scratch;
+
+    private static final class Scratch {
+        final float[][] activations;
+        final byte[] quantized;
+
+        Scratch(int[] neuronsPerLayer) {
+            activations = new float[neuronsPerLayer.length][];
+            int widest = 0;
+            for (int i = 0; i < neuronsPerLayer.length; i++) {
+                activations[i] = new float[neuronsPerLayer[i]];
+                widest = Math.max(widest, neuronsPerLayer[i]);
+            }
+            quantized = new byte[widest];
+        }
+    }
+
+    // activationRanges[i] is the largest |activation| of layer i on the calibration set
+    QuantizedModel(int[] neuronsPerLayer, double[][] weights, double[][] biases, Activation[] layerActivations, OutputHead outputHead, double[] activationRanges) {
+        this.numLayers = neuronsPerLayer.length;
+        this.neuronsPerLayer = neuronsPerLayer.clone();
+        this.slopes = FloatModel.slopes(layerActivations, outputHead);
+        this.outputHead = outputHead;
+        this.weights = new byte[numLayers][];
+        this.rowScales = new float[numLayers][];
+        this.biases = new float[numLayers][];
+        this.inputScales = new float[numLayers];
+
+        for (int i = 1; i < numLayers; i++) {
+            int stride = neuronsPerLayer[i - 1];
+            int rows = neuronsPerLayer[i];
+            this.weights[i] = new byte[rows * stride];
+            this.rowScales[i] = new float[rows];
+            this.biases[i] = FloatModel.toFloat(biases[i]);
+            this.inputScales[i] = scaleFor(activationRanges[i - 1]);
+
+            for (int j = 0; j < rows; j++) {
+                double max = 0;
+                for (int k = 0; k < stride; k++) {
+                    max = Math.max(max, Math.abs(weights[i][j * stride + k]));
+                }
+                float scale = scaleFor(max);
+                rowScales[i][j] = scale;
+                for (int k = 0; k < stride; k++) {
+                    this.weights[i][j * stride + k] = quantize(weights[i][j * stride + k], scale);
+                }
+            }
+        }
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(this.neuronsPerLayer));
+    }
+
+    // The returned array belongs to the calling thread and is reused by its next call
+    public float[] forward(double[] input) {
+        Scratch s = scratch.get();
+        float[][] a = s.activations;
+        byte[] q = s.quantized;
+        for (int k = 0; k < neuronsPerLayer[0]; k++) {
+            a[0][k] = (float) input[k];
+        }
+
+        for (int i = 1; i < numLayers; i++) {
+            int stride = neuronsPerLayer[i - 1];
+            float inputScale = inputScales[i];
+            float[] in = a[i - 1];
+            for (int k = 0; k < stride; k++) {
+                q[k] = quantize(in[k], inputScale);
+            }
+
+            byte[] w = weights[i];
+            float[] out = a[i];
+            for (int j = 0; j < neuronsPerLayer[i]; j++) {
+                int row = j * stride;
+                int acc = 0;
+                for (int k = 0; k < stride; k++) {
+                    acc += w[row + k] * q[k];
+                }
+                float v = biases[i][j] + acc * rowScales[i][j] * inputScale;
+                out[j] = v > 0 ? v : slopes[i] * v;
+            }
+        }
+        outputHead.apply(a[numLayers - 1], neuronsPerLayer[numLayers - 1]);
+        return a[numLayers - 1];
+    }
+
+    public long parameterBytes() {
+        long bytes = 4L * numLayers;
+        for (int i = 1; i < numLayers; i++) {
+            bytes += weights[i].length + 4L * (rowScales[i].length + biases[i].length);
+        }
+        return bytes;
+    }
+
+    private static float scaleFor(double maxAbs) {
+        return maxAbs > 0 ? (float) (maxAbs / 127) : 1f;
+    }
+
+    private static byte quantize(double value, float scale) {
+        long q = Math.round(value / scale);
+        return (byte) Math.max(-127, Math.min(127, q));
+    }
+}
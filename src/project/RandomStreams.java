@@ -0,0 +1,30 @@
+package project;
+
+// Counter-based random numbers built on the SplitMix64 mixer that also drives
+// SplittableRandom. A stream is identified by a single long derived from the
+// network seed and a position in training (epoch, sample, layer), so the same
+// sample gets the same random bits no matter which worker handles it, there is
+// no shared generator to contend on, and a checkpoint only needs the seed.
+final class RandomStreams {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private RandomStreams() {
+    }
+
+    // Independent child stream of stream for every key
+    static long split(long stream, long key) {
+        return mix(stream + mix((key + 1) * GOLDEN_GAMMA));
+    }
+
+    // The index-th 64 random bits of stream
+    static long bits(long stream, long index) {
+        return mix(stream + (index + 1) * GOLDEN_GAMMA);
+    }
+
+    // Stafford's variant 13 of the MurmurHash3 finalizer, as in SplittableRandom
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
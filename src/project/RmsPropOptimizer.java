@@ -0,0 +1,47 @@
+package project;
+
+// Divides every step by a running root mean square of that parameter's gradients
+class RmsPropOptimizer implements Optimizer {
+    private final double learningRate;
+    private final double decay;
+    private final double epsilon;
+    private double[][] meanSquares; // One buffer per slot, laid out like the parameters
+    private DenseKernels kernels;
+
+    public RmsPropOptimizer(double learningRate, double decay, double epsilon) {
+        this.learningRate = learningRate;
+        this.decay = decay;
+        this.epsilon = epsilon;
+    }
+
+    // The usual defaults, decay 0.9 and epsilon 1e-8
+    public RmsPropOptimizer(double learningRate) {
+        this(learningRate, 0.9, 1e-8);
+    }
+
+    @Override
+    public void init(int[] slotSizes, DenseKernels kernels) {
+        this.kernels = kernels;
+        this.meanSquares = new double[slotSizes.length][];
+        for (int slot = 0; slot < slotSizes.length; slot++) {
+            meanSquares[slot] = new double[slotSizes[slot]];
+        }
+    }
+
+    @Override
+    public void update(int slot, double[] params, double[] gradients, int from, int to, double scale) {
+        kernels.rmsPropStep(params, meanSquares[slot], gradients, from, to, decay, learningRate, epsilon, scale);
+    }
+
+    @Override
+    public double[][] saveState() {
+        return meanSquares;
+    }
+
+    @Override
+    public void restoreState(double[][] state) {
+        for (int slot = 0; slot < meanSquares.length; slot++) {
+            System.arraycopy(state[slot], 0, meanSquares[slot], 0, meanSquares[slot].length);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package project;
+
+import java.util.Arrays;
+
+// Plain Java loops, used when the Vector API is unavailable or not requested
+class ScalarKernels implements DenseKernels {
+
+    // out[s][j] = bias[j] + sum_k in[s][k] * w[j][k]. Four samples are computed
+    // together so each weight row is streamed from memory once per group.
+    @Override
+    public void multiplyTransposed(double[] in, double[] w, double[] bias, double[] out, int count, int inSize, int outSize) {
+        int s = 0;
+        for (; s + 4 <= count; s += 4) {
+            int r0 = s * inSize, r1 = r0 + inSize, r2 = r1 + inSize, r3 = r2 + inSize;
+            int o = s * outSize;
+            for (int j = 0; j < outSize; j++) {
+                int row = j * inSize;
+                double a0 = bias[j], a1 = bias[j], a2 = bias[j], a3 = bias[j];
+                for (int k = 0; k < inSize; k++) {
+                    double wk = w[row + k];
+                    a0 += wk * in[r0 + k];
+                    a1 += wk * in[r1 + k];
+                    a2 += wk * in[r2 + k];
+                    a3 += wk * in[r3 + k];
+                }
+                out[o + j] = a0;
+                out[o + outSize + j] = a1;
+                out[o + 2 * outSize + j] = a2;
+                out[o + 3 * outSize + j] = a3;
+            }
+        }
+        for (; s < count; s++) {
+            int r = s * inSize;
+            for (int j = 0; j < outSize; j++) {
+                int row = j * inSize;
+                double a = bias[j];
+                for (int k = 0; k < inSize; k++) {
+                    a += w[row + k] * in[r + k];
+                }
+                out[s * outSize + j] = a;
+            }
+        }
+    }
+
+    // Four rows at a time so their independent sums overlap; each row is summed
+    // in the same order as a single sample in multiplyTransposed.
+    @Override
+    public void multiplyActivate(double[] in, double[] w, double[] bias, double[] out, int inSize, int outSize, double slope) {
+        int j = 0;
+        for (; j + 4 <= outSize; j += 4) {
+            int r0 = j * inSize, r1 = r0 + inSize, r2 = r1 + inSize, r3 = r2 + inSize;
+            double a0 = bias[j], a1 = bias[j + 1], a2 = bias[j + 2], a3 = bias[j + 3];
+            for (int k = 0; k < inSize; k++) {
+                double x = in[k];
+                a0 += w[r0 + k] * x;
+                a1 += w[r1 + k] * x;
+                a2 += w[r2 + k] * x;
+                a3 += w[r3 + k] * x;
+            }
+            out[j] = a0 > 0 ? a0 : slope * a0;
+            out[j + 1] = a1 > 0 ? a1 : slope * a1;
+            out[j + 2] = a2 > 0 ? a2 : slope * a2;
+            out[j + 3] = a3 > 0 ? a3 : slope * a3;
+        }
+        for (; j < outSize; j++) {
+            int row = j * inSize;
+            double a = bias[j];
+            for (int k = 0; k < inSize; k++) {
+                a += w[row + k] * in[k];
+            }
+            out[j] = a > 0 ? a : slope * a;
+        }
+    }
+
+    // An indirect load and multiply per nonzero costs about four times a dense
+    // multiply-add, measured on a 784-256-128-10 network
+    @Override
+    public double sparseCrossover() {
+        return 0.25;
+    }
+
+    // Skipping zeros pays off up to about 55% nonzeros on 128x64 and 80% on
+    // 784x128 at batch 16 with these loops, see NeuralNetworkBenchmark
+    @Override
+    public double sparseInputCrossover() {
+        return 0.5;
+    }
+
+    // out[s][k] = sum_j d[s][j] * w[j][k], accumulated row by row so the weights
+    // are read along their rows instead of down their columns.
+    @Override
+    public void multiply(double[] d, double[] w, double[] out, int count, int dSize, int outSize) {
+        Arrays.fill(out, 0, count * outSize, 0);
+        int s = 0;
+        for (; s + 4 <= count; s += 4) {
+            int o0 = s * outSize, o1 = o0 + outSize, o2 = o1 + outSize, o3 = o2 + outSize;
+            for (int j = 0; j < dSize; j++) {
+                int row = j * outSize;
+                double d0 = d[s * dSize + j], d1 = d[(s + 1) * dSize + j], d2 = d[(s + 2) * dSize + j], d3 = d[(s + 3) * dSize + j];
+                for (int k = 0; k < outSize; k++) {
+                    double wk = w[row + k];
+                    out[o0 + k] += d0 * wk;
+                    out[o1 + k] += d1 * wk;
+                    out[o2 + k] += d2 * wk;
+                    out[o3 + k] += d3 * wk;
+                }
+            }
+        }
+        for (; s < count; s++) {
+            int o = s * outSize;
+            for (int j = 0; j < dSize; j++) {
+                int row = j * outSize;
+                double dj = d[s * dSize + j];
+                for (int k = 0; k < outSize; k++) {
+                    out[o + k] += dj * w[row + k];
+                }
+            }
+        }
+    }
+
+    // gradients[j][k] += sum_s d[s][j] * a[s][k] and biasGradients[j] += sum_s d[s][j]
+    @Override
+    public void accumulateGradients(double[] d, double[] a, double[] gradients, double[] biasGradients, int count, int dSize, int aSize) {
+        for (int j = 0; j < dSize; j++) {
+            int row = j * aSize;
+            int s = 0;
+            for (; s + 4 <= count; s += 4) {
+                double d0 = d[s * dSize + j], d1 = d[(s + 1) * dSize + j], d2 = d[(s + 2) * dSize + j], d3 = d[(s + 3) * dSize + j];
+                int a0 = s * aSize, a1 = a0 + aSize, a2 = a1 + aSize, a3 = a2 + aSize;
+                for (int k = 0; k < aSize; k++) {
+                    gradients[row + k] += d0 * a[a0 + k] + d1 * a[a1 + k] + d2 * a[a2 + k] + d3 * a[a3 + k];
+                }
+                biasGradients[j] += d0 + d1 + d2 + d3;
+            }
+            for (; s < count; s++) {
+                double dj = d[s * dSize + j];
+                int a0 = s * aSize;
+                for (int k = 0; k < aSize; k++) {
+                    gradients[row + k] += dj * a[a0 + k];
+                }
+                biasGradients[j] += dj;
+            }
+        }
+    }
+
+    @Override
+    public void activate(double[] in, double[] out, int length, double slope) {
+        for (int i = 0; i < length; i++) {
+            double v = in[i];
+            out[i] = v > 0 ? v : slope * v;
+        }
+    }
+
+    @Override
+    public void scaleByDerivative(double[] deltas, double[] activations, double[] dropouts, int length, double slope) {
+        for (int i = 0; i < length; i++) {
+            deltas[i] *= (activations[i] > 0 ? 1 : slope) * dropouts[i];
+        }
+    }
+
+    @Override
+    public void add(double[] target, double[] source, int from, int to) {
+        for (int k = from; k < to; k++) {
+            target[k] += source[k];
+        }
+    }
+
+    @Override
+    public void momentumStep(double[] weights, double[] updates, double[] gradients, int from, int to, double momentum, double learningRate, double scale) {
+        for (int k = from; k < to; k++) {
+            updates[k] = momentum * updates[k] + (1 - momentum) * gradients[k] * scale;
+            weights[k] -= learningRate * updates[k];
+        }
+    }
+
+    @Override
+    public void sgdStep(double[] weights, double[] gradients, int from, int to, double learningRate, double scale) {
+        for (int k = from; k < to; k++) {
+            weights[k] -= learningRate * gradients[k] * scale;
+        }
+    }
+
+    @Override
+    public void nesterovStep(double[] weights, double[] velocity, double[] gradients, int from, int to, double momentum, double learningRate, double scale) {
+        double gradientScale = learningRate * scale;
+        for (int k = from; k < to; k++) {
+            double previous = velocity[k];
+            double v = momentum * previous - gradientScale * gradients[k];
+            velocity[k] = v;
+            weights[k] += (1 + momentum) * v - momentum * previous;
+        }
+    }
+
+    @Override
+    public void rmsPropStep(double[] weights, double[] meanSquares, double[] gradients, int from, int to, double decay, double learningRate, double epsilon, double scale) {
+        for (int k = from; k < to; k++) {
+            double g = gradients[k] * scale;
+            double s = decay * meanSquares[k] + (1 - decay) * g * g;
+            meanSquares[k] = s;
+            weights[k] -= learningRate * g / (Math.sqrt(s) + epsilon);
+        }
+    }
+
+    @Override
+    public void adamStep(double[] weights, double[] m, double[] v, double[] gradients, int from, int to,
+                         double beta1, double beta2, double stepSize, double vCorrection, double epsilon, double weightDecay, double scale) {
+        for (int k = from; k < to; k++) {
+            double g = gradients[k] * scale;
+            double mk = beta1 * m[k] + (1 - beta1) * g;
+            double vk = beta2 * v[k] + (1 - beta2) * g * g;
+            m[k] = mk;
+            v[k] = vk;
+            weights[k] -= stepSize * mk / (Math.sqrt(vk) * vCorrection + epsilon) + weightDecay * weights[k];
+        }
+    }
+}
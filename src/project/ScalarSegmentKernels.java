@@ -0,0 +1,43 @@
+package project;
+
+import java.lang.foreign.MemorySegment;
+
+// ScalarKernels.multiplyTransposed over segments
+class ScalarSegmentKernels implements SegmentKernels {
+
+    @Override
+    public void multiplyTransposed(double[] in, MemorySegment w, MemorySegment bias, double[] out, int count, int inSize, int outSize) {
+        int s = 0;
+        for (; s + 4 <= count; s += 4) {
+            int r0 = s * inSize, r1 = r0 + inSize, r2 = r1 + inSize, r3 = r2 + inSize;
+            int o = s * outSize;
+            for (int j = 0; j < outSize; j++) {
+                long row = (long) j * inSize;
+                double b = bias.getAtIndex(DOUBLE, j);
+                double a0 = b, a1 = b, a2 = b, a3 = b;
+                for (int k = 0; k < inSize; k++) {
+                    double wk = w.getAtIndex(DOUBLE, row + k);
+                    a0 += wk * in[r0 + k];
+                    a1 += wk * in[r1 + k];
+                    a2 += wk * in[r2 + k];
+                    a3 += wk * in[r3 + k];
+                }
+                out[o + j] = a0;
+                out[o + outSize + j] = a1;
+                out[o + 2 * outSize + j] = a2;
+                out[o + 3 * outSize + j] = a3;
+            }
+        }
+        for (; s < count; s++) {
+            int r = s * inSize;
+            for (int j = 0; j < outSize; j++) {
+                long row = (long) j * inSize;
+                double a = bias.getAtIndex(DOUBLE, j);
+                for (int k = 0; k < inSize; k++) {
+                    a += w.getAtIndex(DOUBLE, row + k) * in[r + k];
+                }
+                out[s * outSize + j] = a;
+            }
+        }
+    }
+}
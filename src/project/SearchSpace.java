@@ -0,0 +1,123 @@
+package project;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+// Candidate values of every hyperparameter a HyperparameterSearch varies. The
+// input and output sizes are fixed by the data, only the hidden layers change.
+class SearchSpace {
+    // One point of the space
+    static final class Config {
+        final int[] hiddenLayers;
+        final double learningRate;
+        final double momentum;
+        final double dropoutRate;
+        final int batchSize;
+
+        Config(int[] hiddenLayers, double learningRate, double momentum, double dropoutRate, int batchSize) {
+            this.hiddenLayers = hiddenLayers.clone();
+            this.learningRate = learningRate;
+            this.momentum = momentum;
+            this.dropoutRate = dropoutRate;
+            this.batchSize = batchSize;
+        }
+
+        int[] neuronsPerLayer(int inputSize, int outputSize) {
+            int[] neurons = new int[hiddenLayers.length + 2];
+            neurons[0] = inputSize;
+            System.arraycopy(hiddenLayers, 0, neurons, 1, hiddenLayers.length);
+            neurons[neurons.length - 1] = outputSize;
+            return neurons;
+        }
+
+        // Hidden sizes joined with '-', as in the leaderboard
+        String layers() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < hiddenLayers.length; i++) {
+                sb.append(i > 0 ? "-" : "").append(hiddenLayers[i]);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "hidden %s, learning rate %.5f, momentum %.2f, dropout %.2f, batch %d",
+                    layers(), learningRate, momentum, dropoutRate, batchSize);
+        }
+    }
+
+    private int[][] hiddenLayers = {{128, 64}};
+    private double[] learningRates = {0.01};
+    private double[] momenta = {0.9};
+    private double[] dropoutRates = {0.3};
+    private int[] batchSizes = {16};
+
+    // Every setter replaces the candidates of one hyperparameter; the defaults
+    // are the values the demos were hand-tuned with
+    public SearchSpace hiddenLayers(int[]... candidates) {
+        hiddenLayers = candidates.clone();
+        return this;
+    }
+
+    public SearchSpace learningRates(double... candidates) {
+        learningRates = candidates.clone();
+        return this;
+    }
+
+    public SearchSpace momenta(double... candidates) {
+        momenta = candidates.clone();
+        return this;
+    }
+
+    public SearchSpace dropoutRates(double... candidates) {
+        dropoutRates = candidates.clone();
+        return this;
+    }
+
+    public SearchSpace batchSizes(int... candidates) {
+        batchSizes = candidates.clone();
+        return this;
+    }
+
+    public int gridSize() {
+        return hiddenLayers.length * learningRates.length * momenta.length * dropoutRates.length * batchSizes.length;
+    }
+
+    // Every combination of the candidates
+    public List<Config> grid() {
+        List<Config> configs = new ArrayList<>(gridSize());
+        for (int[] hidden : hiddenLayers) {
+            for (double learningRate : learningRates) {
+                for (double momentum : momenta) {
+                    for (double dropoutRate : dropoutRates) {
+                        for (int batchSize : batchSizes) {
+                            configs.add(new Config(hidden, learningRate, momentum, dropoutRate, batchSize));
+                        }
+                    }
+                }
+            }
+        }
+        return configs;
+    }
+
+    // count random points. The learning rate is drawn log-uniformly between the
+    // smallest and largest candidate, since only its order of magnitude matters
+    // at first; the other hyperparameters are picked among their candidates.
+    public List<Config> sample(int count, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        double low = Math.log(Arrays.stream(learningRates).min().orElseThrow());
+        double high = Math.log(Arrays.stream(learningRates).max().orElseThrow());
+        List<Config> configs = new ArrayList<>(count);
+        for (int c = 0; c < count; c++) {
+            configs.add(new Config(hiddenLayers[random.nextInt(hiddenLayers.length)],
+                    Math.exp(low + (high - low) * random.nextDouble()),
+                    momenta[random.nextInt(momenta.length)],
+                    dropoutRates[random.nextInt(dropoutRates.length)],
+                    batchSizes[random.nextInt(batchSizes.length)]));
+        }
+        return configs;
+    }
+}
@@ -0,0 +1,23 @@
+package project;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+// The dense layer loop of OffHeapModel, reading the weights and biases from
+// MemorySegments laid out as in ModelFile instead of from arrays. Inputs and
+// outputs are the usual sample-major arrays. Both implementations sum in the
+// same order as the matching DenseKernels, so an OffHeapModel predicts exactly
+// what a Predictor over the same parameters does.
+interface SegmentKernels {
+    ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // out[s][j] = bias[j] + sum_k in[s][k] * w[j][k]
+    void multiplyTransposed(double[] in, MemorySegment w, MemorySegment bias, double[] out, int count, int inSize, int outSize);
+
+    // Same fallback as DenseKernels.create
+    static SegmentKernels create(boolean useVectorKernels) {
+        SegmentKernels kernels = useVectorKernels ? DenseKernels.loadVectorKernels(SegmentKernels.class, "project.VectorSegmentKernels") : null;
+        return kernels != null ? kernels : new ScalarSegmentKernels();
+    }
+}
@@ -0,0 +1,21 @@
+package project;
+
+// Plain stochastic gradient descent without any state
+class SgdOptimizer implements Optimizer {
+    private final double learningRate;
+    private DenseKernels kernels;
+
+    public SgdOptimizer(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    @Override
+    public void init(int[] slotSizes, DenseKernels kernels) {
+        this.kernels = kernels;
+    }
+
+    @Override
+    public void update(int slot, double[] params, double[] gradients, int from, int to, double scale) {
+        kernels.sgdStep(params, gradients, from, to, learningRate, scale);
+    }
+}
@@ -0,0 +1,13 @@
+package project;
+
+// Receives training metrics from NeuralNetwork, see addTrainingListener. Both
+// methods are called on the training thread, so they should return quickly;
+// MetricsRecorder is a ready-made listener that only updates counters.
+interface TrainingListener {
+    // The metrics object is reused for the next batch, copy what needs keeping
+    default void batchFinished(BatchMetrics batch) {
+    }
+
+    default void epochFinished(EpochMetrics epoch) {
+    }
+}
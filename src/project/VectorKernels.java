@@ -0,0 +1,350 @@
+package project;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+// SIMD versions of the dense kernels built on jdk.incubator.vector. Each loop
+// runs over full vectors of the preferred width and finishes the remaining
+// elements with scalar code.
+class VectorKernels implements DenseKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public void multiplyTransposed(double[] in, double[] w, double[] bias, double[] out, int count, int inSize, int outSize) {
+        int bound = SPECIES.loopBound(inSize);
+        int s = 0;
+        for (; s + 4 <= count; s += 4) {
+            int r0 = s * inSize, r1 = r0 + inSize, r2 = r1 + inSize, r3 = r2 + inSize;
+            int o = s * outSize;
+            for (int j = 0; j < outSize; j++) {
+                int row = j * inSize;
+                DoubleVector v0 = DoubleVector.zero(SPECIES), v1 = v0, v2 = v0, v3 = v0;
+                int k = 0;
+                for (; k < bound; k += LANES) {
+                    DoubleVector wk = DoubleVector.fromArray(SPECIES, w, row + k);
+                    v0 = wk.fma(DoubleVector.fromArray(SPECIES, in, r0 + k), v0);
+                    v1 = wk.fma(DoubleVector.fromArray(SPECIES, in, r1 + k), v1);
+                    v2 = wk.fma(DoubleVector.fromArray(SPECIES, in, r2 + k), v2);
+                    v3 = wk.fma(DoubleVector.fromArray(SPECIES, in, r3 + k), v3);
+                }
+                double a0 = bias[j] + v0.reduceLanes(VectorOperators.ADD);
+                double a1 = bias[j] + v1.reduceLanes(VectorOperators.ADD);
+                double a2 = bias[j] + v2.reduceLanes(VectorOperators.ADD);
+                double a3 = bias[j] + v3.reduceLanes(VectorOperators.ADD);
+                for (; k < inSize; k++) {
+                    double wk = w[row + k];
+                    a0 += wk * in[r0 + k];
+                    a1 += wk * in[r1 + k];
+                    a2 += wk * in[r2 + k];
+                    a3 += wk * in[r3 + k];
+                }
+                out[o + j] = a0;
+                out[o + outSize + j] = a1;
+                out[o + 2 * outSize + j] = a2;
+                out[o + 3 * outSize + j] = a3;
+            }
+        }
+        for (; s < count; s++) {
+            int r = s * inSize;
+            for (int j = 0; j < outSize; j++) {
+                int row = j * inSize;
+                DoubleVector v = DoubleVector.zero(SPECIES);
+                int k = 0;
+                for (; k < bound; k += LANES) {
+                    v = DoubleVector.fromArray(SPECIES, w, row + k).fma(DoubleVector.fromArray(SPECIES, in, r + k), v);
+                }
+                double a = bias[j] + v.reduceLanes(VectorOperators.ADD);
+                for (; k < inSize; k++) {
+                    a += w[row + k] * in[r + k];
+                }
+                out[s * outSize + j] = a;
+            }
+        }
+    }
+
+    @Override
+    public void multiply(double[] d, double[] w, double[] out, int count, int dSize, int outSize) {
+        Arrays.fill(out, 0, count * outSize, 0);
+        int bound = SPECIES.loopBound(outSize);
+        int s = 0;
+        for (; s + 4 <= count; s += 4) {
+            int o0 = s * outSize, o1 = o0 + outSize, o2 = o1 + outSize, o3 = o2 + outSize;
+            for (int j = 0; j < dSize; j++) {
+                int row = j * outSize;
+                double d0 = d[s * dSize + j], d1 = d[(s + 1) * dSize + j], d2 = d[(s + 2) * dSize + j], d3 = d[(s + 3) * dSize + j];
+                DoubleVector b0 = DoubleVector.broadcast(SPECIES, d0), b1 = DoubleVector.broadcast(SPECIES, d1), b2 = DoubleVector.broadcast(SPECIES, d2), b3 = DoubleVector.broadcast(SPECIES, d3);
+                int k = 0;
+                for (; k < bound; k += LANES) {
+                    DoubleVector wk = DoubleVector.fromArray(SPECIES, w, row + k);
+                    wk.fma(b0, DoubleVector.fromArray(SPECIES, out, o0 + k)).intoArray(out, o0 + k);
+                    wk.fma(b1, DoubleVector.fromArray(SPECIES, out, o1 + k)).intoArray(out, o1 + k);
+                    wk.fma(b2, DoubleVector.fromArray(SPECIES, out, o2 + k)).intoArray(out, o2 + k);
+                    wk.fma(b3, DoubleVector.fromArray(SPECIES, out, o3 + k)).intoArray(out, o3 + k);
+                }
+                for (; k < outSize; k++) {
+                    double wk = w[row + k];
+                    out[o0 + k] += d0 * wk;
+                    out[o1 + k] += d1 * wk;
+                    out[o2 + k] += d2 * wk;
+                    out[o3 + k] += d3 * wk;
+                }
+            }
+        }
+        for (; s < count; s++) {
+            int o = s * outSize;
+            for (int j = 0; j < dSize; j++) {
+                int row = j * outSize;
+                double dj = d[s * dSize + j];
+                DoubleVector bj = DoubleVector.broadcast(SPECIES, dj);
+                int k = 0;
+                for (; k < bound; k += LANES) {
+                    DoubleVector.fromArray(SPECIES, w, row + k).fma(bj, DoubleVector.fromArray(SPECIES, out, o + k)).intoArray(out, o + k);
+                }
+                for (; k < outSize; k++) {
+                    out[o + k] += dj * w[row + k];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void accumulateGradients(double[] d, double[] a, double[] gradients, double[] biasGradients, int count, int dSize, int aSize) {
+        int bound = SPECIES.loopBound(aSize);
+        for (int j = 0; j < dSize; j++) {
+            int row = j * aSize;
+            int s = 0;
+            for (; s + 4 <= count; s += 4) {
+                double d0 = d[s * dSize + j], d1 = d[(s + 1) * dSize + j], d2 = d[(s + 2) * dSize + j], d3 = d[(s + 3) * dSize + j];
+                DoubleVector b0 = DoubleVector.broadcast(SPECIES, d0), b1 = DoubleVector.broadcast(SPECIES, d1), b2 = DoubleVector.broadcast(SPECIES, d2), b3 = DoubleVector.broadcast(SPECIES, d3);
+                int a0 = s * aSize, a1 = a0 + aSize, a2 = a1 + aSize, a3 = a2 + aSize;
+                int k = 0;
+                for (; k < bound; k += LANES) {
+                    DoubleVector g = DoubleVector.fromArray(SPECIES, gradients, row + k);
+                    g = DoubleVector.fromArray(SPECIES, a, a0 + k).fma(b0, g);
+                    g = DoubleVector.fromArray(SPECIES, a, a1 + k).fma(b1, g);
+                    g = DoubleVector.fromArray(SPECIES, a, a2 + k).fma(b2, g);
+                    g = DoubleVector.fromArray(SPECIES, a, a3 + k).fma(b3, g);
+                    g.intoArray(gradients, row + k);
+                }
+                for (; k < aSize; k++) {
+                    gradients[row + k] += d0 * a[a0 + k] + d1 * a[a1 + k] + d2 * a[a2 + k] + d3 * a[a3 + k];
+                }
+                biasGradients[j] += d0 + d1 + d2 + d3;
+            }
+            for (; s < count; s++) {
+                double dj = d[s * dSize + j];
+                DoubleVector bj = DoubleVector.broadcast(SPECIES, dj);
+                int a0 = s * aSize;
+                int k = 0;
+                for (; k < bound; k += LANES) {
+                    DoubleVector.fromArray(SPECIES, a, a0 + k).fma(bj, DoubleVector.fromArray(SPECIES, gradients, row + k)).intoArray(gradients, row + k);
+                }
+                for (; k < aSize; k++) {
+                    gradients[row + k] += dj * a[a0 + k];
+                }
+                biasGradients[j] += dj;
+            }
+        }
+    }
+
+    // Four rows at a time share every load of in; each row keeps its own vector
+    // sum, reduced the same way as a single sample in multiplyTransposed.
+    @Override
+    public void multiplyActivate(double[] in, double[] w, double[] bias, double[] out, int inSize, int outSize, double slope) {
+        int bound = SPECIES.loopBound(inSize);
+        int j = 0;
+        for (; j + 4 <= outSize; j += 4) {
+            int r0 = j * inSize, r1 = r0 + inSize, r2 = r1 + inSize, r3 = r2 + inSize;
+            DoubleVector v0 = DoubleVector.zero(SPECIES), v1 = v0, v2 = v0, v3 = v0;
+            int k = 0;
+            for (; k < bound; k += LANES) {
+                DoubleVector x = DoubleVector.fromArray(SPECIES, in, k);
+                v0 = DoubleVector.fromArray(SPECIES, w, r0 + k).fma(x, v0);
+                v1 = DoubleVector.fromArray(SPECIES, w, r1 + k).fma(x, v1);
+                v2 = DoubleVector.fromArray(SPECIES, w, r2 + k).fma(x, v2);
+                v3 = DoubleVector.fromArray(SPECIES, w, r3 + k).fma(x, v3);
+            }
+            double a0 = bias[j] + v0.reduceLanes(VectorOperators.ADD);
+            double a1 = bias[j + 1] + v1.reduceLanes(VectorOperators.ADD);
+            double a2 = bias[j + 2] + v2.reduceLanes(VectorOperators.ADD);
+            double a3 = bias[j + 3] + v3.reduceLanes(VectorOperators.ADD);
+            for (; k < inSize; k++) {
+                double x = in[k];
+                a0 += w[r0 + k] * x;
+                a1 += w[r1 + k] * x;
+                a2 += w[r2 + k] * x;
+                a3 += w[r3 + k] * x;
+            }
+            out[j] = Math.max(a0, slope * a0);
+            out[j + 1] = Math.max(a1, slope * a1);
+            out[j + 2] = Math.max(a2, slope * a2);
+            out[j + 3] = Math.max(a3, slope * a3);
+        }
+        for (; j < outSize; j++) {
+            int row = j * inSize;
+            DoubleVector v = DoubleVector.zero(SPECIES);
+            int k = 0;
+            for (; k < bound; k += LANES) {
+                v = DoubleVector.fromArray(SPECIES, w, row + k).fma(DoubleVector.fromArray(SPECIES, in, k), v);
+            }
+            double a = bias[j] + v.reduceLanes(VectorOperators.ADD);
+            for (; k < inSize; k++) {
+                a += w[row + k] * in[k];
+            }
+            out[j] = Math.max(a, slope * a);
+        }
+    }
+
+    // The dense loop runs at vector width while the CSR loop stays scalar,
+    // measured on a 784-256-128-10 network
+    @Override
+    public double sparseCrossover() {
+        return 0.1;
+    }
+
+    // The dense loops run at vector width, so the sparse ones only win below
+    // about 8% nonzeros on 128x64 and 12% on 784x128 at batch 16
+    @Override
+    public double sparseInputCrossover() {
+        return 0.1;
+    }
+
+    // max(v, slope * v) is LeakyReLU for a slope below one, max(v, 0) is ReLU and
+    // a slope of one leaves v unchanged
+    @Override
+    public void activate(double[] in, double[] out, int length, double slope) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, in, i);
+            v.max(v.mul(slope)).intoArray(out, i);
+        }
+        for (; i < length; i++) {
+            double v = in[i];
+            out[i] = Math.max(v, slope * v);
+        }
+    }
+
+    @Override
+    public void scaleByDerivative(double[] deltas, double[] activations, double[] dropouts, int length, double slope) {
+        DoubleVector ones = DoubleVector.broadcast(SPECIES, 1);
+        DoubleVector negatives = DoubleVector.broadcast(SPECIES, slope);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            VectorMask<Double> positive = DoubleVector.fromArray(SPECIES, activations, i).compare(VectorOperators.GT, 0);
+            DoubleVector derivative = negatives.blend(ones, positive);
+            DoubleVector.fromArray(SPECIES, deltas, i)
+                    .mul(derivative)
+                    .mul(DoubleVector.fromArray(SPECIES, dropouts, i))
+                    .intoArray(deltas, i);
+        }
+        for (; i < length; i++) {
+            deltas[i] *= (activations[i] > 0 ? 1 : slope) * dropouts[i];
+        }
+    }
+
+    @Override
+    public void add(double[] target, double[] source, int from, int to) {
+        int k = from;
+        for (; k + LANES <= to; k += LANES) {
+            DoubleVector.fromArray(SPECIES, target, k).add(DoubleVector.fromArray(SPECIES, source, k)).intoArray(target, k);
+        }
+        for (; k < to; k++) {
+            target[k] += source[k];
+        }
+    }
+
+    @Override
+    public void momentumStep(double[] weights, double[] updates, double[] gradients, int from, int to, double momentum, double learningRate, double scale) {
+        double gradientScale = (1 - momentum) * scale;
+        int k = from;
+        for (; k + LANES <= to; k += LANES) {
+            DoubleVector u = DoubleVector.fromArray(SPECIES, updates, k).mul(momentum)
+                    .add(DoubleVector.fromArray(SPECIES, gradients, k).mul(gradientScale));
+            u.intoArray(updates, k);
+            DoubleVector.fromArray(SPECIES, weights, k).sub(u.mul(learningRate)).intoArray(weights, k);
+        }
+        for (; k < to; k++) {
+            updates[k] = momentum * updates[k] + (1 - momentum) * gradients[k] * scale;
+            weights[k] -= learningRate * updates[k];
+        }
+    }
+
+    @Override
+    public void sgdStep(double[] weights, double[] gradients, int from, int to, double learningRate, double scale) {
+        double step = learningRate * scale;
+        int k = from;
+        for (; k + LANES <= to; k += LANES) {
+            DoubleVector.fromArray(SPECIES, gradients, k).mul(-step)
+                    .add(DoubleVector.fromArray(SPECIES, weights, k)).intoArray(weights, k);
+        }
+        for (; k < to; k++) {
+            weights[k] -= learningRate * gradients[k] * scale;
+        }
+    }
+
+    @Override
+    public void nesterovStep(double[] weights, double[] velocity, double[] gradients, int from, int to, double momentum, double learningRate, double scale) {
+        double gradientScale = learningRate * scale;
+        int k = from;
+        for (; k + LANES <= to; k += LANES) {
+            DoubleVector previous = DoubleVector.fromArray(SPECIES, velocity, k);
+            DoubleVector v = previous.mul(momentum).sub(DoubleVector.fromArray(SPECIES, gradients, k).mul(gradientScale));
+            v.intoArray(velocity, k);
+            DoubleVector.fromArray(SPECIES, weights, k).add(v.mul(1 + momentum)).sub(previous.mul(momentum)).intoArray(weights, k);
+        }
+        for (; k < to; k++) {
+            double previous = velocity[k];
+            double v = momentum * previous - gradientScale * gradients[k];
+            velocity[k] = v;
+            weights[k] += (1 + momentum) * v - momentum * previous;
+        }
+    }
+
+    @Override
+    public void rmsPropStep(double[] weights, double[] meanSquares, double[] gradients, int from, int to, double decay, double learningRate, double epsilon, double scale) {
+        int k = from;
+        for (; k + LANES <= to; k += LANES) {
+            DoubleVector g = DoubleVector.fromArray(SPECIES, gradients, k).mul(scale);
+            DoubleVector s = DoubleVector.fromArray(SPECIES, meanSquares, k).mul(decay).add(g.mul(g).mul(1 - decay));
+            s.intoArray(meanSquares, k);
+            DoubleVector.fromArray(SPECIES, weights, k).sub(g.mul(learningRate).div(s.sqrt().add(epsilon))).intoArray(weights, k);
+        }
+        for (; k < to; k++) {
+            double g = gradients[k] * scale;
+            double s = decay * meanSquares[k] + (1 - decay) * g * g;
+            meanSquares[k] = s;
+            weights[k] -= learningRate * g / (Math.sqrt(s) + epsilon);
+        }
+    }
+
+    @Override
+    public void adamStep(double[] weights, double[] m, double[] v, double[] gradients, int from, int to,
+                         double beta1, double beta2, double stepSize, double vCorrection, double epsilon, double weightDecay, double scale) {
+        int k = from;
+        for (; k + LANES <= to; k += LANES) {
+            DoubleVector g = DoubleVector.fromArray(SPECIES, gradients, k).mul(scale);
+            DoubleVector mk = DoubleVector.fromArray(SPECIES, m, k).mul(beta1).add(g.mul(1 - beta1));
+            DoubleVector vk = DoubleVector.fromArray(SPECIES, v, k).mul(beta2).add(g.mul(g).mul(1 - beta2));
+            mk.intoArray(m, k);
+            vk.intoArray(v, k);
+            DoubleVector w = DoubleVector.fromArray(SPECIES, weights, k);
+            DoubleVector step = mk.mul(stepSize).div(vk.sqrt().mul(vCorrection).add(epsilon));
+            w.sub(step).sub(w.mul(weightDecay)).intoArray(weights, k);
+        }
+        for (; k < to; k++) {
+            double g = gradients[k] * scale;
+            double mk = beta1 * m[k] + (1 - beta1) * g;
+            double vk = beta2 * v[k] + (1 - beta2) * g * g;
+            m[k] = mk;
+            v[k] = vk;
+            weights[k] -= stepSize * mk / (Math.sqrt(vk) * vCorrection + epsilon) + weightDecay * weights[k];
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package project;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+// VectorKernels.multiplyTransposed over segments. The weight rows are loaded
+// straight from the segment, which for a mapped model file is the page cache.
+class VectorSegmentKernels implements SegmentKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public void multiplyTransposed(double[] in, MemorySegment w, MemorySegment bias, double[] out, int count, int inSize, int outSize) {
+        int bound = SPECIES.loopBound(inSize);
+        int s = 0;
+        for (; s + 4 <= count; s += 4) {
+            int r0 = s * inSize, r1 = r0 + inSize, r2 = r1 + inSize, r3 = r2 + inSize;
+            int o = s * outSize;
+            for (int j = 0; j < outSize; j++) {
+                long row = (long) j * inSize;
+                DoubleVector v0 = DoubleVector.zero(SPECIES), v1 = v0, v2 = v0, v3 = v0;
+                int k = 0;
+                for (; k < bound; k += LANES) {
+                    DoubleVector wk = DoubleVector.fromMemorySegment(SPECIES, w, (row + k) * 8, ByteOrder.LITTLE_ENDIAN);
+                    v0 = wk.fma(DoubleVector.fromArray(SPECIES, in, r0 + k), v0);
+                    v1 = wk.fma(DoubleVector.fromArray(SPECIES, in, r1 + k), v1);
+                    v2 = wk.fma(DoubleVector.fromArray(SPECIES, in, r2 + k), v2);
+                    v3 = wk.fma(DoubleVector.fromArray(SPECIES, in, r3 + k), v3);
+                }
+                double b = bias.getAtIndex(DOUBLE, j);
+                double a0 = b + v0.reduceLanes(VectorOperators.ADD);
+                double a1 = b + v1.reduceLanes(VectorOperators.ADD);
+                double a2 = b + v2.reduceLanes(VectorOperators.ADD);
+                double a3 = b + v3.reduceLanes(VectorOperators.ADD);
+                for (; k < inSize; k++) {
+                    double wk = w.getAtIndex(DOUBLE, row + k);
+                    a0 += wk * in[r0 + k];
+                    a1 += wk * in[r1 + k];
+                    a2 += wk * in[r2 + k];
+                    a3 += wk * in[r3 + k];
+                }
+                out[o + j] = a0;
+                out[o + outSize + j] = a1;
+                out[o + 2 * outSize + j] = a2;
+                out[o + 3 * outSize + j] = a3;
+            }
+        }
+        for (; s < count; s++) {
+            int r = s * inSize;
+            for (int j = 0; j < outSize; j++) {
+                long row = (long) j * inSize;
+                DoubleVector v = DoubleVector.zero(SPECIES);
+                int k = 0;
+                for (; k < bound; k += LANES) {
+                    v = DoubleVector.fromMemorySegment(SPECIES, w, (row + k) * 8, ByteOrder.LITTLE_ENDIAN).fma(DoubleVector.fromArray(SPECIES, in, r + k), v);
+                }
+                double a = bias.getAtIndex(DOUBLE, j) + v.reduceLanes(VectorOperators.ADD);
+                for (; k < inSize; k++) {
+                    a += w.getAtIndex(DOUBLE, row + k) * in[r + k];
+                }
+                out[s * outSize + j] = a;
+            }
+        }
+    }
+}